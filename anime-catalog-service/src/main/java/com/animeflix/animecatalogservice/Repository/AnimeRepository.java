@@ -1,27 +1,46 @@
 package com.animeflix.animecatalogservice.Repository;
 
 import com.animeflix.animecatalogservice.Entity.Anime;
-import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
-import org.springframework.data.mongodb.repository.MongoRepository;
 import org.springframework.data.mongodb.repository.Query;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
 
-import java.util.List;
+import java.util.Collection;
 
 @Repository
-public interface AnimeRepository extends MongoRepository<Anime, String> {
+public interface AnimeRepository extends ReactiveMongoRepository<Anime, String> {
 
-    // Tìm theo Season (cho api /season)
-    Page<Anime> findBySeasonAndSeasonYear(String season, Integer seasonYear, Pageable pageable);
+    // Chỉ các field AnimeResponse cần (list view) - bỏ studios/relations/recommendations/characters/trailer...
+    String LIST_VIEW_FIELDS = "{ 'idMal': 1, 'title': 1, 'coverImage': 1, 'bannerImage': 1, 'description': 1, "
+            + "'genres': 1, 'episodes': 1, 'status': 1, 'duration': 1, 'averageScore': 1, 'popularity': 1, "
+            + "'season': 1, 'seasonYear': 1, 'format': 1, 'nextAiringEpisode': 1 }";
 
-    // Tìm theo Format (cho api /popularmovie)
-    Page<Anime> findByFormat(String format, Pageable pageable);
+    // Lấy 1 trang toàn bộ anime dạng list view (ReactiveMongoRepository không có findAll(Pageable))
+    @Query(value = "{}", fields = LIST_VIEW_FIELDS)
+    Flux<Anime> findListView(Pageable pageable);
+
+    // Tìm theo Season (cho api /season) - list view
+    @Query(value = "{ 'season': ?0, 'seasonYear': ?1 }", fields = LIST_VIEW_FIELDS)
+    Flux<Anime> findBySeasonAndSeasonYear(String season, Integer seasonYear, Pageable pageable);
+
+    // Tìm theo Format (cho api /popularmovie) - list view
+    @Query(value = "{ 'format': ?0 }", fields = LIST_VIEW_FIELDS)
+    Flux<Anime> findByFormat(String format, Pageable pageable);
 
     // Tìm lịch chiếu (Những phim có nextAiringEpisode.airingAt > thời điểm hiện tại)
     @Query("{ 'nextAiringEpisode.airingAt': { $gt: ?0, $lt: ?1 } }")
-    Page<Anime> findAnimeSchedule(long startTime, long endTime, Pageable pageable);
+    Flux<Anime> findAnimeSchedule(long startTime, long endTime, Pageable pageable);
+
+    // Lấy nhiều anime theo id (cho api /batch) - list view
+    @Query(value = "{ '_id': { $in: ?0 } }", fields = LIST_VIEW_FIELDS)
+    Flux<Anime> findListViewByIdIn(Collection<String> ids);
+
+    // Lấy toàn bộ anime dạng list view (rebuild ranked index trên Redis)
+    @Query(value = "{}", fields = LIST_VIEW_FIELDS)
+    Flux<Anime> findAllListView();
 
     // Search cơ bản (nếu cần search phức tạp hơn sẽ dùng MongoTemplate)
-    Page<Anime> findByTitleUserPreferredContainingIgnoreCase(String title, Pageable pageable);
-}
\ No newline at end of file
+    Flux<Anime> findByTitleUserPreferredContainingIgnoreCase(String title, Pageable pageable);
+}
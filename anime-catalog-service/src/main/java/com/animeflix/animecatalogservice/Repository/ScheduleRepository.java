@@ -2,23 +2,23 @@ package com.animeflix.animecatalogservice.Repository;
 
 import com.animeflix.animecatalogservice.Entity.AnimeSchedule;
 import org.springframework.data.mongodb.repository.Aggregation;
-import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
-import java.util.List;
-
-public interface ScheduleRepository extends MongoRepository<AnimeSchedule, String> {
+public interface ScheduleRepository extends ReactiveMongoRepository<AnimeSchedule, String> {
 
     // Query schedule trong time range
-    List<AnimeSchedule> findByAiringAtBetweenOrderByAiringAtAsc(Long start, Long end);
+    Flux<AnimeSchedule> findByAiringAtBetweenOrderByAiringAtAsc(Long start, Long end);
 
     // Query theo ngày
-    List<AnimeSchedule> findByDayOrderByAiringAtAsc(String day);
+    Flux<AnimeSchedule> findByDayOrderByAiringAtAsc(String day);
 
     // Check tồn tại
-    boolean existsByAnimeIdAndEpisode(String animeId, Integer episode);
+    Mono<Boolean> existsByAnimeIdAndEpisode(String animeId, Integer episode);
 
     // Xóa schedule cũ (backup cho TTL)
-    void deleteByAiringAtLessThan(Long timestamp);
+    Mono<Void> deleteByAiringAtLessThan(Long timestamp);
 
     // Count theo ngày - Aggregation query
     @Aggregation(pipeline = {
@@ -26,7 +26,7 @@ public interface ScheduleRepository extends MongoRepository<AnimeSchedule, Strin
             "{ $group: { _id: '$day', count: { $sum: 1 } } }",
             "{ $project: { _id: 0, day: '$_id', count: 1 } }"
     })
-    List<DayCountProjection> countByDay(Long start, Long end);
+    Flux<DayCountProjection> countByDay(Long start, Long end);
 
     // Projection interface cho aggregation result
     interface DayCountProjection {
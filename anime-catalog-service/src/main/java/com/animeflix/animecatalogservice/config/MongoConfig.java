@@ -1,26 +1,26 @@
 package com.animeflix.animecatalogservice.config;
 
-import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.IndexOptions;
 import com.mongodb.client.model.Indexes;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.bson.Document;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.mongodb.core.MongoTemplate;
-import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.repository.config.EnableReactiveMongoRepositories;
+import reactor.core.publisher.Mono;
 
+import java.time.Duration;
 import java.util.concurrent.TimeUnit;
 
 @Configuration
-@EnableMongoRepositories(basePackages = "com.animeflix.animecatalogservice.Repository")
+@EnableReactiveMongoRepositories(basePackages = "com.animeflix.animecatalogservice.Repository")
 @RequiredArgsConstructor
 @Slf4j
 public class MongoConfig {
 
-    private final MongoTemplate mongoTemplate;
+    private final ReactiveMongoTemplate mongoTemplate;
 
     /**
      * Tạo TTL index cho schedules collection khi app khởi động
@@ -33,26 +33,25 @@ public class MongoConfig {
     }
 
     private void createScheduleTTLIndex() {
-        try {
-            MongoCollection<Document> collection = mongoTemplate.getCollection("schedules");
-
-            IndexOptions indexOptions = new IndexOptions()
-                    .expireAfter(0L, TimeUnit.SECONDS)
-                    .name("expiresAt_ttl");
-
-            collection.createIndex(
-                    Indexes.ascending("expiresAt"),
-                    indexOptions
-            );
-
-            log.info("✅ Created TTL index on schedules.expiresAt");
-
-        } catch (Exception e) {
-            if (e.getMessage() != null && e.getMessage().contains("already exists")) {
-                log.info(" TTL index already exists");
-            } else {
-                log.error(" Error creating TTL index", e);
-            }
-        }
+        IndexOptions indexOptions = new IndexOptions()
+                .expireAfter(0L, TimeUnit.SECONDS)
+                .name("expiresAt_ttl");
+
+        // Chạy trên main thread lúc khởi động nên block được
+        mongoTemplate.getCollection("schedules")
+                .flatMap(collection -> Mono.from(collection.createIndex(
+                        Indexes.ascending("expiresAt"),
+                        indexOptions
+                )))
+                .doOnNext(name -> log.info("✅ Created TTL index on schedules.expiresAt"))
+                .onErrorResume(e -> {
+                    if (e.getMessage() != null && e.getMessage().contains("already exists")) {
+                        log.info(" TTL index already exists");
+                    } else {
+                        log.error(" Error creating TTL index", e);
+                    }
+                    return Mono.empty();
+                })
+                .block(Duration.ofSeconds(30));
     }
-}
\ No newline at end of file
+}
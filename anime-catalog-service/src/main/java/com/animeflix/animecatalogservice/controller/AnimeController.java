@@ -5,9 +5,11 @@ import com.animeflix.animecatalogservice.DTO.AnimeResponse;
 import com.animeflix.animecatalogservice.exception.ApiResponse;
 import com.animeflix.animecatalogservice.exception.NotFoundException;
 import com.animeflix.animecatalogservice.service.AnimeService;
+import com.animeflix.animecatalogservice.service.ResponseBodyCache;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Mono;
 
@@ -21,6 +23,7 @@ import java.util.Map;
 public class AnimeController {
 
     private final AnimeService animeService;
+    private final ResponseBodyCache responseBodyCache;
 
     // 1. Chi tiết anime
     @GetMapping("/{id}")
@@ -32,6 +35,14 @@ public class AnimeController {
                         .body(ApiResponse.error(ex.getMessage()))));
     }
 
+    // 1b. Nhiều anime theo id: /batch?ids=1,2,3
+    @GetMapping("/batch")
+    public Mono<ResponseEntity<ApiResponse<List<AnimeResponse>>>> getAnimeBatch(
+            @RequestParam List<String> ids) {
+        return animeService.getAnimeBatch(ids)
+                .map(data -> ResponseEntity.ok(ApiResponse.ok(data)));
+    }
+
     // 2. Top 100
     @GetMapping("/top100")
     public Mono<ResponseEntity<ApiResponse<List<AnimeResponse>>>> getTop100Anime(
@@ -41,13 +52,15 @@ public class AnimeController {
                 .map(data -> ResponseEntity.ok(ApiResponse.ok(data)));
     }
 
-    // 3. Trending(recent anime)
+    // 3. Trending(recent anime) - body serialize sẵn + ETag
     @GetMapping("/trending")
-    public Mono<ResponseEntity<ApiResponse<List<AnimeResponse>>>> getTrendingAnime(
+    public Mono<ResponseEntity<byte[]>> getTrendingAnime(
             @RequestParam(defaultValue = "1") int page,
-            @RequestParam(defaultValue = "20") int perPage) {
-        return animeService.getTrendingAnime(page, perPage)
-                .map(data -> ResponseEntity.ok(ApiResponse.ok(data)));
+            @RequestParam(defaultValue = "20") int perPage,
+            ServerHttpRequest request) {
+        return responseBodyCache.get("trending:" + page + ":" + perPage,
+                        () -> animeService.getTrendingAnime(page, perPage))
+                .map(body -> responseBodyCache.toResponse(body, request));
     }
 
     // 4. Phim lẻ
@@ -68,13 +81,15 @@ public class AnimeController {
                 .map(data -> ResponseEntity.ok(ApiResponse.ok(data)));
     }
 
-    // 6. Popular Anime
+    // 6. Popular Anime - body serialize sẵn + ETag
     @GetMapping("/popular")
-    public Mono<ResponseEntity<ApiResponse<List<AnimeResponse>>>> getPopularAnime(
+    public Mono<ResponseEntity<byte[]>> getPopularAnime(
             @RequestParam(defaultValue = "1") int page,
-            @RequestParam(defaultValue = "20") int perPage) {
-        return animeService.getPopularAnime(page, perPage)
-                .map(data -> ResponseEntity.ok(ApiResponse.ok(data)));
+            @RequestParam(defaultValue = "20") int perPage,
+            ServerHttpRequest request) {
+        return responseBodyCache.get("popular:" + page + ":" + perPage,
+                        () -> animeService.getPopularAnime(page, perPage))
+                .map(body -> responseBodyCache.toResponse(body, request));
     }
 
     // 7. Next Season Anime
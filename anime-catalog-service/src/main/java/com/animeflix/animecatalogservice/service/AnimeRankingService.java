@@ -0,0 +1,249 @@
+package com.animeflix.animecatalogservice.service;
+
+import com.animeflix.animecatalogservice.DTO.AnimeResponse;
+import com.animeflix.animecatalogservice.Entity.Anime;
+import com.animeflix.animecatalogservice.Repository.AnimeRepository;
+import com.animeflix.animecatalogservice.mapper.AnimeMapper;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * ✅ Ranked index cho các list endpoint, materialize sẵn trên Redis sau mỗi lần sync
+ *
+ * - ZSET rank:popular / rank:score (popularity / averageScore)
+ * - ZSET rank:format:{FORMAT}:popular, rank:season:{SEASON}:{YEAR}:popular
+ * - HASH anime:summaries: id -> AnimeResponse JSON (list view)
+ *
+ * 1 trang = ZREVRANGE + 1 HMGET, mọi page size đều không chạm Mongo.
+ * Rebuild ghi vào key tạm rồi swap tất cả trong 1 Lua script => reader không bao giờ thấy index dở dang.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class AnimeRankingService {
+
+    private final AnimeRepository animeRepository;
+    private final AnimeMapper animeMapper;
+    private final ReactiveStringRedisTemplate redisTemplate;
+    private final ObjectMapper objectMapper;
+
+    public static final String POPULAR_KEY = "rank:popular";
+    public static final String SCORE_KEY = "rank:score";
+    private static final String SUMMARY_KEY = "anime:summaries";
+    // Danh sách key ranked đang live, để xóa season/format không còn anime sau rebuild
+    private static final String INDEX_KEYS = "rank:keys";
+
+    // KEYS: rank:keys, key live... | ARGV: suffix => thiếu key tạm (hết TTL) thì lỗi trước khi đụng index live
+    // Key tạm / key stale không nằm trong KEYS => chỉ chạy trên Redis standalone, không dùng được với cluster
+    private static final RedisScript<Long> SWAP_SCRIPT = RedisScript.of(
+            "for i = 2, #KEYS do " +
+                    "if redis.call('EXISTS', KEYS[i] .. ARGV[1]) == 0 then " +
+                    "return redis.error_reply('missing build key ' .. KEYS[i] .. ARGV[1]) end " +
+                    "end " +
+                    "local live = {} " +
+                    "for i = 2, #KEYS do " +
+                    "live[KEYS[i]] = true " +
+                    "redis.call('RENAME', KEYS[i] .. ARGV[1], KEYS[i]) " +
+                    "redis.call('PERSIST', KEYS[i]) " +
+                    "end " +
+                    "for _, key in ipairs(redis.call('SMEMBERS', KEYS[1])) do " +
+                    "if not live[key] then redis.call('DEL', key) end " +
+                    "end " +
+                    "redis.call('DEL', KEYS[1]) " +
+                    "for i = 2, #KEYS, 500 do redis.call('SADD', KEYS[1], unpack(KEYS, i, math.min(i + 499, #KEYS))) end " +
+                    "return #KEYS - 1",
+            Long.class);
+
+    private final AtomicBoolean rebuilding = new AtomicBoolean(false);
+
+    @Value("${app.ranking.rebuild-batch-size:500}")
+    private int rebuildBatchSize;
+
+    public static String formatKey(String format) {
+        return "rank:format:" + format + ":popular";
+    }
+
+    public static String seasonKey(String season, int year) {
+        return "rank:season:" + season + ":" + year + ":popular";
+    }
+
+    /**
+     * Lấy 1 trang từ ranked index
+     * Rỗng khi index chưa có (chưa rebuild lần nào) / Redis lỗi => caller fallback Mongo
+     *
+     * @param maxRank chỉ lấy trong top maxRank (top100), <= 0 = không giới hạn
+     */
+    public Mono<List<AnimeResponse>> page(String rankKey, int page, int perPage, int maxRank) {
+        long start = (long) Math.max(page - 1, 0) * perPage;
+        long end = start + perPage - 1;
+        if (maxRank > 0) {
+            if (start >= maxRank) {
+                return Mono.just(Collections.emptyList());
+            }
+            end = Math.min(end, maxRank - 1);
+        }
+
+        return redisTemplate.opsForZSet().reverseRange(rankKey, Range.closed(start, end))
+                .collectList()
+                .filter(ids -> !ids.isEmpty())
+                .flatMap(ids -> redisTemplate.<String, String>opsForHash().multiGet(SUMMARY_KEY, ids))
+                .map(summaries -> {
+                    List<AnimeResponse> result = new ArrayList<>(summaries.size());
+                    for (String json : summaries) {
+                        if (json == null) {
+                            continue;   // anime bị xóa giữa 2 lần rebuild
+                        }
+                        try {
+                            result.add(objectMapper.readValue(json, AnimeResponse.class));
+                        } catch (Exception e) {
+                            log.warn("Summary parse error in {}: {}", rankKey, e.getMessage());
+                        }
+                    }
+                    return result;
+                })
+                .filter(result -> !result.isEmpty())
+                .onErrorResume(e -> {
+                    log.warn("Ranked index unavailable for {}: {}", rankKey, e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Cập nhật 1 anime vào index đang live (lazy load detail), không cần đợi rebuild
+     */
+    public Mono<Void> index(Anime anime) {
+        Map<String, List<ZSetOperations.TypedTuple<String>>> tuples = new HashMap<>();
+        Map<String, String> summaries = new HashMap<>();
+        collect(anime, tuples, summaries);
+
+        if (summaries.isEmpty()) {
+            return Mono.empty();
+        }
+
+        return redisTemplate.<String, String>opsForHash().putAll(SUMMARY_KEY, summaries)
+                .thenMany(Flux.fromIterable(tuples.entrySet())
+                        .flatMap(entry -> redisTemplate.opsForZSet().addAll(entry.getKey(), entry.getValue())
+                                .then(redisTemplate.opsForSet().add(INDEX_KEYS, entry.getKey()))))
+                .then()
+                .onErrorResume(e -> {
+                    log.warn("Không thể index anime {}: {}", anime.getId(), e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Rebuild toàn bộ ranked index từ Mongo (gọi sau mỗi lần sync)
+     */
+    public Mono<Long> rebuild() {
+        if (!rebuilding.compareAndSet(false, true)) {
+            log.info("Ranked index rebuild already running, skipping");
+            return Mono.just(0L);
+        }
+
+        long startedAt = System.currentTimeMillis();
+        String suffix = ":build:" + startedAt;
+        Set<String> liveKeys = ConcurrentHashMap.newKeySet();
+
+        return animeRepository.findAllListView()
+                .buffer(rebuildBatchSize)
+                .concatMap(batch -> writeBatch(batch, suffix, liveKeys))
+                .reduce(0L, Long::sum)
+                .flatMap(count -> swap(suffix, liveKeys).thenReturn(count))
+                .doOnNext(count -> log.info("✅ Rebuilt ranked index: {} anime, {} keys in {} ms",
+                        count, liveKeys.size(), System.currentTimeMillis() - startedAt))
+                .onErrorResume(e -> {
+                    log.error("❌ Failed to rebuild ranked index", e);
+                    return Flux.fromIterable(liveKeys)
+                            .flatMap(key -> redisTemplate.delete(key + suffix))
+                            .onErrorResume(ex -> Mono.empty())
+                            .then(Mono.just(0L));
+                })
+                .doFinally(signal -> rebuilding.set(false));
+    }
+
+    private Mono<Long> writeBatch(List<Anime> batch, String suffix, Set<String> liveKeys) {
+        Map<String, List<ZSetOperations.TypedTuple<String>>> tuples = new HashMap<>();
+        Map<String, String> summaries = new HashMap<>();
+        batch.forEach(anime -> collect(anime, tuples, summaries));
+
+        if (summaries.isEmpty()) {
+            return Mono.just(0L);
+        }
+
+        liveKeys.add(SUMMARY_KEY);
+        liveKeys.addAll(tuples.keySet());
+
+        // Key tạm có TTL phòng khi instance chết giữa chừng, PERSIST lại sau khi RENAME
+        Duration buildTtl = Duration.ofHours(1);
+        return redisTemplate.<String, String>opsForHash().putAll(SUMMARY_KEY + suffix, summaries)
+                .then(redisTemplate.expire(SUMMARY_KEY + suffix, buildTtl))
+                .thenMany(Flux.fromIterable(tuples.entrySet())
+                        .flatMap(entry -> redisTemplate.opsForZSet().addAll(entry.getKey() + suffix, entry.getValue())
+                                .then(redisTemplate.expire(entry.getKey() + suffix, buildTtl))))
+                .then(Mono.just((long) summaries.size()));
+    }
+
+    /**
+     * RENAME + PERSIST key tạm, xóa key stale và thay rank:keys trong cùng 1 lệnh
+     * => reader không thấy ZSET mới đi với summaries cũ, index() chen vào không bị mất key khỏi rank:keys
+     */
+    private Mono<Void> swap(String suffix, Set<String> liveKeys) {
+        if (liveKeys.isEmpty()) {
+            return Mono.empty();
+        }
+
+        List<String> keys = new ArrayList<>(liveKeys.size() + 1);
+        keys.add(INDEX_KEYS);
+        keys.addAll(liveKeys);
+        return redisTemplate.execute(SWAP_SCRIPT, keys, List.of(suffix)).then();
+    }
+
+    private void collect(Anime anime,
+                         Map<String, List<ZSetOperations.TypedTuple<String>>> tuples,
+                         Map<String, String> summaries) {
+        if (anime.getId() == null) {
+            return;
+        }
+
+        try {
+            summaries.put(anime.getId(), objectMapper.writeValueAsString(animeMapper.toResponse(anime)));
+        } catch (Exception e) {
+            log.warn("Không thể serialize summary cho anime {}: {}", anime.getId(), e.getMessage());
+            return;
+        }
+
+        Function<String, List<ZSetOperations.TypedTuple<String>>> bucket =
+                key -> tuples.computeIfAbsent(key, k -> new ArrayList<>());
+
+        if (anime.getPopularity() != null) {
+            double popularity = anime.getPopularity();
+            bucket.apply(POPULAR_KEY).add(new DefaultTypedTuple<>(anime.getId(), popularity));
+            if (anime.getFormat() != null) {
+                bucket.apply(formatKey(anime.getFormat())).add(new DefaultTypedTuple<>(anime.getId(), popularity));
+            }
+            if (anime.getSeason() != null && anime.getSeasonYear() != null) {
+                bucket.apply(seasonKey(anime.getSeason(), anime.getSeasonYear()))
+                        .add(new DefaultTypedTuple<>(anime.getId(), popularity));
+            }
+        }
+        if (anime.getAverageScore() != null) {
+            bucket.apply(SCORE_KEY).add(new DefaultTypedTuple<>(anime.getId(), (double) anime.getAverageScore()));
+        }
+    }
+}
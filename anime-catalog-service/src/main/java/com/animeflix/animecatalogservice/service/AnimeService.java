@@ -13,11 +13,11 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
@@ -36,31 +36,39 @@ public class AnimeService {
     private final AnimeRepository animeRepository;
     private final ScheduleRepository scheduleRepository;
     private final AnimeMapper animeMapper;
-    private final StringRedisTemplate redisTemplate;
     private final ObjectMapper objectMapper;
     private final WebClient webClient;
     private final AnimeSyncService animeSyncService;
+    private final AnimeRankingService rankingService;
+    private final StaleWhileRevalidateCache swrCache;
 
-    // Helper: Logic Cache-Aside Generic
+    private static final int MAX_BATCH_SIZE = 100;
+
+    // Soft TTL: quá mốc này vẫn trả data cũ và refresh nền
+    @Value("${app.cache.list-ttl:3600}")
+    private long listTtlSeconds;
+
+    @Value("${app.cache.anime-detail-ttl:86400}")
+    private long animeDetailTtlSeconds;
+
+    // Hard TTL = soft TTL + khoảng được phép trả data stale
+    @Value("${app.cache.stale-ttl:21600}")
+    private long staleTtlSeconds;
+
+    // Helper: Logic Cache-Aside Generic (stale-while-revalidate, chống stampede khi key nóng hết hạn)
     private <T> Mono<T> getFromCacheOrDb(String key, Mono<T> dbFallback, TypeReference<T> typeRef) {
-        return Mono.justOrEmpty(redisTemplate.opsForValue().get(key))
-                .flatMap(json -> {
-                    try {
-                        return Mono.just(objectMapper.readValue(json, typeRef));
-                    } catch (Exception e) {
-                        log.warn("Cache parse error for key: {}, deleting...", key);
-                        redisTemplate.delete(key);
-                        return Mono.empty();
-                    }
-                })
-                .switchIfEmpty(dbFallback.doOnNext(data -> {
-                    try {
-                        String json = objectMapper.writeValueAsString(data);
-                        redisTemplate.opsForValue().set(key, json, Duration.ofHours(6));
-                    } catch (Exception e) {
-                        log.warn("Không thể cache vào Redis: {}", e.getMessage());
-                    }
-                }));
+        return getFromCacheOrDb(key, dbFallback, typeRef, Duration.ofSeconds(listTtlSeconds));
+    }
+
+    private <T> Mono<T> getFromCacheOrDb(String key, Mono<T> dbFallback, TypeReference<T> typeRef, Duration softTtl) {
+        return swrCache.get(key, dbFallback, typeRef, softTtl, softTtl.plusSeconds(staleTtlSeconds));
+    }
+
+    // Helper: Đọc trang từ ranked index trên Redis, index chưa có thì fallback cache-aside Mongo
+    private Mono<List<AnimeResponse>> getFromRankingOrDb(String rankKey, int page, int perPage, int maxRank,
+                                                         Mono<List<AnimeResponse>> dbFallback) {
+        return rankingService.page(rankKey, page, perPage, maxRank)
+                .switchIfEmpty(Mono.defer(() -> dbFallback));
     }
 
     // 1. Get Anime Detail (CẬP NHẬT LOGIC LAZY LOAD)
@@ -70,7 +78,7 @@ public class AnimeService {
                 Mono.defer(() -> { // Sử dụng defer để trì hoãn thực thi cho đến khi subscribe
 
                     // Bước 1: Tìm trong DB
-                    return Mono.justOrEmpty(animeRepository.findById(id))
+                    return animeRepository.findById(id)
                             .flatMap(anime -> {
                                 // Bước 2: Kiểm tra xem data có đủ Detail không?
                                 // Ví dụ: check xem list Character có null không
@@ -93,49 +101,74 @@ public class AnimeService {
                             // Bước 4: Map sang DTO
                             .map(animeMapper::toDetailResponse);
                 }),
-                new TypeReference<>() {}
+                new TypeReference<>() {},
+                Duration.ofSeconds(animeDetailTtlSeconds)
         );
     }
 
+    // 1b. Get nhiều anime theo id (1 query $in, giữ thứ tự ids, id không tồn tại bị bỏ qua)
+    public Mono<List<AnimeResponse>> getAnimeBatch(List<String> ids) {
+        List<String> distinctIds = ids.stream()
+                .map(String::trim)
+                .filter(id -> !id.isEmpty())
+                .distinct()
+                .collect(Collectors.toList());
+
+        if (distinctIds.isEmpty()) {
+            return Mono.just(Collections.emptyList());
+        }
+        if (distinctIds.size() > MAX_BATCH_SIZE) {
+            return Mono.error(new BadRequestException("Tối đa " + MAX_BATCH_SIZE + " id mỗi request"));
+        }
+
+        return animeRepository.findListViewByIdIn(distinctIds)
+                .collectMap(Anime::getId)
+                .map(byId -> distinctIds.stream()
+                        .map(byId::get)
+                        .filter(Objects::nonNull)
+                        .map(animeMapper::toResponse)
+                        .collect(Collectors.toList()));
+    }
+
     // 2. Get Popular
     public Mono<List<AnimeResponse>> getPopularAnime(int page, int perPage) {
         String key = "popular:" + page + ":" + perPage;
-        return getFromCacheOrDb(key,
-                Mono.fromCallable(() -> {
-                    Pageable pageable = PageRequest.of(page - 1, perPage, Sort.by("popularity").descending());
-                    return animeRepository.findAll(pageable).stream()
-                            .map(animeMapper::toResponse)
-                            .collect(Collectors.toList());
-                }),
-                new TypeReference<>() {}
+        Pageable pageable = PageRequest.of(page - 1, perPage, Sort.by("popularity").descending());
+        return getFromRankingOrDb(AnimeRankingService.POPULAR_KEY, page, perPage, 0,
+                getFromCacheOrDb(key,
+                        animeRepository.findListView(pageable)
+                                .map(animeMapper::toResponse)
+                                .collectList(),
+                        new TypeReference<>() {}
+                )
         );
     }
 
     // 3. Get Trending (Sắp xếp theo score hoặc logic riêng)
     public Mono<List<AnimeResponse>> getTrendingAnime(int page, int perPage) {
         String key = "trending:" + page + ":" + perPage;
-        return getFromCacheOrDb(key,
-                Mono.fromCallable(() -> {
-                    Pageable pageable = PageRequest.of(page - 1, perPage, Sort.by("averageScore").descending());
-                    return animeRepository.findAll(pageable).stream()
-                            .map(animeMapper::toResponse)
-                            .collect(Collectors.toList());
-                }),
-                new TypeReference<>() {}
+        Pageable pageable = PageRequest.of(page - 1, perPage, Sort.by("averageScore").descending());
+        return getFromRankingOrDb(AnimeRankingService.SCORE_KEY, page, perPage, 0,
+                getFromCacheOrDb(key,
+                        animeRepository.findListView(pageable)
+                                .map(animeMapper::toResponse)
+                                .collectList(),
+                        new TypeReference<>() {}
+                )
         );
     }
 
     // 4. Get Movies (Format = MOVIE)
     public Mono<List<AnimeResponse>> getPopularMovie(int page, int perPage) {
         String key = "movie:" + page + ":" + perPage;
-        return getFromCacheOrDb(key,
-                Mono.fromCallable(() -> {
-                    Pageable pageable = PageRequest.of(page - 1, perPage, Sort.by("popularity").descending());
-                    return animeRepository.findByFormat("MOVIE", pageable).stream()
-                            .map(animeMapper::toResponse)
-                            .collect(Collectors.toList());
-                }),
-                new TypeReference<>() {}
+        Pageable pageable = PageRequest.of(page - 1, perPage, Sort.by("popularity").descending());
+        return getFromRankingOrDb(AnimeRankingService.formatKey("MOVIE"), page, perPage, 0,
+                getFromCacheOrDb(key,
+                        animeRepository.findByFormat("MOVIE", pageable)
+                                .map(animeMapper::toResponse)
+                                .collectList(),
+                        new TypeReference<>() {}
+                )
         );
     }
 
@@ -148,14 +181,14 @@ public class AnimeService {
 
         String key = "season:" + season + ":" + year + ":" + page;
 
-        return getFromCacheOrDb(key,
-                Mono.fromCallable(() -> {
-                    Pageable pageable = PageRequest.of(page - 1, perPage, Sort.by("popularity").descending());
-                    return animeRepository.findBySeasonAndSeasonYear(season, year, pageable).stream()
-                            .map(animeMapper::toResponse)
-                            .collect(Collectors.toList());
-                }),
-                new TypeReference<>() {}
+        Pageable pageable = PageRequest.of(page - 1, perPage, Sort.by("popularity").descending());
+        return getFromRankingOrDb(AnimeRankingService.seasonKey(season, year), page, perPage, 0,
+                getFromCacheOrDb(key,
+                        animeRepository.findBySeasonAndSeasonYear(season, year, pageable)
+                                .map(animeMapper::toResponse)
+                                .collectList(),
+                        new TypeReference<>() {}
+                )
         );
     }
 
@@ -163,13 +196,16 @@ public class AnimeService {
 
     public Mono<List<AnimeResponse>> getTop100Anime(int page, int perPage) {
         String key = "top100:" + page;
-        return getFromCacheOrDb(key, Mono.fromCallable(() -> {
-            Pageable pageable = PageRequest.of(page - 1, perPage, Sort.by("averageScore").descending());
-            return animeRepository.findAll(pageable).getContent().stream()
-                    .map(animeMapper::toResponse)
-                    .limit(100)
-                    .collect(Collectors.toList());
-        }), new TypeReference<>() {});
+        Pageable pageable = PageRequest.of(page - 1, perPage, Sort.by("averageScore").descending());
+        return getFromRankingOrDb(AnimeRankingService.SCORE_KEY, page, perPage, 100,
+                getFromCacheOrDb(key,
+                        animeRepository.findListView(pageable)
+                                .map(animeMapper::toResponse)
+                                .take(100)
+                                .collectList(),
+                        new TypeReference<>() {}
+                )
+        );
     }
 
     // 7. Get current SeasonAnime
@@ -179,13 +215,15 @@ public class AnimeService {
         int year = (Integer) current.get("year");
         String key = "currentseason:" + season + ":" + year + ":" + page;
 
-        return getFromCacheOrDb(key, Mono.fromCallable(() -> {
-            Pageable pageable = PageRequest.of(page - 1, perPage, Sort.by("popularity").descending());
-            return animeRepository.findBySeasonAndSeasonYear(season, year, pageable)
-                    .stream()
-                    .map(animeMapper::toResponse)
-                    .collect(Collectors.toList());
-        }), new TypeReference<>() {});
+        Pageable pageable = PageRequest.of(page - 1, perPage, Sort.by("popularity").descending());
+        return getFromRankingOrDb(AnimeRankingService.seasonKey(season, year), page, perPage, 0,
+                getFromCacheOrDb(key,
+                        animeRepository.findBySeasonAndSeasonYear(season, year, pageable)
+                                .map(animeMapper::toResponse)
+                                .collectList(),
+                        new TypeReference<>() {}
+                )
+        );
     }
 
     // 8. Get next SeasonAnime
@@ -195,25 +233,29 @@ public class AnimeService {
         int year = (Integer) next.get("year");
         String key = "nextseason:" + season + ":" + year + ":" + page;
 
-        return getFromCacheOrDb(key, Mono.fromCallable(() -> {
-            Pageable pageable = PageRequest.of(page - 1, perPage, Sort.by("popularity").descending());
-            return animeRepository.findBySeasonAndSeasonYear(season, year, pageable)
-                    .stream()
-                    .map(animeMapper::toResponse)
-                    .collect(Collectors.toList());
-        }), new TypeReference<>() {});
+        Pageable pageable = PageRequest.of(page - 1, perPage, Sort.by("popularity").descending());
+        return getFromRankingOrDb(AnimeRankingService.seasonKey(season, year), page, perPage, 0,
+                getFromCacheOrDb(key,
+                        animeRepository.findBySeasonAndSeasonYear(season, year, pageable)
+                                .map(animeMapper::toResponse)
+                                .collectList(),
+                        new TypeReference<>() {}
+                )
+        );
     }
 
     // 9. Get Popular Movie Anime
     public Mono<List<AnimeResponse>> getPopularMovies(int page, int perPage) {
         String key = "movies:" + page;
-        return getFromCacheOrDb(key, Mono.fromCallable(() -> {
-            Pageable pageable = PageRequest.of(page - 1, perPage, Sort.by("popularity").descending());
-            return animeRepository.findByFormat("MOVIE", pageable)
-                    .stream()
-                    .map(animeMapper::toResponse)
-                    .collect(Collectors.toList());
-        }), new TypeReference<>() {});
+        Pageable pageable = PageRequest.of(page - 1, perPage, Sort.by("popularity").descending());
+        return getFromRankingOrDb(AnimeRankingService.formatKey("MOVIE"), page, perPage, 0,
+                getFromCacheOrDb(key,
+                        animeRepository.findByFormat("MOVIE", pageable)
+                                .map(animeMapper::toResponse)
+                                .collectList(),
+                        new TypeReference<>() {}
+                )
+        );
     }
 
     // 10. Get Schedule (Tìm các anime có tập mới trong 7 ngày tới)
@@ -221,13 +263,18 @@ public class AnimeService {
         String key = "schedule:week";
 
         return getFromCacheOrDb(key,
-                Mono.fromCallable(() -> {
+                Mono.defer(() -> {
                     long start = airingAtGreater > 0 ? airingAtGreater : Instant.now().getEpochSecond();
                     long end = Instant.now().plus(Duration.ofDays(7)).getEpochSecond();
 
-                    // Query schedules từ MongoDB
-                    List<AnimeSchedule> schedules = scheduleRepository
-                            .findByAiringAtBetweenOrderByAiringAtAsc(start, end);
+                    // Query schedules + count theo ngày từ MongoDB (chạy song song)
+                    return Mono.zip(
+                            scheduleRepository.findByAiringAtBetweenOrderByAiringAtAsc(start, end).collectList(),
+                            scheduleRepository.countByDay(start, end).collectList());
+                })
+                .map(tuple -> {
+                    List<AnimeSchedule> schedules = tuple.getT1();
+                    List<ScheduleRepository.DayCountProjection> dayCounts = tuple.getT2();
 
                     // Transform sang format response
                     List<Map<String, Object>> animes = schedules.stream()
@@ -259,10 +306,6 @@ public class AnimeService {
                             })
                             .collect(Collectors.toList());
 
-                    // Count by day using aggregation
-                    List<ScheduleRepository.DayCountProjection> dayCounts =
-                            scheduleRepository.countByDay(start, end);
-
                     // Map to count map
                     Map<String, Long> countsMap = dayCounts.stream()
                             .collect(Collectors.toMap(
@@ -281,10 +324,11 @@ public class AnimeService {
                             ))
                             .collect(Collectors.toList());
 
-                    return Map.of(
+                    Map<String, Object> result = Map.of(
                             "days", days,
                             "animes", animes
                     );
+                    return result;
                 }),
                 new TypeReference<Map<String, Object>>() {}
         );
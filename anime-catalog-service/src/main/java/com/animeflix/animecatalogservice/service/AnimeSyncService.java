@@ -23,7 +23,6 @@ import java.time.*;
 import java.time.format.TextStyle;
 import java.util.*;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 @Service
 @RequiredArgsConstructor
@@ -34,6 +33,7 @@ public class AnimeSyncService {
     private final AnimeRepository animeRepository;
     private final ScheduleRepository scheduleRepository;
     private final ObjectMapper objectMapper;
+    private final AnimeRankingService rankingService;
 
     @EventListener(ApplicationReadyEvent.class)
     public void syncOnStartup() {
@@ -44,8 +44,6 @@ public class AnimeSyncService {
     @Scheduled(cron = "0 0 */6 * * ?")
     public void syncAllData() {
         log.info("=== START SYNC DATA ===");
-        syncFromGraphql("favourite-anime.graphql", Map.of("page", 1, "perPage", 20));
-        syncFromGraphql("popular-anime.graphql", Map.of("page", 1, "perPage", 20));
 //        syncFromGraphql("popular-movie.graphql", Map.of("page", 1, "perPage", 20));
 //        Map<String, Object> current = getCurrentSeasonAndYear();
 //        syncFromGraphql("popular-this-season.graphql", Map.of("page", 1, "perPage", 20, "season", current.get("season"), "seasonYear", current.get("year")));
@@ -54,65 +52,72 @@ public class AnimeSyncService {
 //        syncFromGraphql("seasonal-anime.graphql", Map.of("page", 1, "perPage", 20));
 //        syncFromGraphql("top-100-anime.graphql", Map.of("page", 1, "perPage", 20));
 //        syncFromGraphql("trending-anime.graphql", Map.of("page", 1, "perPage", 20));
+        Flux.concat(
+                        syncFromGraphql("favourite-anime.graphql", Map.of("page", 1, "perPage", 20)),
+                        syncFromGraphql("popular-anime.graphql", Map.of("page", 1, "perPage", 20)))
+                .reduce(0, Integer::sum)
+                // Sync xong thì materialize lại ranked index cho các list endpoint
+                .flatMap(count -> rankingService.rebuild().thenReturn(count))
+                .subscribe(count -> log.info("=== END SYNC DATA: {} anime ===", count));
         syncSchedules();
-        log.info("=== END SYNC DATA ===");
     }
 
-    public void syncFromGraphql(String filename, Map<String, Object> variables) {
-        try {
-            String query = loadGraphqlQuery(filename);
-
-            webClient.post()
-                    .bodyValue(Map.of("query", query, "variables", variables))
-                    .retrieve()
-                    .bodyToMono(JsonNode.class)
-                    .subscribe(response -> {
-                        JsonNode mediaList = response.path("data").path("Page").path("media");
-                        if (mediaList.isArray()) {
-                            List<Anime> newAnimes = new ArrayList<>();
-                            List<String> newIds = new ArrayList<>();
-
-                            for (JsonNode node : mediaList) {
-                                Anime anime = mapJsonToEntity(node);
-                                if (anime != null) {
-                                    newAnimes.add(anime);
-                                    newIds.add(anime.getId());
-                                }
-                            }
+    public Mono<Integer> syncFromGraphql(String filename, Map<String, Object> variables) {
+        return Mono.fromCallable(() -> loadGraphqlQuery(filename))
+                .flatMap(query -> webClient.post()
+                        .bodyValue(Map.of("query", query, "variables", variables))
+                        .retrieve()
+                        .bodyToMono(JsonNode.class))
+                .flatMap(response -> {
+                    JsonNode mediaList = response.path("data").path("Page").path("media");
+                    if (!mediaList.isArray()) {
+                        return Mono.just(0);
+                    }
 
-                            List<Anime> existingAnimes = animeRepository.findAllById(newIds);
-                            Map<String, Anime> existingMap = existingAnimes.stream()
-                                    .collect(Collectors.toMap(Anime::getId, Function.identity()));
-
-                            // ✅ MERGE LOGIC THÔNG MINH
-                            for (Anime newAnime : newAnimes) {
-                                Anime oldAnime = existingMap.get(newAnime.getId());
-                                if (oldAnime != null) {
-                                    // 1. Giữ lại các trường Detail nếu sync mới thiếu
-                                    if (newAnime.getCharacters() == null)
-                                        newAnime.setCharacters(oldAnime.getCharacters());
-                                    if (newAnime.getRelations() == null)
-                                        newAnime.setRelations(oldAnime.getRelations());
-                                    if (newAnime.getStudios() == null)
-                                        newAnime.setStudios(oldAnime.getStudios());
-                                    if (newAnime.getRecommendations() == null)
-                                        newAnime.setRecommendations(oldAnime.getRecommendations());
-                                    if (newAnime.getTrailer() == null)
-                                        newAnime.setTrailer(oldAnime.getTrailer());
-
-                                    // 2. ✅ MERGE TITLE - Giữ field đã có, chỉ thêm field mới
-                                    newAnime.setTitle(mergeTitles(oldAnime.getTitle(), newAnime.getTitle()));
-                                }
-                            }
+                    List<Anime> newAnimes = new ArrayList<>();
+                    List<String> newIds = new ArrayList<>();
 
-                            animeRepository.saveAll(newAnimes);
-                            log.info("Synced (Merged) {} items from {}", newAnimes.size(), filename);
+                    for (JsonNode node : mediaList) {
+                        Anime anime = mapJsonToEntity(node);
+                        if (anime != null) {
+                            newAnimes.add(anime);
+                            newIds.add(anime.getId());
                         }
-                    }, error -> log.error("Error syncing file: " + filename, error));
+                    }
 
-        } catch (Exception e) {
-            log.error("Failed to prepare sync for " + filename, e);
-        }
+                    return animeRepository.findAllById(newIds)
+                            .collectMap(Anime::getId, Function.identity())
+                            .flatMap(existingMap -> {
+                                // ✅ MERGE LOGIC THÔNG MINH
+                                for (Anime newAnime : newAnimes) {
+                                    Anime oldAnime = existingMap.get(newAnime.getId());
+                                    if (oldAnime != null) {
+                                        // 1. Giữ lại các trường Detail nếu sync mới thiếu
+                                        if (newAnime.getCharacters() == null)
+                                            newAnime.setCharacters(oldAnime.getCharacters());
+                                        if (newAnime.getRelations() == null)
+                                            newAnime.setRelations(oldAnime.getRelations());
+                                        if (newAnime.getStudios() == null)
+                                            newAnime.setStudios(oldAnime.getStudios());
+                                        if (newAnime.getRecommendations() == null)
+                                            newAnime.setRecommendations(oldAnime.getRecommendations());
+                                        if (newAnime.getTrailer() == null)
+                                            newAnime.setTrailer(oldAnime.getTrailer());
+
+                                        // 2. ✅ MERGE TITLE - Giữ field đã có, chỉ thêm field mới
+                                        newAnime.setTitle(mergeTitles(oldAnime.getTitle(), newAnime.getTitle()));
+                                    }
+                                }
+
+                                return animeRepository.saveAll(newAnimes).count();
+                            })
+                            .map(Long::intValue)
+                            .doOnNext(count -> log.info("Synced (Merged) {} items from {}", count, filename));
+                })
+                .onErrorResume(error -> {
+                    log.error("Error syncing file: " + filename, error);
+                    return Mono.just(0);
+                });
     }
 
     // ✅ HÀM MERGE TITLE THÔNG MINH
@@ -143,13 +148,14 @@ public class AnimeSyncService {
                 .flatMap(anime -> {
                     if (anime != null) {
                         // ✅ MERGE với data cũ trước khi save
-                        return Mono.justOrEmpty(animeRepository.findById(anime.getId()))
+                        return animeRepository.findById(anime.getId())
                                 .map(oldAnime -> {
                                     anime.setTitle(mergeTitles(oldAnime.getTitle(), anime.getTitle()));
                                     return anime;
                                 })
                                 .defaultIfEmpty(anime)
-                                .map(animeRepository::save);
+                                .flatMap(animeRepository::save)
+                                .flatMap(saved -> rankingService.index(saved).thenReturn(saved));
                     }
                     return Mono.empty();
                 });
@@ -239,18 +245,21 @@ public class AnimeSyncService {
                         }
                         return Flux.fromIterable(schedules);
                     })
+                    // Check tồn tại để tránh duplicate
+                    .filterWhen(schedule -> scheduleRepository
+                            .existsByAnimeIdAndEpisode(schedule.getAnimeId(), schedule.getEpisode())
+                            .map(exists -> !exists))
                     .collectList()
-                    .doOnNext(allSchedules -> {
-                        if (!allSchedules.isEmpty()) {
-                            // Xóa schedules cũ
-                            scheduleRepository.deleteByAiringAtLessThan(start);
-
-                            // Save tất cả schedules mới
-                            List<AnimeSchedule> saved = scheduleRepository.saveAll(allSchedules);
-                            log.info("✅ Synced {} schedules successfully", saved.size());
-                        } else {
+                    .flatMap(allSchedules -> {
+                        if (allSchedules.isEmpty()) {
                             log.warn("⚠️ No schedules found");
+                            return Mono.empty();
                         }
+
+                        // Xóa schedules cũ, rồi save tất cả schedules mới
+                        return scheduleRepository.deleteByAiringAtLessThan(start)
+                                .then(scheduleRepository.saveAll(allSchedules).count())
+                                .doOnNext(saved -> log.info("✅ Synced {} schedules successfully", saved));
                     })
                     .doOnError(error -> log.error("❌ Error syncing schedules", error))
                     .subscribe();  // Subscribe để trigger execution
@@ -285,11 +294,6 @@ public class AnimeSyncService {
             String animeId = mediaNode.path("id").asText();
             Integer episode = node.path("episode").asInt();
 
-            // Check tồn tại để tránh duplicate
-            if (scheduleRepository.existsByAnimeIdAndEpisode(animeId, episode)) {
-                return null;  // Skip nếu đã có
-            }
-
             // Parse title
             Anime.Title title = new Anime.Title();
             JsonNode titleNode = mediaNode.path("title");
@@ -0,0 +1,183 @@
+package com.animeflix.animecatalogservice.service;
+
+import com.animeflix.animecatalogservice.exception.ApiResponse;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * ✅ Cache body HTTP đã serialize sẵn (byte[] + gzip + ETag) cho các endpoint nóng
+ *
+ * Cache hit không qua Jackson: byte[] được ByteArrayEncoder wrap thẳng vào DataBuffer.
+ * ETag riêng cho từng encoding (bản gzip thêm hậu tố -gzip) vì 2 bản khác nhau từng byte.
+ * If-None-Match khớp ETag của bản sẽ trả => 304 không body.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ResponseBodyCache {
+
+    private final ObjectMapper objectMapper;
+
+    private final Map<String, CachedBody> bodies = new ConcurrentHashMap<>();
+    // key -> lần build đang chạy
+    private final Map<String, Mono<CachedBody>> inFlight = new ConcurrentHashMap<>();
+
+    @Value("${app.response-cache.ttl-seconds:30}")
+    private long ttlSeconds;
+
+    @Value("${app.response-cache.max-entries:1000}")
+    private int maxEntries;
+
+    /**
+     * Lấy body đã serialize của key, hết hạn thì build lại từ loader (single-flight)
+     */
+    public Mono<CachedBody> get(String key, Supplier<Mono<?>> loader) {
+        CachedBody cached = bodies.get(key);
+        if (cached != null && cached.expiresAt() > System.currentTimeMillis()) {
+            return Mono.just(cached);
+        }
+
+        return inFlight.computeIfAbsent(key, k -> {
+            // remove(key, value): lần build đã xong không được gỡ lần build mới hơn của cùng key
+            AtomicReference<Mono<CachedBody>> self = new AtomicReference<>();
+            Mono<CachedBody> shared = loader.get()
+                    .flatMap(data -> Mono.fromCallable(() -> build(data)))
+                    .doOnNext(body -> {
+                        // Quá nhiều key (page/perPage lạ) thì vẫn trả nhưng không giữ lại
+                        if (bodies.size() < maxEntries || bodies.containsKey(key)) {
+                            bodies.put(key, body);
+                        }
+                    })
+                    .doFinally(signal -> inFlight.remove(key, self.get()))
+                    .cache();
+            self.set(shared);
+            return shared;
+        });
+    }
+
+    /**
+     * Dựng response từ body đã cache: 304 nếu ETag khớp, gzip nếu client hỗ trợ
+     */
+    public ResponseEntity<byte[]> toResponse(CachedBody body, ServerHttpRequest request) {
+        HttpHeaders requestHeaders = request.getHeaders();
+
+        boolean gzip = acceptsGzip(requestHeaders.get(HttpHeaders.ACCEPT_ENCODING));
+        String etag = gzip ? body.gzipEtag() : body.etag();
+
+        boolean notModified = requestHeaders.getIfNoneMatch().stream()
+                .map(tag -> tag.startsWith("W/") ? tag.substring(2) : tag)
+                .anyMatch(tag -> tag.equals(etag) || tag.equals("*"));
+        if (notModified) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(etag)
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                    .build();
+        }
+
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .eTag(etag)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            builder.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return builder.body(gzip ? body.gzipBody() : body.body());
+    }
+
+    /**
+     * Client nhận gzip không, theo q-value (RFC 9110): "gzip;q=0" là từ chối,
+     * "*" áp dụng khi không nhắc gzip, không có header => trả bản gốc
+     */
+    static boolean acceptsGzip(List<String> acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        Double gzipQ = null;
+        Double wildcardQ = null;
+        for (String header : acceptEncoding) {
+            for (String part : header.split(",")) {
+                String[] params = part.trim().split(";");
+                String coding = params[0].trim().toLowerCase(Locale.ROOT);
+                double q = qValue(params);
+                if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                    gzipQ = gzipQ == null ? q : Math.max(gzipQ, q);
+                } else if (coding.equals("*")) {
+                    wildcardQ = q;
+                }
+            }
+        }
+
+        if (gzipQ != null) {
+            return gzipQ > 0;
+        }
+        return wildcardQ != null && wildcardQ > 0;
+    }
+
+    private static double qValue(String[] params) {
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+            if (param.length() > 2 && (param.charAt(0) == 'q' || param.charAt(0) == 'Q') && param.charAt(1) == '=') {
+                try {
+                    return Double.parseDouble(param.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;   // q sai format => coi như không nhận
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Dọn các body hết hạn
+     */
+    @Scheduled(fixedDelay = 60_000)
+    public void evictExpired() {
+        long now = System.currentTimeMillis();
+        bodies.values().removeIf(body -> body.expiresAt() <= now);
+    }
+
+    private CachedBody build(Object data) throws Exception {
+        // ETag theo data (không tính timestamp của ApiResponse) => data không đổi thì ETag không đổi
+        String etag = "\"" + DigestUtils.md5DigestAsHex(objectMapper.writeValueAsBytes(data)) + "\"";
+        byte[] body = objectMapper.writeValueAsBytes(ApiResponse.ok(data));
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(body);
+        }
+
+        return new CachedBody(body, compressed.toByteArray(), etag,
+                System.currentTimeMillis() + ttlSeconds * 1000);
+    }
+
+    public record CachedBody(byte[] body, byte[] gzipBody, String etag, long expiresAt) {
+
+        /**
+         * ETag của bản gzip: "{hash}-gzip"
+         */
+        public String gzipEtag() {
+            return etag.substring(0, etag.length() - 1) + "-gzip\"";
+        }
+    }
+}
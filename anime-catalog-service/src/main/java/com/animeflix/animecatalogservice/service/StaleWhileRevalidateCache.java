@@ -0,0 +1,139 @@
+package com.animeflix.animecatalogservice.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ✅ Cache-aside có soft/hard expiry (stale-while-revalidate) + chống stampede
+ *
+ * - Value trên Redis: "{softExpiresAtMillis}|{json}", TTL của key = hard expiry
+ * - Còn hạn soft: trả luôn
+ * - Quá hạn soft: trả data cũ ngay, refresh nền 1 lần (single-flight trong process + lock Redis giữa các instance)
+ * - Miss: các request cùng key trong process dùng chung 1 lần load
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class StaleWhileRevalidateCache {
+
+    private final ReactiveStringRedisTemplate redisTemplate;
+    private final ObjectMapper objectMapper;
+
+    private static final String LOCK_PREFIX = "lock:";
+
+    // Chỉ xóa lock khi vẫn là của mình (lock có thể đã hết hạn và bị instance khác lấy)
+    private static final RedisScript<Long> UNLOCK_SCRIPT = RedisScript.of(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) end return 0",
+            Long.class);
+
+    // key -> lần load đang chạy
+    private final Map<String, Mono<?>> inFlight = new ConcurrentHashMap<>();
+
+    @Value("${app.cache.refresh-lock-ms:30000}")
+    private long refreshLockMs;
+
+    /**
+     * Đọc key, hết hạn soft thì trả stale + refresh nền, miss thì load (single-flight) rồi cache
+     *
+     * @param loader  nguồn dữ liệu (phải subscribe lại được), rỗng thì không cache
+     * @param softTtl sau mốc này data bị coi là stale
+     * @param hardTtl TTL của key trên Redis (>= softTtl)
+     */
+    public <T> Mono<T> get(String key, Mono<T> loader, TypeReference<T> typeRef, Duration softTtl, Duration hardTtl) {
+        return redisTemplate.opsForValue().get(key)
+                .onErrorResume(e -> {
+                    log.warn("Redis unavailable for key: {}, falling back to DB: {}", key, e.getMessage());
+                    return Mono.empty();
+                })
+                .flatMap(raw -> decode(key, raw, typeRef))
+                .map(entry -> {
+                    if (entry.softExpiresAt() <= System.currentTimeMillis()) {
+                        refreshInBackground(key, loader, softTtl, hardTtl);
+                    }
+                    return entry.value();
+                })
+                .switchIfEmpty(Mono.defer(() -> load(key, loader, softTtl, hardTtl)));
+    }
+
+    private <T> Mono<Entry<T>> decode(String key, String raw, TypeReference<T> typeRef) {
+        return Mono.fromCallable(() -> {
+                    int separator = raw.indexOf('|');
+                    long softExpiresAt = Long.parseLong(raw.substring(0, separator));
+                    T value = objectMapper.readValue(raw.substring(separator + 1), typeRef);
+                    return new Entry<>(value, softExpiresAt);
+                })
+                .onErrorResume(e -> {
+                    // Value hỏng hoặc format cũ (JSON trần) => xóa, load lại
+                    log.warn("Cache parse error for key: {}, deleting...", key);
+                    return redisTemplate.delete(key)
+                            .onErrorResume(ex -> Mono.empty())
+                            .then(Mono.empty());
+                });
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Mono<T> load(String key, Mono<T> loader, Duration softTtl, Duration hardTtl) {
+        return (Mono<T>) inFlight.computeIfAbsent(key, k -> {
+            // remove(key, value): lần load đã xong không được gỡ lần load mới hơn của cùng key
+            AtomicReference<Mono<T>> self = new AtomicReference<>();
+            Mono<T> shared = loader
+                    .flatMap(data -> write(key, data, softTtl, hardTtl).thenReturn(data))
+                    .doFinally(signal -> inFlight.remove(key, self.get()))
+                    .cache();
+            self.set(shared);
+            return shared;
+        });
+    }
+
+    private <T> void refreshInBackground(String key, Mono<T> loader, Duration softTtl, Duration hardTtl) {
+        if (inFlight.containsKey(key)) {
+            return;
+        }
+
+        String token = UUID.randomUUID().toString();
+        String lockKey = LOCK_PREFIX + key;
+
+        redisTemplate.opsForValue().setIfAbsent(lockKey, token, Duration.ofMillis(refreshLockMs))
+                .filter(Boolean::booleanValue)
+                .flatMap(acquired -> {
+                    log.debug("Refreshing stale cache key: {}", key);
+                    return load(key, loader, softTtl, hardTtl)
+                            .then()
+                            .onErrorResume(e -> {
+                                // Giữ data stale tới hard expiry
+                                log.warn("Background refresh failed for key: {}: {}", key, e.getMessage());
+                                return Mono.empty();
+                            })
+                            .then(redisTemplate.execute(UNLOCK_SCRIPT, List.of(lockKey), List.of(token)).then());
+                })
+                .subscribe(null, e -> log.warn("Không thể refresh cache key: {}: {}", key, e.getMessage()));
+    }
+
+    private <T> Mono<Void> write(String key, T data, Duration softTtl, Duration hardTtl) {
+        return Mono.fromCallable(() -> (System.currentTimeMillis() + softTtl.toMillis())
+                        + "|" + objectMapper.writeValueAsString(data))
+                .flatMap(value -> redisTemplate.opsForValue().set(key, value, hardTtl))
+                .onErrorResume(e -> {
+                    log.warn("Không thể cache vào Redis: {}", e.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private record Entry<T>(T value, long softExpiresAt) {
+    }
+}
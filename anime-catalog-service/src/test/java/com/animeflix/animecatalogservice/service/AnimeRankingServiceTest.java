@@ -0,0 +1,166 @@
+package com.animeflix.animecatalogservice.service;
+
+import com.animeflix.animecatalogservice.DTO.AnimeResponse;
+import com.animeflix.animecatalogservice.Entity.Anime;
+import com.animeflix.animecatalogservice.Repository.AnimeRepository;
+import com.animeflix.animecatalogservice.mapper.AnimeMapper;
+import com.animeflix.animecatalogservice.support.RedisContainerTest;
+import com.animeflix.animecatalogservice.support.TestServices;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.ScanOptions;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AnimeRankingServiceTest extends RedisContainerTest {
+
+    private final AnimeRepository animeRepository = mock(AnimeRepository.class);
+    private final AnimeMapper animeMapper = mock(AnimeMapper.class);
+
+    private AnimeRankingService rankingService;
+
+    @BeforeEach
+    void setUp() {
+        when(animeMapper.toResponse(any(Anime.class))).thenAnswer(invocation -> {
+            Anime anime = invocation.getArgument(0);
+            return AnimeResponse.builder()
+                    .id(anime.getId())
+                    .popularity(anime.getPopularity())
+                    .averageScore(anime.getAverageScore())
+                    .format(anime.getFormat())
+                    .season(anime.getSeason())
+                    .seasonYear(anime.getSeasonYear())
+                    .build();
+        });
+
+        // Batch nhỏ => rebuild ghi nhiều đợt vào key tạm
+        rankingService = TestServices.create(AnimeRankingService.class,
+                List.of(animeRepository, animeMapper, redisTemplate, new ObjectMapper()),
+                "app.ranking.rebuild-batch-size=2");
+    }
+
+    @Test
+    void rebuildMaterializesEveryRankedKey() {
+        when(animeRepository.findAllListView()).thenReturn(Flux.just(
+                anime("1", 100, 70, "TV", "WINTER", 2024),
+                anime("2", 300, 90, "TV", "SPRING", 2024),
+                anime("3", 200, 80, "MOVIE", "WINTER", 2024),
+                anime("4", 50, null, "TV", null, null),
+                anime("5", null, 60, null, null, null)));
+
+        assertThat(rankingService.rebuild().block()).isEqualTo(5L);
+
+        assertThat(ids(AnimeRankingService.POPULAR_KEY, 1, 10, 0)).containsExactly("2", "3", "1", "4");
+        assertThat(ids(AnimeRankingService.SCORE_KEY, 1, 10, 0)).containsExactly("2", "3", "1", "5");
+        assertThat(ids(AnimeRankingService.formatKey("TV"), 1, 10, 0)).containsExactly("2", "1", "4");
+        assertThat(ids(AnimeRankingService.seasonKey("WINTER", 2024), 1, 10, 0)).containsExactly("3", "1");
+    }
+
+    @Test
+    void rebuildLeavesNoTemporaryKeysAndLiveKeysDoNotExpire() {
+        when(animeRepository.findAllListView()).thenReturn(Flux.just(
+                anime("1", 100, 70, "TV", "WINTER", 2024),
+                anime("2", 300, 90, "TV", "SPRING", 2024),
+                anime("3", 200, 80, "MOVIE", "WINTER", 2024)));
+
+        rankingService.rebuild().block();
+
+        assertThat(keys("*:build:*")).isEmpty();
+        assertThat(redisTemplate.getExpire(AnimeRankingService.POPULAR_KEY).block()).isZero();
+        assertThat(redisTemplate.getExpire("anime:summaries").block()).isZero();
+    }
+
+    @Test
+    void keysWithoutAnimeAfterRebuildAreRemoved() {
+        when(animeRepository.findAllListView())
+                .thenReturn(Flux.just(
+                        anime("1", 100, 70, "TV", "WINTER", 2024),
+                        anime("2", 300, 90, "MOVIE", "SPRING", 2024)))
+                .thenReturn(Flux.just(
+                        anime("1", 100, 70, "TV", "WINTER", 2024)));
+
+        rankingService.rebuild().block();
+        rankingService.rebuild().block();
+
+        assertThat(redisTemplate.hasKey(AnimeRankingService.formatKey("MOVIE")).block()).isFalse();
+        assertThat(redisTemplate.hasKey(AnimeRankingService.seasonKey("SPRING", 2024)).block()).isFalse();
+        assertThat(ids(AnimeRankingService.POPULAR_KEY, 1, 10, 0)).containsExactly("1");
+    }
+
+    @Test
+    void failedRebuildKeepsTheLiveIndexAndCleansUpTemporaryKeys() {
+        when(animeRepository.findAllListView())
+                .thenReturn(Flux.just(
+                        anime("1", 100, 70, "TV", "WINTER", 2024),
+                        anime("2", 300, 90, "TV", "SPRING", 2024)))
+                .thenReturn(Flux.concat(
+                        Flux.just(anime("3", 999, 99, "TV", "SUMMER", 2024),
+                                anime("4", 998, 98, "TV", "SUMMER", 2024)),
+                        Flux.error(new IllegalStateException("cursor killed"))));
+
+        rankingService.rebuild().block();
+        assertThat(rankingService.rebuild().block()).isZero();
+
+        assertThat(ids(AnimeRankingService.POPULAR_KEY, 1, 10, 0)).containsExactly("2", "1");
+        assertThat(keys("*:build:*")).isEmpty();
+
+        // Lần rebuild sau không bị chặn bởi cờ rebuilding
+        when(animeRepository.findAllListView()).thenReturn(Flux.just(anime("3", 999, 99, "TV", "SUMMER", 2024)));
+        assertThat(rankingService.rebuild().block()).isEqualTo(1L);
+    }
+
+    @Test
+    void pageIsCappedAtMaxRank() {
+        when(animeRepository.findAllListView()).thenReturn(Flux.range(1, 7)
+                .map(i -> anime(String.valueOf(i), i * 10, null, null, null, null)));
+        rankingService.rebuild().block();
+
+        assertThat(ids(AnimeRankingService.POPULAR_KEY, 1, 3, 5)).containsExactly("7", "6", "5");
+        assertThat(ids(AnimeRankingService.POPULAR_KEY, 2, 3, 5)).containsExactly("4", "3");
+        assertThat(rankingService.page(AnimeRankingService.POPULAR_KEY, 3, 3, 5).block()).isEmpty();
+    }
+
+    @Test
+    void pageOfMissingIndexIsEmptySoCallerFallsBackToMongo() {
+        assertThat(rankingService.page(AnimeRankingService.POPULAR_KEY, 1, 20, 0).block()).isNull();
+    }
+
+    @Test
+    void indexAddsOneAnimeToTheLiveIndex() {
+        when(animeRepository.findAllListView()).thenReturn(Flux.just(anime("1", 100, 70, "TV", "WINTER", 2024)));
+        rankingService.rebuild().block();
+
+        rankingService.index(anime("2", 500, 95, "TV", "WINTER", 2024)).block();
+
+        assertThat(ids(AnimeRankingService.POPULAR_KEY, 1, 10, 0)).containsExactly("2", "1");
+        assertThat(ids(AnimeRankingService.seasonKey("WINTER", 2024), 1, 10, 0)).containsExactly("2", "1");
+    }
+
+    private List<String> ids(String rankKey, int page, int perPage, int maxRank) {
+        return rankingService.page(rankKey, page, perPage, maxRank).block().stream()
+                .map(AnimeResponse::getId)
+                .toList();
+    }
+
+    private List<String> keys(String pattern) {
+        return redisTemplate.scan(ScanOptions.scanOptions().match(pattern).build()).collectList().block();
+    }
+
+    private Anime anime(String id, Integer popularity, Integer averageScore, String format, String season, Integer year) {
+        return Anime.builder()
+                .id(id)
+                .popularity(popularity)
+                .averageScore(averageScore)
+                .format(format)
+                .season(season)
+                .seasonYear(year)
+                .build();
+    }
+}
@@ -2,8 +2,11 @@ package com.animeflix.userservice.config;
 
 import com.animeflix.userservice.dto.kafka.NewEpisodeEvent;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.kafka.annotation.EnableKafka;
@@ -12,7 +15,14 @@ import org.springframework.kafka.core.ConsumerFactory;
 import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
 import org.springframework.kafka.support.serializer.ErrorHandlingDeserializer;
 import org.springframework.kafka.support.serializer.JsonDeserializer;
-
+import org.springframework.kafka.support.serializer.JsonSerializer;
+import reactor.kafka.receiver.KafkaReceiver;
+import reactor.kafka.receiver.ReceiverOptions;
+import reactor.kafka.sender.KafkaSender;
+import reactor.kafka.sender.SenderOptions;
+
+import java.time.Duration;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -26,8 +36,27 @@ public class KafkaConsumerConfig {
     @Value("${spring.kafka.consumer.group-id}")
     private String groupId;
 
+    @Value("${spring.kafka.episode-consumer.concurrency:3}")
+    private int concurrency;
+
+    @Value("${spring.kafka.episode-consumer.max-poll-records:100}")
+    private int maxPollRecords;
+
+    @Value("${spring.kafka.episode-consumer.fetch-min-bytes:1}")
+    private int fetchMinBytes;
+
+    @Value("${spring.kafka.episode-consumer.flush-window-ms:500}")
+    private int flushWindowMs;
+
+    @Value("${spring.kafka.topics.new-episode}")
+    private String newEpisodeTopic;
+
     @Bean
     public ConsumerFactory<String, NewEpisodeEvent> consumerFactory() {
+        return new DefaultKafkaConsumerFactory<>(consumerProps());
+    }
+
+    private Map<String, Object> consumerProps() {
         Map<String, Object> props = new HashMap<>();
 
         // Kafka broker
@@ -50,10 +79,10 @@ public class KafkaConsumerConfig {
         props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
         props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false); // Manual commit
 
-        // Performance
-        props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, 100);
-        props.put(ConsumerConfig.FETCH_MIN_BYTES_CONFIG, 1);
-        props.put(ConsumerConfig.FETCH_MAX_WAIT_MS_CONFIG, 500);
+        // Performance - broker gom record tới fetch-min-bytes hoặc hết flush window
+        props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, maxPollRecords);
+        props.put(ConsumerConfig.FETCH_MIN_BYTES_CONFIG, fetchMinBytes);
+        props.put(ConsumerConfig.FETCH_MAX_WAIT_MS_CONFIG, flushWindowMs);
 
         // Session management
         props.put(ConsumerConfig.SESSION_TIMEOUT_MS_CONFIG, 30000);
@@ -62,7 +91,7 @@ public class KafkaConsumerConfig {
         // Client ID
         props.put(ConsumerConfig.CLIENT_ID_CONFIG, "user-service-consumer");
 
-        return new DefaultKafkaConsumerFactory<>(props);
+        return props;
     }
 
     @Bean
@@ -75,7 +104,7 @@ public class KafkaConsumerConfig {
         factory.setConsumerFactory(consumerFactory());
 
         // Concurrency - số thread xử lý đồng thời
-        factory.setConcurrency(3);
+        factory.setConcurrency(concurrency);
 
         // Batch listener
         factory.setBatchListener(false);
@@ -86,4 +115,60 @@ public class KafkaConsumerConfig {
 
         return factory;
     }
-}
\ No newline at end of file
+
+    /**
+     * Batch listener - nhận cả List record mỗi lần poll, commit offset sau khi xử lý xong cả batch
+     */
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<String, NewEpisodeEvent>
+    batchKafkaListenerContainerFactory() {
+
+        ConcurrentKafkaListenerContainerFactory<String, NewEpisodeEvent> factory =
+                new ConcurrentKafkaListenerContainerFactory<>();
+
+        factory.setConsumerFactory(consumerFactory());
+        factory.setConcurrency(concurrency);
+        factory.setBatchListener(true);
+        factory.getContainerProperties().setAckMode(
+                org.springframework.kafka.listener.ContainerProperties.AckMode.MANUAL);
+
+        return factory;
+    }
+
+    /**
+     * Reactor-Kafka receiver - chỉ tạo khi spring.kafka.episode-consumer.mode=reactive
+     * Offset được commit theo ReceiverOffset.acknowledge() sau khi xử lý xong
+     */
+    @Bean
+    @ConditionalOnProperty(name = "spring.kafka.episode-consumer.mode", havingValue = "reactive")
+    public KafkaReceiver<String, NewEpisodeEvent> newEpisodeReceiver(
+            @Value("${spring.kafka.episode-consumer.commit-interval-ms:1000}") long commitIntervalMs,
+            @Value("${spring.kafka.episode-consumer.commit-batch-size:100}") int commitBatchSize) {
+
+        Map<String, Object> props = consumerProps();
+        props.put(ConsumerConfig.CLIENT_ID_CONFIG, "user-service-reactive-consumer");
+
+        ReceiverOptions<String, NewEpisodeEvent> options = ReceiverOptions.<String, NewEpisodeEvent>create(props)
+                .subscription(Collections.singleton(newEpisodeTopic))
+                .commitInterval(Duration.ofMillis(commitIntervalMs))
+                .commitBatchSize(commitBatchSize);
+
+        return KafkaReceiver.create(options);
+    }
+
+    /**
+     * Sender cho dead-letter topic của reactive consumer (record vẫn lỗi sau khi hết retry)
+     */
+    @Bean
+    @ConditionalOnProperty(name = "spring.kafka.episode-consumer.mode", havingValue = "reactive")
+    public KafkaSender<String, NewEpisodeEvent> newEpisodeDeadLetterSender() {
+        Map<String, Object> props = new HashMap<>();
+        props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
+        props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, JsonSerializer.class);
+        props.put(ProducerConfig.ACKS_CONFIG, "all");
+        props.put(ProducerConfig.CLIENT_ID_CONFIG, "user-service-dlt-producer");
+
+        return KafkaSender.create(SenderOptions.create(props));
+    }
+}
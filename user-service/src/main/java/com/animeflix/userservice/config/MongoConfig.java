@@ -1,8 +1,10 @@
 package com.animeflix.userservice.config;
 
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.IndexOptions;
 import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Updates;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.bson.Document;
@@ -11,6 +13,7 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.mongodb.core.MongoTemplate;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 @Configuration
@@ -24,6 +27,8 @@ public class MongoConfig {
     public CommandLineRunner createMongoIndexes() {
         return args -> {
             createNotificationTTLIndex();
+            createWatchHistoryEpisodeUniqueIndex();
+            createNotificationEpisodeUniqueIndex();
             log.info("✅ MongoDB indexes created successfully");
         };
     }
@@ -51,4 +56,124 @@ public class MongoConfig {
             }
         }
     }
+
+    /**
+     * Unique {userId, aniId, epId} cho watch_history
+     * Dữ liệu cũ (trước khi upsert) có thể có nhiều dòng cho 1 tập => dọn trùng trước, rồi mới tạo index
+     */
+    private void createWatchHistoryEpisodeUniqueIndex() {
+        try {
+            MongoCollection<Document> collection = mongoTemplate.getCollection("watch_history");
+
+            // Index đã có => không thể còn dòng trùng, bỏ qua aggregate toàn collection
+            for (Document index : collection.listIndexes()) {
+                if ("user_anime_episode_unique".equals(index.getString("name"))) {
+                    log.info("ℹ️ watch_history unique index already exists");
+                    return;
+                }
+            }
+
+            long removed = dedupeWatchHistory(collection);
+            if (removed > 0) {
+                log.info("🧹 Removed {} duplicate watch_history rows", removed);
+            }
+
+            collection.createIndex(
+                    Indexes.ascending("userId", "aniId", "epId"),
+                    new IndexOptions().unique(true).name("user_anime_episode_unique")
+            );
+
+            log.info("✅ Created unique index on watch_history {userId, aniId, epId}");
+
+        } catch (Exception e) {
+            log.error("❌ Error creating watch_history unique index", e);
+        }
+    }
+
+    /**
+     * Unique {userId, animeId, episodeNumber} cho notification NEW_EPISODE (chặn trùng khi bulk insert fan-out)
+     * Trước đây chỉ chống trùng trong cửa sổ 1 giờ => dữ liệu cũ có thể trùng, dọn trước rồi mới tạo index
+     */
+    private void createNotificationEpisodeUniqueIndex() {
+        try {
+            MongoCollection<Document> collection = mongoTemplate.getCollection("notifications");
+
+            for (Document index : collection.listIndexes()) {
+                if ("user_anime_episode_unique".equals(index.getString("name"))) {
+                    log.info("ℹ️ notifications unique index already exists");
+                    return;
+                }
+            }
+
+            long removed = dedupeEpisodeNotifications(collection);
+            if (removed > 0) {
+                log.info("🧹 Removed {} duplicate episode notifications", removed);
+            }
+
+            collection.createIndex(
+                    Indexes.ascending("userId", "animeId", "episodeNumber"),
+                    new IndexOptions().unique(true).name("user_anime_episode_unique")
+                            .partialFilterExpression(Filters.eq("type", "NEW_EPISODE"))
+            );
+
+            log.info("✅ Created unique index on notifications {userId, animeId, episodeNumber}");
+
+        } catch (Exception e) {
+            log.error("❌ Error creating notifications unique index", e);
+        }
+    }
+
+    /**
+     * Giữ 1 notification cho mỗi tập: ưu tiên bản đã đọc (không hiện lại là chưa đọc), rồi bản cũ nhất
+     */
+    private long dedupeEpisodeNotifications(MongoCollection<Document> collection) {
+        List<Document> pipeline = List.of(
+                new Document("$match", new Document("type", "NEW_EPISODE")),
+                new Document("$sort", new Document("isRead", -1).append("createdAt", 1).append("_id", 1)),
+                new Document("$group", new Document("_id", new Document("userId", "$userId")
+                        .append("animeId", "$animeId")
+                        .append("episodeNumber", "$episodeNumber"))
+                        .append("ids", new Document("$push", "$_id"))
+                        .append("count", new Document("$sum", 1))),
+                new Document("$match", new Document("count", new Document("$gt", 1)))
+        );
+
+        long removed = 0;
+        for (Document group : collection.aggregate(pipeline).allowDiskUse(true)) {
+            List<Object> ids = group.getList("ids", Object.class);
+            removed += collection.deleteMany(Filters.in("_id", ids.subList(1, ids.size())))
+                    .getDeletedCount();
+        }
+        return removed;
+    }
+
+    /**
+     * Giữ dòng cập nhật mới nhất của mỗi tập (createdAt = lần xem đầu tiên), xóa các dòng còn lại
+     */
+    private long dedupeWatchHistory(MongoCollection<Document> collection) {
+        List<Document> pipeline = List.of(
+                new Document("$sort", new Document("updatedAt", -1).append("_id", -1)),
+                new Document("$group", new Document("_id", new Document("userId", "$userId")
+                        .append("aniId", "$aniId")
+                        .append("epId", "$epId"))
+                        .append("ids", new Document("$push", "$_id"))
+                        .append("firstCreatedAt", new Document("$min", "$createdAt"))
+                        .append("count", new Document("$sum", 1))),
+                new Document("$match", new Document("count", new Document("$gt", 1)))
+        );
+
+        long removed = 0;
+        for (Document group : collection.aggregate(pipeline).allowDiskUse(true)) {
+            List<Object> ids = group.getList("ids", Object.class);
+            Object keep = ids.get(0);
+
+            if (group.get("firstCreatedAt") != null) {
+                collection.updateOne(Filters.eq("_id", keep),
+                        Updates.set("createdAt", group.get("firstCreatedAt")));
+            }
+            removed += collection.deleteMany(Filters.in("_id", ids.subList(1, ids.size())))
+                    .getDeletedCount();
+        }
+        return removed;
+    }
 }
\ No newline at end of file
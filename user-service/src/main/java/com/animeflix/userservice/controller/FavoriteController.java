@@ -1,6 +1,7 @@
 package com.animeflix.userservice.controller;
 
 import com.animeflix.userservice.dto.request.AddFavoriteRequest;
+import com.animeflix.userservice.dto.response.CursorPageResponse;
 import com.animeflix.userservice.dto.response.FavoriteResponse;
 import com.animeflix.userservice.exception.ApiResponse;
 import com.animeflix.userservice.service.FavoriteService;
@@ -45,6 +46,17 @@ public class FavoriteController {
                 .map(list -> ResponseEntity.ok(ApiResponse.success(list)));
     }
 
+    @GetMapping(params = "after")
+    public Mono<ResponseEntity<ApiResponse<CursorPageResponse<FavoriteResponse>>>> getFavoritesPage(
+            @RequestParam(required = false) String after,
+            @RequestParam(defaultValue = "20") int size,
+            ServerWebExchange exchange) {
+
+        return SecurityContextUtil.getCurrentUserId(exchange)
+                .flatMap(userId -> favoriteService.getFavoritesPage(userId, after, size))
+                .map(page -> ResponseEntity.ok(ApiResponse.success(page)));
+    }
+
     @GetMapping("/check/{animeId}")
     public Mono<ResponseEntity<ApiResponse<Map<String, Boolean>>>> checkFavorite(
             @PathVariable String animeId,
@@ -1,5 +1,6 @@
 package com.animeflix.userservice.controller;
 
+import com.animeflix.userservice.dto.response.CursorPageResponse;
 import com.animeflix.userservice.dto.response.NotificationResponse;
 import com.animeflix.userservice.exception.ApiResponse;
 import com.animeflix.userservice.service.NotificationService;
@@ -32,6 +33,17 @@ public class NotificationController {
                 .map(list -> ResponseEntity.ok(ApiResponse.success(list)));
     }
 
+    @GetMapping(params = "after")
+    public Mono<ResponseEntity<ApiResponse<CursorPageResponse<NotificationResponse>>>> getNotificationsPage(
+            @RequestParam(required = false) String after,
+            @RequestParam(defaultValue = "20") int size,
+            ServerWebExchange exchange) {
+
+        return SecurityContextUtil.getCurrentUserId(exchange)
+                .flatMap(userId -> notificationService.getNotificationsPage(userId, after, size))
+                .map(page -> ResponseEntity.ok(ApiResponse.success(page)));
+    }
+
     @GetMapping("/unread")
     public Mono<ResponseEntity<ApiResponse<List<NotificationResponse>>>> getUnreadNotifications(
             ServerWebExchange exchange) {
@@ -2,6 +2,7 @@ package com.animeflix.userservice.controller;
 
 import com.animeflix.userservice.dto.response.RecommendationResponse;
 import com.animeflix.userservice.exception.ApiResponse;
+import com.animeflix.userservice.service.CoWatchRecommendationEngine;
 import com.animeflix.userservice.service.RecommendationService;
 import com.animeflix.userservice.util.SecurityContextUtil;
 import lombok.RequiredArgsConstructor;
@@ -16,6 +17,7 @@ import reactor.core.publisher.Mono;
  *
  * Endpoints:
  * - GET /api/user/recommendations - Lấy gợi ý anime dựa trên watch history
+ * - GET /api/user/recommendations/co-watch/stats - Thống kê co-watch index
  */
 @RestController
 @RequestMapping("/api/user/recommendations")
@@ -24,6 +26,7 @@ import reactor.core.publisher.Mono;
 public class RecommendationController {
 
     private final RecommendationService recommendationService;
+    private final CoWatchRecommendationEngine coWatchEngine;
 
     /**
      * Lấy danh sách anime được gợi ý cho user
@@ -82,4 +85,13 @@ public class RecommendationController {
                 .doOnError(error -> log.error("❌ Error clearing cache: {}",
                         error.getMessage()));
     }
-}
\ No newline at end of file
+
+    /**
+     * Thống kê co-watch index hiện tại (memory footprint, thời điểm build)
+     */
+    @GetMapping("/co-watch/stats")
+    public Mono<ResponseEntity<ApiResponse<CoWatchRecommendationEngine.EngineStats>>> getCoWatchStats() {
+        return Mono.fromCallable(coWatchEngine::getStats)
+                .map(stats -> ResponseEntity.ok(ApiResponse.success(stats)));
+    }
+}
@@ -1,6 +1,7 @@
 package com.animeflix.userservice.controller;
 
 import com.animeflix.userservice.dto.request.AddHistoryRequest;
+import com.animeflix.userservice.dto.response.CursorPageResponse;
 import com.animeflix.userservice.dto.response.WatchHistoryResponse;
 import com.animeflix.userservice.exception.ApiResponse;
 import com.animeflix.userservice.service.WatchHistoryService;
@@ -44,6 +45,17 @@ public class WatchHistoryController {
                 .map(list -> ResponseEntity.ok(ApiResponse.success(list)));
     }
 
+    @GetMapping(params = "after")
+    public Mono<ResponseEntity<ApiResponse<CursorPageResponse<WatchHistoryResponse>>>> getHistoryPage(
+            @RequestParam(required = false) String after,
+            @RequestParam(defaultValue = "20") int size,
+            ServerWebExchange exchange) {
+
+        return SecurityContextUtil.getCurrentUserId(exchange)
+                .flatMap(userId -> historyService.getHistoryPage(userId, after, size))
+                .map(page -> ResponseEntity.ok(ApiResponse.success(page)));
+    }
+
     @GetMapping("/anime/{aniId}")
     public Mono<ResponseEntity<ApiResponse<List<WatchHistoryResponse>>>> getHistoryByAnime(
             @PathVariable String aniId,
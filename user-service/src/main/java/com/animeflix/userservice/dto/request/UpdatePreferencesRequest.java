@@ -14,6 +14,7 @@ import java.util.List;
 public class UpdatePreferencesRequest {
     private Boolean enableNotifications;
     private Boolean notifyOnlyFavorites;
+    private String notificationDelivery;
     private Boolean notifyRecommendations;
     private Boolean autoPlayNext;
     private String preferredQuality;
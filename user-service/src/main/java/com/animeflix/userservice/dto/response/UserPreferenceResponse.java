@@ -18,6 +18,7 @@ public class UserPreferenceResponse {
     private String id;
     private Boolean enableNotifications;
     private Boolean notifyOnlyFavorites;
+    private String notificationDelivery;
     private Boolean notifyRecommendations;
     private Boolean autoPlayNext;
     private String preferredQuality;
@@ -0,0 +1,24 @@
+package com.animeflix.userservice.dto.websocket;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Envelope được publish qua Redis pub/sub giữa các node user-service
+ * userId = null => broadcast cho tất cả user
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class RoutedWebSocketMessage {
+
+    @JsonProperty("user_id")
+    private String userId;
+
+    @JsonProperty("payload")
+    private String payload;             // JSON đã serialize sẵn, gửi thẳng xuống socket
+}
@@ -0,0 +1,27 @@
+package com.animeflix.userservice.dto.websocket;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Badge count push qua WebSocket mỗi khi số thông báo chưa đọc thay đổi
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class UnreadCountMessage {
+
+    @JsonProperty("type")
+    @Builder.Default
+    private String type = "UNREAD_COUNT";
+
+    @JsonProperty("unread_count")
+    private Long unreadCount;
+
+    @JsonProperty("timestamp")
+    private Long timestamp;
+}
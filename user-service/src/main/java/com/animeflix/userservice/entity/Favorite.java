@@ -17,7 +17,9 @@ import java.time.LocalDateTime;
 @NoArgsConstructor
 @AllArgsConstructor
 @CompoundIndex(name = "user_anime_unique", def = "{'userId': 1, 'animeId': 1}", unique = true)
+@CompoundIndex(name = "user_added_cursor_idx", def = "{'userId': 1, 'addedAt': -1, '_id': -1}")
 @CompoundIndex(name = "notify_added_idx", def = "{'notifyNewEpisode': 1, 'addedAt': -1}")
+@CompoundIndex(name = "anime_notify_user_idx", def = "{'animeId': 1, 'notifyNewEpisode': 1, 'userId': 1}")
 public class Favorite {
     @Id
     private String id;
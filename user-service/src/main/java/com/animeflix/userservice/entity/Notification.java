@@ -18,7 +18,11 @@ import java.util.Date;
 @NoArgsConstructor
 @AllArgsConstructor
 @CompoundIndex(name = "user_created_idx", def = "{'userId': 1, 'createdAt': -1}")
+@CompoundIndex(name = "user_created_cursor_idx", def = "{'userId': 1, 'createdAt': -1, '_id': -1}")
 @CompoundIndex(name = "user_read_idx", def = "{'userId': 1, 'isRead': 1}")
+// user_anime_episode_unique (NEW_EPISODE) tạo trong MongoConfig sau khi dọn dữ liệu trùng cũ
+@CompoundIndex(name = "user_digest_key_unique", def = "{'userId': 1, 'digestKey': 1}",
+        unique = true, partialFilter = "{ 'type': 'EPISODE_DIGEST' }")
 public class Notification {
     @Id
     private String id;
@@ -27,7 +31,7 @@ public class Notification {
     private String userId;
 
     // Notification type
-    private NotificationType type;  // NEW_EPISODE, SYSTEM, RECOMMENDATION
+    private NotificationType type;  // NEW_EPISODE, EPISODE_DIGEST, SYSTEM, RECOMMENDATION
 
     // Content
     private String title;
@@ -38,6 +42,9 @@ public class Notification {
     private String animeId;
     private Integer episodeNumber;
 
+    // EPISODE_DIGEST: hash các tập trong digest, chống insert trùng khi flush lại
+    private String digestKey;
+
     // Action URL (deeplink)
     private String actionUrl;       // "/anime/{id}/episode/{ep}"
 
@@ -56,6 +63,7 @@ public class Notification {
 
     public enum NotificationType {
         NEW_EPISODE,        // Tập mới của anime yêu thích
+        EPISODE_DIGEST,     // Gom nhiều tập mới trong 1 cửa sổ digest
         SYSTEM,             // Thông báo hệ thống
         RECOMMENDATION,     // Gợi ý anime mới
         REMINDER            // Nhắc xem tiếp
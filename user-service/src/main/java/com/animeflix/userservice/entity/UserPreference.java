@@ -31,6 +31,9 @@ public class UserPreference {
     @Builder.Default
     private Boolean notifyOnlyFavorites = false;  // Chỉ thông báo anime yêu thích
 
+    @Builder.Default
+    private String notificationDelivery = "immediate";  // "immediate", "digest" (gom tập mới theo cửa sổ)
+
     @Builder.Default
     private Boolean notifyRecommendations = true;
 
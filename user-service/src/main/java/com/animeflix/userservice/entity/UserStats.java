@@ -0,0 +1,39 @@
+package com.animeflix.userservice.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Projection thống kê của user, cập nhật dần bằng $inc khi ghi history/favorites
+ */
+@Document(collection = "user_stats")
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class UserStats {
+    @Id
+    private String userId;              // _id = userId => point read
+
+    // ========== WATCH ==========
+    private Long totalAnimeWatched;
+    private Double totalWatchTimeSeconds;
+    private List<String> watchedAnimeIds;   // Set distinct anime ($addToSet), không trả về API
+
+    // ========== FAVORITES ==========
+    private Long favoritesCount;
+
+    // Tăng sau mỗi lần ghi => rebuild chỉ ghi đè khi không có $inc nào chen vào (compare-and-set)
+    private Long revision;
+
+    // ========== TIMESTAMPS ==========
+    private LocalDateTime updatedAt;
+    private LocalDateTime rebuiltAt;
+}
@@ -18,6 +18,8 @@ import java.time.LocalDateTime;
 @AllArgsConstructor
 @CompoundIndex(name = "user_anime_idx", def = "{'userId': 1, 'aniId': 1}")
 @CompoundIndex(name = "user_watched_idx", def = "{'userId': 1, 'createdAt': -1}")
+@CompoundIndex(name = "user_created_cursor_idx", def = "{'userId': 1, 'createdAt': -1, '_id': -1}")
+// Unique {userId, aniId, epId} tạo trong MongoConfig, sau khi dọn dòng trùng của dữ liệu cũ
 public class WatchHistory {
     @Id
     private String id;
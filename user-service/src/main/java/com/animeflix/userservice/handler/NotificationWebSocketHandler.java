@@ -1,16 +1,26 @@
 package com.animeflix.userservice.handler;
 
+import com.animeflix.userservice.dto.websocket.RoutedWebSocketMessage;
+import com.animeflix.userservice.service.WebSocketRoutingService;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.socket.WebSocketHandler;
 import org.springframework.web.reactive.socket.WebSocketMessage;
 import org.springframework.web.reactive.socket.WebSocketSession;
+import reactor.core.Disposable;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -23,13 +33,45 @@ import java.util.concurrent.ConcurrentHashMap;
 @Slf4j
 public class NotificationWebSocketHandler implements WebSocketHandler {
 
-    private final ReactiveRedisTemplate<String, String> redisTemplate;
+    private final WebSocketRoutingService routingService;
     private final ObjectMapper objectMapper = new ObjectMapper();
 
-    // Store active sessions: userId -> WebSocketSession
-    private final Map<String, WebSocketSession> activeSessions = new ConcurrentHashMap<>();
+    // Store active sessions: userId -> tất cả session của user trên node này (web, mobile, TV...)
+    private final Map<String, Set<SessionChannel>> activeSessions = new ConcurrentHashMap<>();
 
-    private static final String ONLINE_USERS_KEY = "online:users";
+    // Số message tối đa chờ gửi cho mỗi session
+    @Value("${websocket.outbound.buffer-size:256}")
+    private int outboundBufferSize;
+
+    // drop-oldest: bỏ message cũ nhất khi client chậm | disconnect: đóng session
+    @Value("${websocket.outbound.overflow-policy:drop-oldest}")
+    private String overflowPolicy;
+
+    private Disposable inboundSubscription;
+
+    /**
+     * Nhận message được node khác forward qua Redis pub/sub
+     */
+    @PostConstruct
+    void subscribeInbound() {
+        inboundSubscription = routingService.inboundMessages()
+                .subscribe(this::deliverRouted);
+    }
+
+    @PreDestroy
+    void unsubscribeInbound() {
+        if (inboundSubscription != null) {
+            inboundSubscription.dispose();
+        }
+    }
+
+    private void deliverRouted(RoutedWebSocketMessage routed) {
+        if (routed.getUserId() == null) {
+            broadcastLocal(routed.getPayload());
+        } else {
+            sendJsonToUser(routed.getUserId(), routed.getPayload());
+        }
+    }
 
     @Override
     public Mono<Void> handle(WebSocketSession session) {
@@ -40,23 +82,58 @@ public class NotificationWebSocketHandler implements WebSocketHandler {
             return session.close();
         }
 
-        log.info("👤 User {} connected via WebSocket", userId);
+        log.info("👤 User {} connected via WebSocket (session {})", userId, session.getId());
 
         // Store session
-        activeSessions.put(userId, session);
+        SessionChannel channel = new SessionChannel(session);
+        activeSessions.computeIfAbsent(userId, key -> ConcurrentHashMap.newKeySet()).add(channel);
 
-        // Mark user as online in Redis
-        return markUserOnline(userId)
-                .then(session.receive()
-                        .doOnNext(msg -> handleMessage(session, userId, msg))
-                        .then())
+        // 1 outbound stream duy nhất cho mỗi session, buffer có giới hạn
+        Mono<Void> output = session.send(channel.outbound(outboundBufferSize, overflowStrategy())
+                        .map(session::textMessage))
+                .onErrorResume(error -> {
+                    log.warn("🐢 Slow consumer, closing session {} of user {}: {}",
+                            session.getId(), userId, error.getMessage());
+                    return session.close();
+                });
+
+        Mono<Void> input = session.receive()
+                .doOnNext(msg -> handleMessage(channel, userId, msg))
+                .doFinally(signalType -> channel.complete())
+                .then();
+
+        // Mark user as online: presence:{userId} -> node này (có TTL)
+        return routingService.registerSession(userId)
+                .doOnSuccess(ok -> log.info("✅ User {} marked as online", userId))
+                .then(Mono.zip(input, output).then())
                 .doFinally(signalType -> {
-                    log.info("👤 User {} disconnected", userId);
-                    activeSessions.remove(userId);
-                    markUserOffline(userId).subscribe();
+                    log.info("👤 User {} disconnected (session {})", userId, session.getId());
+                    channel.complete();
+                    if (removeSession(userId, channel)) {
+                        // Session cuối cùng của user trên node này
+                        routingService.unregisterSession(userId)
+                                .subscribe(removed -> log.info("✅ User {} marked as offline", userId));
+                    }
                 });
     }
 
+    /**
+     * Remove session, return true if user has no more sessions on this node
+     */
+    private boolean removeSession(String userId, SessionChannel channel) {
+        Set<SessionChannel> remaining = activeSessions.computeIfPresent(userId, (key, channels) -> {
+            channels.remove(channel);
+            return channels.isEmpty() ? null : channels;
+        });
+        return remaining == null;
+    }
+
+    private BufferOverflowStrategy overflowStrategy() {
+        return "disconnect".equalsIgnoreCase(overflowPolicy)
+                ? BufferOverflowStrategy.ERROR
+                : BufferOverflowStrategy.DROP_OLDEST;
+    }
+
     /**
      * Extract userId from WebSocket handshake query params
      * Example: ws://localhost:8081/ws/notifications?userId=123
@@ -76,88 +153,119 @@ public class NotificationWebSocketHandler implements WebSocketHandler {
     /**
      * Handle incoming messages from client
      */
-    private void handleMessage(WebSocketSession session, String userId, WebSocketMessage message) {
+    private void handleMessage(SessionChannel channel, String userId, WebSocketMessage message) {
         String payload = message.getPayloadAsText();
         log.debug("📨 Received message from {}: {}", userId, payload);
 
         // Handle ping/pong or other client messages
         if ("ping".equals(payload)) {
-            sendToSession(session, "pong");
-        }
-    }
-
-    /**
-     * Send message to specific user
-     */
-    public void sendToUser(String userId, Object message) {
-        WebSocketSession session = activeSessions.get(userId);
-
-        if (session != null && session.isOpen()) {
-            try {
-                String json = objectMapper.writeValueAsString(message);
-                sendToSession(session, json);
-                log.info("📲 Notification sent to user {} via WebSocket", userId);
-            } catch (Exception e) {
-                log.error("❌ Failed to send message to user {}: {}", userId, e.getMessage());
-            }
-        } else {
-            log.debug("⏭️ User {} offline, notification stored only", userId);
+            channel.send("pong");
+            // Heartbeat => gia hạn TTL presence
+            routingService.refreshPresence(userId).subscribe();
         }
     }
 
     /**
-     * Send message to WebSocket session
+     * Check if user has a socket on this node
      */
-    private void sendToSession(WebSocketSession session, String message) {
-        session.send(Mono.just(session.textMessage(message))).subscribe();
+    public boolean hasLocalSession(String userId) {
+        Set<SessionChannel> channels = activeSessions.get(userId);
+        return channels != null && channels.stream().anyMatch(SessionChannel::isOpen);
     }
 
     /**
-     * Broadcast message to all connected users
+     * Send message to specific user (all local sessions)
      */
-    public void broadcast(Object message) {
+    public void sendToUser(String userId, Object message) {
         try {
-            String json = objectMapper.writeValueAsString(message);
-            activeSessions.values().forEach(session -> {
-                if (session.isOpen()) {
-                    sendToSession(session, json);
-                }
-            });
-            log.info("📢 Notification broadcast to {} users", activeSessions.size());
+            sendJsonToUser(userId, objectMapper.writeValueAsString(message));
         } catch (Exception e) {
-            log.error("❌ Failed to broadcast message: {}", e.getMessage());
+            log.error("❌ Failed to send message to user {}: {}", userId, e.getMessage());
+        }
+    }
+
+    private void sendJsonToUser(String userId, String json) {
+        Set<SessionChannel> channels = activeSessions.get(userId);
+
+        if (channels == null || channels.isEmpty()) {
+            log.debug("⏭️ User {} offline, notification stored only", userId);
+            return;
         }
+
+        channels.forEach(channel -> channel.send(json));
+        log.info("📲 Notification sent to user {} via WebSocket ({} sessions)", userId, channels.size());
     }
 
     /**
-     * Mark user as online in Redis
+     * Broadcast message to users connected to this node
      */
-    private Mono<Long> markUserOnline(String userId) {
-        return redisTemplate.opsForSet()
-                .add(ONLINE_USERS_KEY, userId)
-                .doOnSuccess(added -> log.info("✅ User {} marked as online", userId));
+    private void broadcastLocal(String json) {
+        activeSessions.values().forEach(channels -> channels.forEach(channel -> channel.send(json)));
+        log.info("📢 Notification broadcast to {} users", activeSessions.size());
     }
 
     /**
-     * Mark user as offline in Redis
+     * Gia hạn presence cho user đang kết nối ở node này (phòng client không ping)
+     * Node crash => không còn refresh => presence tự hết hạn theo TTL
      */
-    private Mono<Long> markUserOffline(String userId) {
-        return redisTemplate.opsForSet()
-                .remove(ONLINE_USERS_KEY, userId)
-                .doOnSuccess(removed -> log.info("✅ User {} marked as offline", userId));
+    @Scheduled(fixedDelayString = "${websocket.presence.refresh-interval-ms:30000}")
+    public void refreshLocalPresence() {
+        Flux.fromIterable(activeSessions.keySet())
+                .flatMap(routingService::refreshPresence, 64)
+                .onErrorContinue((error, userId) -> log.warn("⚠️ Failed to refresh presence of {}: {}",
+                        userId, error.getMessage()))
+                .subscribe();
     }
 
     /**
-     * Get count of online users
+     * Get count of online users (approximate)
      */
     public Mono<Long> getOnlineUsersCount() {
-        return redisTemplate.opsForSet().size(ONLINE_USERS_KEY);
+        return routingService.countOnlineUsers();
     }
 
     /**
      * Check if user is online
      */
     public Mono<Boolean> isUserOnline(String userId) {
-        return redisTemplate.opsForSet().isMember(ONLINE_USERS_KEY, userId);
+        return routingService.isUserOnline(userId);
+    }
+
+    /**
+     * WebSocket session + outbound sink riêng
+     *
+     * Mọi message của session đi qua 1 sink duy nhất, được nối vào session.send() 1 lần
+     * => giữ thứ tự, có backpressure và bộ nhớ giới hạn theo buffer-size
+     */
+    private static final class SessionChannel {
+
+        private final WebSocketSession session;
+        private final Sinks.Many<String> sink = Sinks.many().unicast().onBackpressureBuffer();
+
+        SessionChannel(WebSocketSession session) {
+            this.session = session;
+        }
+
+        Flux<String> outbound(int bufferSize, BufferOverflowStrategy strategy) {
+            return sink.asFlux()
+                    .onBackpressureBuffer(bufferSize,
+                            dropped -> log.debug("🗑️ Dropped message for session {}", session.getId()),
+                            strategy);
+        }
+
+        // Sink không cho emit đồng thời từ nhiều thread
+        synchronized void send(String message) {
+            if (session.isOpen()) {
+                sink.tryEmitNext(message);
+            }
+        }
+
+        synchronized void complete() {
+            sink.tryEmitComplete();
+        }
+
+        boolean isOpen() {
+            return session.isOpen();
+        }
     }
-}
\ No newline at end of file
+}
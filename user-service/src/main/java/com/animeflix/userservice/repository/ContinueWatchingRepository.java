@@ -17,9 +17,6 @@ public interface ContinueWatchingRepository extends ReactiveMongoRepository<Cont
     // Xóa anime khỏi continue watching - DÙNG aniId
     Mono<Void> deleteByUserIdAndAniId(String userId, String aniId);
 
-    // Đếm số anime trong continue watching
-    Mono<Long> countByUserId(String userId);
-
-    // Lấy danh sách cũ nhất (để cleanup khi vượt quá limit)
-    Flux<ContinueWatching> findByUserIdOrderByLastWatchedAtAsc(String userId);
+    // Lấy entry làm mốc cleanup (page = maxItems, size = 1 => entry thứ maxItems + 1)
+    Flux<ContinueWatching> findByUserIdOrderByLastWatchedAtDescIdDesc(String userId, Pageable pageable);
 }
\ No newline at end of file
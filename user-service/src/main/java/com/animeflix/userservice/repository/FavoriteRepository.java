@@ -1,16 +1,27 @@
 package com.animeflix.userservice.repository;
 
 import com.animeflix.userservice.entity.Favorite;
+import org.bson.types.ObjectId;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.time.LocalDateTime;
+
 public interface FavoriteRepository extends ReactiveMongoRepository<Favorite, String> {
 
     // Lấy danh sách yêu thích (phân trang)
     Flux<Favorite> findByUserIdOrderByAddedAtDesc(String userId, Pageable pageable);
 
+    // Keyset pagination (user_added_cursor_idx): trang đầu + các trang sau cursor
+    Flux<Favorite> findByUserIdOrderByAddedAtDescIdDesc(String userId, Pageable pageable);
+
+    @Query(value = "{ 'userId': ?0, $or: [ { 'addedAt': { $lt: ?1 } }, { 'addedAt': ?1, '_id': { $lt: ?2 } } ] }",
+            sort = "{ 'addedAt': -1, '_id': -1 }")
+    Flux<Favorite> findPageAfter(String userId, LocalDateTime addedAt, ObjectId id, Pageable pageable);
+
     // Lấy tất cả yêu thích (không phân trang)
     Flux<Favorite> findByUserIdOrderByAddedAtDesc(String userId);
 
@@ -21,7 +32,8 @@ public interface FavoriteRepository extends ReactiveMongoRepository<Favorite, St
     Mono<Favorite> findByUserIdAndAnimeId(String userId, String animeId);
 
     // Xóa khỏi yêu thích
-    Mono<Void> deleteByUserIdAndAnimeId(String userId, String animeId);
+    // Trả về số document đã xóa
+    Mono<Long> deleteByUserIdAndAnimeId(String userId, String animeId);
 
     // Đếm số anime yêu thích
     Mono<Long> countByUserId(String userId);
@@ -31,4 +43,10 @@ public interface FavoriteRepository extends ReactiveMongoRepository<Favorite, St
 
     // Lấy favorites có bật thông báo của user
     Flux<Favorite> findByUserIdAndNotifyNewEpisodeTrue(String userId);
+
+    // Lấy 1 trang follower (chỉ userId) của 1 anime, keyset theo userId - dùng anime_notify_user_idx
+    @Query(value = "{ 'animeId': ?0, 'notifyNewEpisode': true, 'userId': { $gt: ?1 } }",
+            fields = "{ 'userId': 1, '_id': 0 }",
+            sort = "{ 'userId': 1 }")
+    Flux<Favorite> findNotificationSubscribers(String animeId, String afterUserId, Pageable pageable);
 }
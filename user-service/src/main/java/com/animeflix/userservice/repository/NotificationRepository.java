@@ -1,7 +1,9 @@
 package com.animeflix.userservice.repository;
 
 import com.animeflix.userservice.entity.Notification;
+import org.bson.types.ObjectId;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -14,6 +16,13 @@ public interface NotificationRepository extends ReactiveMongoRepository<Notifica
     // Lấy thông báo của user (phân trang)
     Flux<Notification> findByUserIdOrderByCreatedAtDesc(String userId, Pageable pageable);
 
+    // Keyset pagination (user_created_cursor_idx): trang đầu + các trang sau cursor
+    Flux<Notification> findByUserIdOrderByCreatedAtDescIdDesc(String userId, Pageable pageable);
+
+    @Query(value = "{ 'userId': ?0, $or: [ { 'createdAt': { $lt: ?1 } }, { 'createdAt': ?1, '_id': { $lt: ?2 } } ] }",
+            sort = "{ 'createdAt': -1, '_id': -1 }")
+    Flux<Notification> findPageAfter(String userId, LocalDateTime createdAt, ObjectId id, Pageable pageable);
+
     // Lấy thông báo chưa đọc
     Flux<Notification> findByUserIdAndIsReadFalseOrderByCreatedAtDesc(String userId);
 
@@ -27,9 +36,6 @@ public interface NotificationRepository extends ReactiveMongoRepository<Notifica
             Pageable pageable
     );
 
-    // Đánh dấu tất cả là đã đọc
-    Flux<Notification> findByUserIdAndIsReadFalse(String userId);
-
     // Xóa thông báo cũ (cho scheduler cleanup)
     Mono<Void> deleteByExpiresAtBefore(Date date);
 
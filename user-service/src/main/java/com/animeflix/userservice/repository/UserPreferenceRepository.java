@@ -1,9 +1,13 @@
 package com.animeflix.userservice.repository;
 
 import com.animeflix.userservice.entity.UserPreference;
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collection;
+
 public interface UserPreferenceRepository extends ReactiveMongoRepository<UserPreference, String> {
 
     // Tìm preference của user
@@ -11,4 +15,9 @@ public interface UserPreferenceRepository extends ReactiveMongoRepository<UserPr
 
     // Xóa preference
     Mono<Void> deleteByUserId(String userId);
+
+    // Lấy cờ enableNotifications + kiểu delivery của nhiều user (chỉ project các field cần)
+    @Query(value = "{ 'userId': { $in: ?0 } }",
+            fields = "{ 'userId': 1, 'enableNotifications': 1, 'notificationDelivery': 1 }")
+    Flux<UserPreference> findNotificationFlagsByUserIdIn(Collection<String> userIds);
 }
@@ -0,0 +1,13 @@
+package com.animeflix.userservice.repository;
+
+import com.animeflix.userservice.entity.UserStats;
+import org.springframework.data.mongodb.repository.Query;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import reactor.core.publisher.Mono;
+
+public interface UserStatsRepository extends ReactiveMongoRepository<UserStats, String> {
+
+    // Point read theo _id, bỏ set watchedAnimeIds
+    @Query(value = "{ '_id': ?0 }", fields = "{ 'watchedAnimeIds': 0 }")
+    Mono<UserStats> findCountersByUserId(String userId);
+}
@@ -2,16 +2,27 @@ package com.animeflix.userservice.repository;
 
 import com.animeflix.userservice.entity.WatchHistory;
 import org.springframework.data.domain.Pageable;
+import org.bson.types.ObjectId;
 import org.springframework.data.mongodb.repository.Aggregation;
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.time.LocalDateTime;
+
 public interface WatchHistoryRepository extends ReactiveMongoRepository<WatchHistory, String> {
 
 
     Flux<WatchHistory> findByUserIdOrderByCreatedAtDesc(String userId, Pageable pageable);
 
+    // Keyset pagination (user_created_cursor_idx): trang đầu + các trang sau cursor
+    Flux<WatchHistory> findByUserIdOrderByCreatedAtDescIdDesc(String userId, Pageable pageable);
+
+    @Query(value = "{ 'userId': ?0, $or: [ { 'createdAt': { $lt: ?1 } }, { 'createdAt': ?1, '_id': { $lt: ?2 } } ] }",
+            sort = "{ 'createdAt': -1, '_id': -1 }")
+    Flux<WatchHistory> findPageAfter(String userId, LocalDateTime createdAt, ObjectId id, Pageable pageable);
+
     Flux<WatchHistory> findByUserIdAndAniIdOrderByCreatedAtDesc(String userId, String aniId);
 
     Mono<WatchHistory> findByUserIdAndAniIdAndEpId(String userId, String aniId, String epId);
@@ -27,7 +38,7 @@ public interface WatchHistoryRepository extends ReactiveMongoRepository<WatchHis
 
     Flux<WatchHistory> findByUserIdOrderByCreatedAtDesc(String userId);
 
-    Mono<Void> deleteByUserIdAndAniId(String userId, String aniId);
+    Mono<Long> deleteByUserIdAndAniId(String userId, String aniId);
 
     Mono<Void> deleteByUserId(String userId);
 
@@ -37,6 +48,12 @@ public interface WatchHistoryRepository extends ReactiveMongoRepository<WatchHis
     })
     Mono<Long> getTotalWatchedSeconds(String userId);
 
+    @Aggregation(pipeline = {
+            "{ $match: { userId: ?0, aniId: ?1 } }",
+            "{ $group: { _id: null, total: { $sum: '$timeWatched' } } }"
+    })
+    Mono<Double> getWatchedSecondsByAnime(String userId, String aniId);
+
     Flux<WatchHistory> findByUserIdAndProviderOrderByCreatedAtDesc(String userId, String provider);
 
     Flux<WatchHistory> findByUserIdAndSubtypeOrderByCreatedAtDesc(String userId, String subtype);
@@ -0,0 +1,148 @@
+package com.animeflix.userservice.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * ✅ DataLoader cho anime metadata
+ *
+ * Các lookup 1 id xảy ra gần nhau (trong window-ms) được gom lại thành 1 lệnh GET /batch?ids=...
+ * tới catalog-service. Mono trả về rỗng nếu id không tồn tại.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class AnimeBatchLoader {
+
+    @Qualifier("animeCatalogWebClient")
+    private final WebClient animeCatalogClient;
+
+    @Value("${features.anime-batch.window-ms:10}")
+    private long windowMs;
+
+    @Value("${features.anime-batch.max-batch-size:50}")
+    private int maxBatchSize;
+
+    @Value("${features.anime-batch.concurrency:4}")
+    private int batchConcurrency;
+
+    // Lookup chờ gom batch tối đa, đầy thì load() báo lỗi thay vì dồn vô hạn
+    @Value("${features.anime-batch.queue-size:8192}")
+    private int queueSize;
+
+    private Sinks.Many<PendingLoad> requests;
+    private Disposable subscription;
+
+    @PostConstruct
+    void start() {
+        // autoCancel = false: pipeline lỗi rồi subscribe lại thì sink vẫn sống, lookup mới được giữ trong buffer
+        requests = Sinks.many().multicast().onBackpressureBuffer(queueSize, false);
+
+        subscription = requests.asFlux()
+                // fair backpressure: chỉ kéo thêm lookup khi flatMap còn chỗ => không overflow khi catalog chậm
+                .bufferTimeout(maxBatchSize, Duration.ofMillis(windowMs), true)
+                .flatMap(this::dispatch, batchConcurrency)
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofMillis(100))
+                        .maxBackoff(Duration.ofSeconds(5))
+                        .doBeforeRetry(signal -> log.warn("⚠️ Anime batch loader restarting: {}",
+                                signal.failure().getMessage())))
+                .subscribe();
+    }
+
+    @PreDestroy
+    void stop() {
+        if (subscription != null) {
+            subscription.dispose();
+        }
+    }
+
+    /**
+     * Lấy node AnimeResponse của 1 anime (gom batch với các lookup đồng thời)
+     */
+    public Mono<JsonNode> load(String animeId) {
+        return Mono.defer(() -> {
+            Sinks.One<JsonNode> result = Sinks.one();
+            // Nhiều thread cùng emit => busy-loop khi đụng nhau thay vì fail
+            requests.emitNext(new PendingLoad(animeId, result),
+                    Sinks.EmitFailureHandler.busyLooping(Duration.ofMillis(100)));
+            return result.asMono();
+        });
+    }
+
+    /**
+     * Gửi 1 batch; mọi lỗi (kể cả lỗi đồng bộ) đều kết thúc các Sinks.One của batch
+     * => lookup không bị treo và pipeline chung không chết theo 1 batch lỗi
+     */
+    private Mono<Void> dispatch(List<PendingLoad> batch) {
+        return Mono.defer(() -> resolve(batch))
+                .onErrorResume(e -> {
+                    log.warn("⚠️ Anime batch dispatch failed for {} lookups: {}", batch.size(), e.getMessage());
+                    batch.forEach(pending -> pending.result().tryEmitError(e));
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Void> resolve(List<PendingLoad> batch) {
+        List<String> ids = batch.stream()
+                .map(PendingLoad::animeId)
+                .distinct()
+                .collect(Collectors.toList());
+
+        return fetchBatch(ids)
+                .doOnNext(found -> {
+                    log.debug("📦 Resolved {} of {} anime in 1 batch call ({} lookups)",
+                            found.size(), ids.size(), batch.size());
+                    batch.forEach(pending -> {
+                        JsonNode node = found.get(pending.animeId());
+                        if (node != null) {
+                            pending.result().tryEmitValue(node);
+                        } else {
+                            pending.result().tryEmitEmpty();
+                        }
+                    });
+                })
+                .onErrorResume(e -> {
+                    log.warn("⚠️ Anime batch lookup failed for {} ids: {}", ids.size(), e.getMessage());
+                    batch.forEach(pending -> pending.result().tryEmitError(e));
+                    return Mono.empty();
+                })
+                // Catalog trả body rỗng => không lookup nào còn treo (sink đã emit thì tryEmitEmpty bỏ qua)
+                .then(Mono.fromRunnable(() -> batch.forEach(pending -> pending.result().tryEmitEmpty())));
+    }
+
+    private Mono<Map<String, JsonNode>> fetchBatch(List<String> ids) {
+        return animeCatalogClient.get()
+                .uri(uriBuilder -> uriBuilder
+                        .path("/batch")
+                        .queryParam("ids", String.join(",", ids))
+                        .build())
+                .retrieve()
+                .bodyToMono(JsonNode.class)
+                .map(response -> {
+                    Map<String, JsonNode> found = new HashMap<>();
+                    response.path("data").forEach(anime -> found.put(anime.path("id").asText(), anime));
+                    return found;
+                })
+                .timeout(Duration.ofSeconds(5));
+    }
+
+    private record PendingLoad(String animeId, Sinks.One<JsonNode> result) {
+    }
+}
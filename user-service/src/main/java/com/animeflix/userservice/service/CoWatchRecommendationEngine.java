@@ -0,0 +1,400 @@
+package com.animeflix.userservice.service;
+
+import com.animeflix.userservice.entity.WatchHistory;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ✅ Item-to-item collaborative filtering theo co-watch
+ *
+ * - Rebuild (khởi động + cron hằng đêm, trên từng replica): quét watch_history theo user, đếm số user xem chung từng cặp anime,
+ *   similarity = cosine = co(a, b) / sqrt(users(a) * users(b))
+ * - Chỉ giữ top-K neighbour mỗi anime, lưu dạng CSR (int[] offsets / int[] neighbours / float[] weights)
+ * - Serving: cộng weight neighbour của các anime user vừa xem, thuần CPU trong memory
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class CoWatchRecommendationEngine {
+
+    private final ReactiveMongoTemplate mongoTemplate;
+
+    @Value("${features.recommendations.co-watch.enabled:true}")
+    private boolean enabled;
+
+    @Value("${features.recommendations.co-watch.top-k:50}")
+    private int topK;
+
+    @Value("${features.recommendations.co-watch.min-co-count:2}")
+    private int minCoCount;
+
+    @Value("${features.recommendations.co-watch.max-items-per-user:200}")
+    private int maxItemsPerUser;
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    // Single-flight cho rebuild (warm-up lúc khởi động + cron)
+    private final AtomicReference<Mono<EngineStats>> pendingRebuild = new AtomicReference<>();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        if (enabled) {
+            rebuild().subscribe();
+        }
+    }
+
+    @Scheduled(cron = "${features.recommendations.co-watch.rebuild-cron:0 0 5 * * *}")
+    public void scheduledRebuild() {
+        if (enabled) {
+            rebuild().subscribe();
+        }
+    }
+
+    /**
+     * Anime gợi ý từ các anime seed (user vừa xem), bỏ qua những anime trong exclude
+     */
+    public List<ScoredAnime> recommend(Collection<String> seedIds, Set<String> excludeIds, int limit) {
+        Snapshot current = snapshot;
+        if (current.isEmpty() || seedIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Map<Integer, float[]> scores = new HashMap<>();
+        for (String seedId : seedIds) {
+            Integer seed = current.index().get(seedId);
+            if (seed == null) {
+                continue;
+            }
+            for (int e = current.offsets()[seed]; e < current.offsets()[seed + 1]; e++) {
+                int neighbour = current.neighbours()[e];
+                scores.computeIfAbsent(neighbour, key -> new float[1])[0] += current.weights()[e];
+            }
+        }
+
+        return scores.entrySet().stream()
+                .filter(entry -> !excludeIds.contains(current.animeIds()[entry.getKey()]))
+                .sorted((a, b) -> Float.compare(b.getValue()[0], a.getValue()[0]))
+                .limit(limit)
+                .map(entry -> new ScoredAnime(current.animeIds()[entry.getKey()], entry.getValue()[0]))
+                .toList();
+    }
+
+    /**
+     * Build lại ma trận từ watch_history; các lời gọi đồng thời dùng chung 1 lần build
+     */
+    public Mono<EngineStats> rebuild() {
+        // Chỉ gỡ đúng lần build này: lần build mới có thể đã được đăng ký trước khi doFinally chạy
+        AtomicReference<Mono<EngineStats>> self = new AtomicReference<>();
+        Mono<EngineStats> rebuild = Mono.defer(this::buildSnapshot)
+                .doOnNext(built -> {
+                    snapshot = built;
+                    EngineStats stats = statsOf(built);
+                    log.info("✅ Co-watch index rebuilt: {} anime, {} edges, {} users, ~{} KB in {} ms",
+                            stats.getItems(), stats.getEdges(), stats.getUsersScanned(),
+                            stats.getEstimatedBytes() / 1024, stats.getBuildMillis());
+                })
+                .map(this::statsOf)
+                .onErrorResume(e -> {
+                    log.error("❌ Failed to rebuild co-watch index: {}", e.getMessage());
+                    return Mono.just(statsOf(snapshot));
+                })
+                .doFinally(signal -> pendingRebuild.compareAndSet(self.get(), null))
+                .cache();
+        self.set(rebuild);
+
+        // Lần build đang chạy có thể vừa xong giữa get() và CAS => thử lại thay vì trả null
+        while (true) {
+            Mono<EngineStats> pending = pendingRebuild.get();
+            if (pending != null) {
+                return pending;
+            }
+            if (pendingRebuild.compareAndSet(null, rebuild)) {
+                return rebuild;
+            }
+        }
+    }
+
+    public EngineStats getStats() {
+        return statsOf(snapshot);
+    }
+
+    private Mono<Snapshot> buildSnapshot() {
+        long startedAt = System.currentTimeMillis();
+        MatrixBuilder builder = new MatrixBuilder();
+
+        // Mỗi user giữ maxItemsPerUser anime xem gần nhất: sort theo lần xem cuối rồi $push (giữ thứ tự) trước khi slice
+        Aggregation aggregation = Aggregation.newAggregation(
+                        Aggregation.group("userId", "aniId").max("updatedAt").as("lastWatchedAt"),
+                        Aggregation.sort(Sort.Direction.DESC, "lastWatchedAt"),
+                        Aggregation.group("userId").push("aniId").as("animeIds"),
+                        Aggregation.project().and("animeIds").slice(maxItemsPerUser).as("animeIds"))
+                .withOptions(AggregationOptions.builder().allowDiskUse(true).build());
+
+        return mongoTemplate.aggregate(aggregation, WatchHistory.class, Document.class)
+                .publishOn(Schedulers.boundedElastic())
+                .doOnNext(user -> builder.addUser(user.getList("animeIds", String.class)))
+                .then(Mono.fromCallable(() -> builder.build(topK, minCoCount, startedAt)));
+    }
+
+    private EngineStats statsOf(Snapshot current) {
+        return EngineStats.builder()
+                .items(current.animeIds().length)
+                .edges(current.neighbours().length)
+                .usersScanned(current.usersScanned())
+                .estimatedBytes(current.estimatedBytes())
+                .buildMillis(current.buildMillis())
+                .builtAt(current.builtAt())
+                .build();
+    }
+
+    // ========== MODEL ==========
+
+    public record ScoredAnime(String animeId, float score) {
+    }
+
+    record Snapshot(
+            String[] animeIds,
+            Map<String, Integer> index,
+            int[] offsets,
+            int[] neighbours,
+            float[] weights,
+            long usersScanned,
+            long buildMillis,
+            LocalDateTime builtAt) {
+
+        static final Snapshot EMPTY = new Snapshot(
+                new String[0], Map.of(), new int[1], new int[0], new float[0], 0, 0, null);
+
+        boolean isEmpty() {
+            return animeIds.length == 0;
+        }
+
+        /**
+         * Ước lượng footprint: mảng primitive + id string + entry của index
+         */
+        long estimatedBytes() {
+            long arrays = 4L * offsets.length + 4L * neighbours.length + 4L * weights.length;
+            long strings = 0;
+            for (String animeId : animeIds) {
+                strings += 40 + animeId.length();
+            }
+            long indexEntries = 48L * index.size();
+            return arrays + strings + indexEntries + 8L * animeIds.length;
+        }
+    }
+
+    // Snapshot metrics cho API / log
+    @lombok.Data
+    @lombok.Builder
+    public static class EngineStats {
+        private int items;
+        private int edges;
+        private long usersScanned;
+        private long estimatedBytes;
+        private long buildMillis;
+        private LocalDateTime builtAt;
+    }
+
+    // ========== BUILD ==========
+
+    /**
+     * Đếm co-occurrence trong lúc build (chỉ tồn tại trong 1 lần rebuild)
+     */
+    static final class MatrixBuilder {
+        private final Map<String, Integer> index = new HashMap<>();
+        private final List<String> animeIds = new ArrayList<>();
+        private final List<IntCounter> coCounts = new ArrayList<>();
+        private int[] userCounts = new int[1024];
+        private long usersScanned;
+
+        void addUser(List<String> watched) {
+            usersScanned++;
+            int[] items = watched.stream()
+                    .distinct()
+                    .mapToInt(this::intern)
+                    .toArray();
+
+            for (int a : items) {
+                userCounts[a]++;
+                IntCounter counter = coCounts.get(a);
+                for (int b : items) {
+                    if (a != b) {
+                        counter.increment(b);
+                    }
+                }
+            }
+        }
+
+        private int intern(String animeId) {
+            Integer existing = index.get(animeId);
+            if (existing != null) {
+                return existing;
+            }
+
+            int id = animeIds.size();
+            index.put(animeId, id);
+            animeIds.add(animeId);
+            coCounts.add(new IntCounter());
+            if (id >= userCounts.length) {
+                userCounts = Arrays.copyOf(userCounts, userCounts.length * 2);
+            }
+            return id;
+        }
+
+        Snapshot build(int k, int minCoCount, long startedAt) {
+            int n = animeIds.size();
+            int[] offsets = new int[n + 1];
+            int[] neighbours = new int[n * k];
+            float[] weights = new float[n * k];
+            int edges = 0;
+
+            int[] topIds = new int[k];
+            float[] topWeights = new float[k];
+
+            for (int a = 0; a < n; a++) {
+                offsets[a] = edges;
+                int size = selectTopK(a, k, minCoCount, topIds, topWeights);
+                sortDescending(topIds, topWeights, size);
+                System.arraycopy(topIds, 0, neighbours, edges, size);
+                System.arraycopy(topWeights, 0, weights, edges, size);
+                edges += size;
+            }
+            offsets[n] = edges;
+
+            return new Snapshot(
+                    animeIds.toArray(new String[0]),
+                    Map.copyOf(index),
+                    offsets,
+                    Arrays.copyOf(neighbours, edges),
+                    Arrays.copyOf(weights, edges),
+                    usersScanned,
+                    System.currentTimeMillis() - startedAt,
+                    LocalDateTime.now());
+        }
+
+        /**
+         * Giữ K neighbour có cosine cao nhất (thay phần tử nhỏ nhất khi đầy)
+         */
+        private int selectTopK(int a, int k, int minCoCount, int[] topIds, float[] topWeights) {
+            IntCounter counter = coCounts.get(a);
+            int size = 0;
+            int minSlot = -1;
+
+            for (int slot = 0; slot < counter.keys.length; slot++) {
+                int b = counter.keys[slot];
+                int co = counter.values[slot];
+                if (b < 0 || co < minCoCount) {
+                    continue;
+                }
+
+                float weight = (float) (co / Math.sqrt((double) userCounts[a] * userCounts[b]));
+                if (size < k) {
+                    topIds[size] = b;
+                    topWeights[size] = weight;
+                    size++;
+                    if (size == k) {
+                        minSlot = argMin(topWeights, size);
+                    }
+                } else if (weight > topWeights[minSlot]) {
+                    topIds[minSlot] = b;
+                    topWeights[minSlot] = weight;
+                    minSlot = argMin(topWeights, size);
+                }
+            }
+            return size;
+        }
+
+        private static int argMin(float[] values, int size) {
+            int min = 0;
+            for (int i = 1; i < size; i++) {
+                if (values[i] < values[min]) {
+                    min = i;
+                }
+            }
+            return min;
+        }
+
+        private static void sortDescending(int[] ids, float[] weights, int size) {
+            for (int i = 1; i < size; i++) {
+                int id = ids[i];
+                float weight = weights[i];
+                int j = i - 1;
+                while (j >= 0 && weights[j] < weight) {
+                    ids[j + 1] = ids[j];
+                    weights[j + 1] = weights[j];
+                    j--;
+                }
+                ids[j + 1] = id;
+                weights[j + 1] = weight;
+            }
+        }
+    }
+
+    /**
+     * Map int -> int open addressing (key -1 = trống), tránh boxing khi đếm cặp
+     */
+    private static final class IntCounter {
+        private int[] keys = emptyKeys(8);
+        private int[] values = new int[8];
+        private int size;
+
+        void increment(int key) {
+            if ((size + 1) * 2 > keys.length) {
+                resize();
+            }
+
+            int mask = keys.length - 1;
+            int slot = (key * 0x9E3779B9) >>> 1 & mask;
+            while (keys[slot] >= 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] < 0) {
+                keys[slot] = key;
+                size++;
+            }
+            values[slot]++;
+        }
+
+        private void resize() {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = emptyKeys(oldKeys.length * 2);
+            values = new int[oldKeys.length * 2];
+
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] < 0) {
+                    continue;
+                }
+                int slot = (oldKeys[i] * 0x9E3779B9) >>> 1 & mask;
+                while (keys[slot] >= 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+
+        private static int[] emptyKeys(int capacity) {
+            int[] keys = new int[capacity];
+            Arrays.fill(keys, -1);
+            return keys;
+        }
+    }
+}
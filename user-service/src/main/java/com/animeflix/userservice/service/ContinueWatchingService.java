@@ -8,10 +8,17 @@ import com.animeflix.userservice.repository.ContinueWatchingRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
 
 import java.time.LocalDateTime;
 
@@ -22,6 +29,10 @@ public class ContinueWatchingService {
 
     private final ContinueWatchingRepository continueRepo;
     private final ContinueWatchingMapper mapper;
+    private final ReactiveMongoTemplate mongoTemplate;
+
+    private static final FindAndModifyOptions UPSERT_RETURN_NEW =
+            FindAndModifyOptions.options().upsert(true).returnNew(true);
 
     @Value("${features.continue-watching.max-items:20}")
     private int maxItems;
@@ -37,70 +48,57 @@ public class ContinueWatchingService {
 
     /**
      * Update từ watch history (called automatically)
+     *
+     * 1 lần findAndModify(upsert) với $set/$setOnInsert thay cho find + save cả document,
+     * index unique {userId, aniId} đảm bảo không tạo trùng khi heartbeat song song
      */
     public Mono<ContinueWatching> updateFromHistory(WatchHistory history) {
         // Chỉ update nếu chưa xem xong (progress < 0.9)
-        if (history.getCompleted() ||
+        if (Boolean.TRUE.equals(history.getCompleted()) ||
                 (history.getProgress() != null && history.getProgress() >= 0.9)) {
             return removeFromContinueWatching(history.getUserId(), history.getAniId())
                     .then(Mono.empty());
         }
 
-        return continueRepo.findByUserIdAndAniId(history.getUserId(), history.getAniId())
-                .flatMap(existing -> updateExisting(existing, history))
-                .switchIfEmpty(Mono.defer(() -> createNew(history)))
-                .flatMap(continueRepo::save)
+        Query query = Query.query(Criteria.where("userId").is(history.getUserId())
+                .and("aniId").is(history.getAniId()));
+
+        return mongoTemplate.findAndModify(query, toUpsert(history), UPSERT_RETURN_NEW, ContinueWatching.class)
+                // 2 upsert cùng lúc => 1 cái dính duplicate key, chạy lại sẽ thành update
+                .retryWhen(Retry.max(1).filter(DuplicateKeyException.class::isInstance))
                 .flatMap(saved -> cleanupOldEntries(history.getUserId()).thenReturn(saved));
     }
 
-    private Mono<ContinueWatching> updateExisting(ContinueWatching existing, WatchHistory history) {
-        existing.setEpId(history.getEpId());
-        existing.setEpNum(history.getEpNum());
-        existing.setEpTitle(history.getEpTitle());
+    private Update toUpsert(WatchHistory history) {
+        LocalDateTime now = LocalDateTime.now();
+
+        Update update = new Update()
+                .set("epId", history.getEpId())
+                .set("epNum", history.getEpNum())
+                .set("epTitle", history.getEpTitle())
+
+                .set("nextepId", history.getNextepId())
+                .set("nextepNum", history.getNextepNum())
 
-        existing.setNextepId(history.getNextepId());
-        existing.setNextepNum(history.getNextepNum());
+                .set("timeWatched", history.getTimeWatched())
+                .set("duration", history.getDuration())
+                .set("progress", history.getProgress())
 
-        existing.setTimeWatched(history.getTimeWatched());
-        existing.setDuration(history.getDuration());
-        existing.setProgress(history.getProgress());
+                .set("lastWatchedAt", now)
+
+                .setOnInsert("aniTitle", history.getAniTitle())
+                .setOnInsert("image", history.getImage())
+                .setOnInsert("createdAt", now);
 
         if (history.getProvider() != null) {
-            existing.setProvider(history.getProvider());
+            update.set("provider", history.getProvider());
         }
         if (history.getSubtype() != null) {
-            existing.setSubtype(history.getSubtype());
+            update.set("subtype", history.getSubtype());
+        } else {
+            update.setOnInsert("subtype", "sub");
         }
-
-        existing.setLastWatchedAt(LocalDateTime.now());
-        return Mono.just(existing);
-    }
-
-    private Mono<ContinueWatching> createNew(WatchHistory history) {
-        return Mono.just(ContinueWatching.builder()
-                .userId(history.getUserId())
-
-                .aniId(history.getAniId())
-                .aniTitle(history.getAniTitle())
-                .image(history.getImage())
-
-                .epId(history.getEpId())
-                .epNum(history.getEpNum())
-                .epTitle(history.getEpTitle())
-
-                .nextepId(history.getNextepId())
-                .nextepNum(history.getNextepNum())
-
-                .timeWatched(history.getTimeWatched())
-                .duration(history.getDuration())
-                .progress(history.getProgress())
-
-                .provider(history.getProvider())
-                .subtype(history.getSubtype())
-
-                .lastWatchedAt(LocalDateTime.now())
-                .createdAt(LocalDateTime.now())
-                .build());
+        return update;
     }
 
     /**
@@ -112,19 +110,21 @@ public class ContinueWatchingService {
 
     /**
      * Cleanup: Giữ tối đa maxItems, xóa cái cũ nhất
+     *
+     * Luôn 2 query: lấy entry thứ (maxItems + 1) theo user_watched_idx làm mốc,
+     * rồi 1 deleteMany mọi entry cũ hơn hoặc bằng mốc (tie-break bằng _id)
      */
     private Mono<Void> cleanupOldEntries(String userId) {
-        return continueRepo.countByUserId(userId)
-                .flatMap(count -> {
-                    if (count <= maxItems) {
-                        return Mono.empty();
-                    }
-
-                    long toDelete = count - maxItems;
-                    return continueRepo.findByUserIdOrderByLastWatchedAtAsc(userId)
-                            .take(toDelete)
-                            .flatMap(continueRepo::delete)
-                            .then();
-                });
+        return continueRepo.findByUserIdOrderByLastWatchedAtDescIdDesc(userId, PageRequest.of(maxItems, 1))
+                .next()
+                .flatMap(cutoff -> mongoTemplate.remove(Query.query(Criteria.where("userId").is(userId)
+                                .orOperator(
+                                        Criteria.where("lastWatchedAt").lt(cutoff.getLastWatchedAt()),
+                                        Criteria.where("lastWatchedAt").is(cutoff.getLastWatchedAt())
+                                                .and("id").lte(cutoff.getId()))),
+                        ContinueWatching.class))
+                .doOnNext(result -> log.debug("🧹 Trimmed {} continue-watching entries for user: {}",
+                        result.getDeletedCount(), userId))
+                .then();
     }
 }
\ No newline at end of file
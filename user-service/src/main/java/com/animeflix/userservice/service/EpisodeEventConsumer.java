@@ -1,9 +1,10 @@
 package com.animeflix.userservice.service;
 
 import com.animeflix.userservice.dto.kafka.NewEpisodeEvent;
-import com.animeflix.userservice.entity.Notification;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.kafka.support.KafkaHeaders;
@@ -12,27 +13,38 @@ import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Flux;
 
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
 @Component
 @RequiredArgsConstructor
 @Slf4j
 public class EpisodeEventConsumer {
 
-    private final FavoriteService favoriteService;
-    private final NotificationService notificationService;
-    private final UserPreferenceService preferenceService;
-    private final WebSocketNotificationService webSocketService;
+    private final EpisodeFanoutService fanoutService;
+
+    @Value("${spring.kafka.episode-consumer.group-concurrency:4}")
+    private int groupConcurrency;
+
+    // Phải nhỏ hơn max.poll.interval.ms (mặc định 5 phút)
+    private static final Duration BATCH_TIMEOUT = Duration.ofMinutes(4);
 
     /**
      * Kafka listener - Process new episode events
      *
      * Consumer group: user-service-notifications
      * Topic: anime.episode.new
-     * Concurrency: 3 (configured in KafkaConsumerConfig)
+     * Concurrency: spring.kafka.episode-consumer.concurrency (configured in KafkaConsumerConfig)
+     * Active when spring.kafka.episode-consumer.mode=record
      */
     @KafkaListener(
             topics = "${spring.kafka.topics.new-episode}",
             groupId = "${spring.kafka.consumer.group-id}",
-            containerFactory = "kafkaListenerContainerFactory"
+            containerFactory = "kafkaListenerContainerFactory",
+            autoStartup = "#{'${spring.kafka.episode-consumer.mode:record}' == 'record'}"
     )
     public void handleNewEpisode(
             @Payload NewEpisodeEvent event,
@@ -47,7 +59,7 @@ public class EpisodeEventConsumer {
                 offset);
 
         try {
-            processEvent(event)
+            fanoutService.processEvent(event)
                     .doOnSuccess(count -> {
                         log.info("✅ Processed event successfully: {} notifications created", count);
                         acknowledgment.acknowledge(); // Manual commit
@@ -66,61 +78,37 @@ public class EpisodeEventConsumer {
     }
 
     /**
-     * Process event: Create notifications and push to online users
+     * Kafka batch listener - Process a whole poll at once
+     *
+     * Events are grouped by animeId so each anime is fanned out once per batch.
+     * Offsets are committed only after every group has finished; on failure the
+     * exception goes to the container error handler and the batch is redelivered.
      */
-    private reactor.core.publisher.Mono<Integer> processEvent(NewEpisodeEvent event) {
-        log.debug("🔍 Finding users following anime: {}", event.getAnimeId());
-
-        // Get users with this anime in favorites
-        return favoriteService.getFavoritesWithNotification()
-                .filter(fav -> fav.getAnimeId().equals(event.getAnimeId()))
-                .flatMap(favorite -> {
-                    // Check user preferences
-                    return preferenceService.isNotificationEnabled(favorite.getUserId())
-                            .flatMap(enabled -> {
-                                if (!enabled) {
-                                    log.debug("⏭️ Notifications disabled for user: {}",
-                                            favorite.getUserId());
-                                    return reactor.core.publisher.Mono.empty();
-                                }
+    @KafkaListener(
+            topics = "${spring.kafka.topics.new-episode}",
+            groupId = "${spring.kafka.consumer.group-id}",
+            containerFactory = "batchKafkaListenerContainerFactory",
+            autoStartup = "#{'${spring.kafka.episode-consumer.mode:record}' == 'batch'}"
+    )
+    public void handleNewEpisodeBatch(
+            List<ConsumerRecord<String, NewEpisodeEvent>> records,
+            Acknowledgment acknowledgment) {
 
-                                // Create notification
-                                return createNotification(event, favorite.getUserId())
-                                        .flatMap(notification -> {
-                                            // Push to WebSocket if user online
-                                            webSocketService.sendToUser(
-                                                    favorite.getUserId(),
-                                                    notification
-                                            );
-                                            return reactor.core.publisher.Mono.just(1);
-                                        });
-                            });
-                })
-                .reduce(0, Integer::sum)
-                .doOnNext(count -> log.info("👥 Notified {} users", count));
-    }
+        Map<String, List<NewEpisodeEvent>> eventsByAnime = records.stream()
+                .map(ConsumerRecord::value)
+                .filter(event -> event != null && event.getAnimeId() != null)
+                .collect(Collectors.groupingBy(NewEpisodeEvent::getAnimeId,
+                        LinkedHashMap::new, Collectors.toList()));
 
-    /**
-     * Create notification in MongoDB
-     */
-    private reactor.core.publisher.Mono<com.animeflix.userservice.entity.Notification>
-    createNotification(NewEpisodeEvent event, String userId) {
+        log.info("📨 Received batch of {} episode events for {} anime", records.size(), eventsByAnime.size());
 
-        String title = "New Episode Available!";
-        String message = String.format(
-                "%s - Episode %d is now available",
-                event.getAnimeTitle(),
-                event.getEpisodeNumber()
-        );
+        Integer count = Flux.fromIterable(eventsByAnime.values())
+                .flatMap(fanoutService::processAnimeEvents, groupConcurrency)
+                .reduce(0, Integer::sum)
+                .timeout(BATCH_TIMEOUT)
+                .block();
 
-        return notificationService.createNotification(
-                userId,
-                Notification.NotificationType.NEW_EPISODE,
-                title,
-                message,
-                event.getAnimeId(),
-                event.getEpisodeNumber(),
-                event.getCoverImage()
-        );
+        log.info("✅ Processed batch successfully: {} notifications created", count);
+        acknowledgment.acknowledge();
     }
 }
\ No newline at end of file
@@ -0,0 +1,83 @@
+package com.animeflix.userservice.service;
+
+import com.animeflix.userservice.dto.kafka.NewEpisodeEvent;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Fan-out new episode events to followers: create notifications and push to online users
+ * (users on digest delivery are buffered by NotificationDigestService instead)
+ *
+ * Shared by the record, batch and reactive Kafka consumers
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class EpisodeFanoutService {
+
+    private final FavoriteService favoriteService;
+    private final NotificationService notificationService;
+    private final UserPreferenceService preferenceService;
+    private final WebSocketNotificationService webSocketService;
+    private final NotificationDigestService digestService;
+
+    @Value("${features.notifications.fanout-batch-size:500}")
+    private int fanoutBatchSize;
+
+    /**
+     * Process one event
+     */
+    public Mono<Integer> processEvent(NewEpisodeEvent event) {
+        return processAnimeEvents(List.of(event));
+    }
+
+    /**
+     * Fan out all events of one anime: followers are queried once and each
+     * follower batch gets notifications for every episode in the group
+     */
+    public Mono<Integer> processAnimeEvents(List<NewEpisodeEvent> events) {
+        String animeId = events.get(0).getAnimeId();
+        log.debug("🔍 Finding users following anime: {}", animeId);
+        long startedAt = System.currentTimeMillis();
+
+        // Bỏ event trùng episode trong cùng batch
+        Collection<NewEpisodeEvent> episodes = events.stream()
+                .collect(Collectors.toMap(NewEpisodeEvent::getEpisodeNumber, event -> event,
+                        (first, duplicate) -> first, LinkedHashMap::new))
+                .values();
+
+        // Chỉ query follower của anime này (anime_notify_user_idx), xử lý từng batch
+        return favoriteService.getNotificationSubscribers(animeId, fanoutBatchSize)
+                .concatMap(userIds -> preferenceService.resolveNotificationTargets(userIds)
+                        // User chọn digest: gom vào buffer, Redis lỗi thì gửi ngay như bình thường
+                        .flatMap(targets -> digestService.enqueue(episodes, targets.getDigest())
+                                .map(fallback -> {
+                                    List<String> immediate = new ArrayList<>(targets.getImmediate());
+                                    immediate.addAll(fallback);
+                                    return immediate;
+                                }))
+                        .flatMapMany(immediateUserIds -> Flux.fromIterable(episodes)
+                                .concatMap(event -> notificationService.createEpisodeNotifications(event, immediateUserIds))))
+                // Push to WebSocket if user online (presence tra theo batch)
+                .doOnNext(result -> webSocketService.sendToUsers(result.getNotifications()))
+                .reduceWith(NotificationService.BulkNotificationResult::empty,
+                        NotificationService.BulkNotificationResult::merge)
+                .doOnNext(result -> log.info("👥 Anime {}: notified {} users for {} episode(s) ({} skipped) in {} ms",
+                        animeId,
+                        result.getInserted(),
+                        episodes.size(),
+                        result.getSkipped(),
+                        System.currentTimeMillis() - startedAt))
+                .map(NotificationService.BulkNotificationResult::getInserted);
+    }
+}
@@ -2,16 +2,40 @@ package com.animeflix.userservice.service;
 
 import com.animeflix.userservice.exception.ExternalServiceException;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
 import reactor.core.publisher.Mono;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * ✅ Anime metadata từ catalog-service, cache 2 tầng
+ *
+ * - L1: Caffeine trong process (giới hạn size, TTL, có hit/miss stats)
+ * - L2: Redis JSON anime:{id}:basic:v2, id không tồn tại lưu sentinel (negative cache, TTL ngắn)
+ * - Miss đồng thời cùng 1 id chỉ gọi L2/catalog 1 lần (single-flight),
+ *   miss của nhiều id khác nhau được AnimeBatchLoader gom thành 1 lệnh /batch
+ */
 @Service
 @RequiredArgsConstructor
 @Slf4j
@@ -21,87 +45,208 @@ public class ExternalAnimeService {
     private final WebClient animeCatalogClient;
 
     private final ReactiveRedisTemplate<String, String> redisTemplate;
+    private final AnimeBatchLoader batchLoader;
+    private final ObjectMapper objectMapper = new ObjectMapper();
 
     private static final String CACHE_PREFIX = "anime:";
-    private static final Duration CACHE_TTL = Duration.ofHours(1);
+    private static final String NOT_FOUND = "__not_found__";
+
+    @Value("${features.anime-cache.l1.max-size:10000}")
+    private long l1MaxSize;
+
+    @Value("${features.anime-cache.l1.ttl-seconds:300}")
+    private long l1TtlSeconds;
+
+    @Value("${features.anime-cache.l2.ttl-seconds:3600}")
+    private long l2TtlSeconds;
+
+    @Value("${features.anime-cache.negative-ttl-seconds:60}")
+    private long negativeTtlSeconds;
+
+    // Optional.empty() = anime không tồn tại (negative cache)
+    private Cache<String, Optional<AnimeBasicInfo>> l1Cache;
+
+    // Miss đang load: mọi request cùng id dùng chung 1 Mono
+    private final Map<String, Mono<Optional<AnimeBasicInfo>>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong l2Hits = new AtomicLong();
+    private final AtomicLong l2Misses = new AtomicLong();
+    private final AtomicLong catalogFetches = new AtomicLong();
+
+    @PostConstruct
+    void initCache() {
+        l1Cache = Caffeine.newBuilder()
+                .maximumSize(l1MaxSize)
+                .expireAfter(Expiry.<String, Optional<AnimeBasicInfo>>creating((id, value) -> value.isPresent()
+                        ? Duration.ofSeconds(l1TtlSeconds)
+                        : Duration.ofSeconds(negativeTtlSeconds)))
+                .recordStats()
+                .build();
+    }
 
     /**
      * Lấy thông tin cơ bản của anime (cho history, continue-watching)
      */
     public Mono<AnimeBasicInfo> getAnimeBasicInfo(String animeId) {
-        String cacheKey = CACHE_PREFIX + animeId + ":basic";
-
-        return redisTemplate.opsForValue().get(cacheKey)
-                .flatMap(cached -> {
-                    log.debug("Cache hit for anime basic info: {}", animeId);
-                    return parseBasicInfo(cached);
-                })
-                .switchIfEmpty(fetchAnimeBasicInfo(animeId))
-                .timeout(Duration.ofSeconds(5))
+        return loadCached(animeId)
+                .flatMap(Mono::justOrEmpty)
                 .onErrorResume(e -> {
                     log.warn("Failed to fetch anime info for {}: {}", animeId, e.getMessage());
                     return Mono.empty();
                 });
     }
 
-    private Mono<AnimeBasicInfo> fetchAnimeBasicInfo(String animeId) {
-        return animeCatalogClient.get()
-                .uri("/{id}", animeId)
-                .retrieve()
-                .bodyToMono(JsonNode.class)
-                .map(response -> {
-                    JsonNode data = response.path("data");
-                    return AnimeBasicInfo.builder()
-                            .id(data.path("id").asText())
-                            .title(data.path("title").path("userPreferred").asText())
-                            .coverImage(data.path("coverImage").path("large").asText())
-                            .bannerImage(data.path("bannerImage").asText())
-                            .totalEpisodes(data.path("episodes").asInt())
-                            .status(data.path("status").asText())
-                            .format(data.path("format").asText())
-                            .build();
+    /**
+     * Lấy chi tiết đầy đủ của anime (cho favorites)
+     */
+    public Mono<AnimeDetails> getAnimeDetails(String animeId) {
+        return loadCached(animeId)
+                .onErrorResume(e -> {
+                    log.error("Failed to fetch anime details: {}", e.getMessage());
+                    return Mono.error(new ExternalServiceException(
+                            "Failed to fetch anime details", e));
+                })
+                .flatMap(cached -> cached
+                        .map(info -> Mono.just(AnimeDetails.builder()
+                                .title(info.getTitle())
+                                .coverImage(info.getCoverImage())
+                                .bannerImage(info.getBannerImage())
+                                .status(info.getStatus())
+                                .totalEpisodes(info.getTotalEpisodes())
+                                .build()))
+                        .orElseGet(() -> Mono.error(new ExternalServiceException(
+                                "Anime not found: " + animeId))));
+    }
+
+    /**
+     * L1 -> (single-flight) L2 -> catalog
+     */
+    private Mono<Optional<AnimeBasicInfo>> loadCached(String animeId) {
+        Optional<AnimeBasicInfo> cached = l1Cache.getIfPresent(animeId);
+        if (cached != null) {
+            return Mono.just(cached);
+        }
+
+        return inFlight.computeIfAbsent(animeId, id -> {
+            // remove(key, value): không gỡ nhầm lần load mới hơn của cùng anime
+            AtomicReference<Mono<Optional<AnimeBasicInfo>>> self = new AtomicReference<>();
+            Mono<Optional<AnimeBasicInfo>> shared = loadFromRedis(id)
+                    .switchIfEmpty(Mono.defer(() -> fetchAndStore(id)))
+                    .doOnNext(value -> l1Cache.put(id, value))
+                    .doFinally(signal -> inFlight.remove(id, self.get()))
+                    .cache();
+            self.set(shared);
+            return shared;
+        });
+    }
+
+    private Mono<Optional<AnimeBasicInfo>> loadFromRedis(String animeId) {
+        return redisTemplate.opsForValue().get(cacheKey(animeId))
+                .flatMap(cached -> {
+                    if (NOT_FOUND.equals(cached)) {
+                        return Mono.just(Optional.<AnimeBasicInfo>empty());
+                    }
+                    return parseBasicInfo(cached).map(Optional::of);
                 })
-                .doOnNext(info -> {
-                    // Cache result (async)
-                    cacheAnimeInfo(CACHE_PREFIX + animeId + ":basic", info)
-                            .subscribe();
+                .doOnNext(value -> l2Hits.incrementAndGet())
+                .switchIfEmpty(Mono.fromRunnable(l2Misses::incrementAndGet))
+                // Redis lỗi thì bỏ qua L2, đi thẳng catalog
+                .onErrorResume(e -> {
+                    log.warn("Redis unavailable for anime cache: {}", e.getMessage());
+                    return Mono.empty();
                 });
     }
 
     /**
-     * Lấy chi tiết đầy đủ của anime (cho favorites)
+     * Miss cả 2 tầng: gom vào batch /batch?ids=..., id chưa có trong catalog DB
+     * thì gọi /{id} (catalog sẽ sync từ AniList)
      */
-    public Mono<AnimeDetails> getAnimeDetails(String animeId) {
+    private Mono<Optional<AnimeBasicInfo>> fetchAndStore(String animeId) {
+        catalogFetches.incrementAndGet();
+
+        return batchLoader.load(animeId)
+                .switchIfEmpty(Mono.defer(() -> fetchSingle(animeId)))
+                .map(this::toBasicInfo)
+                .map(Optional::of)
+                // 404 => anime không tồn tại, cache âm để không gọi lại liên tục
+                .onErrorResume(WebClientResponseException.NotFound.class,
+                        e -> Mono.just(Optional.empty()))
+                .defaultIfEmpty(Optional.empty())
+                .flatMap(value -> cacheAnimeInfo(animeId, value).thenReturn(value));
+    }
+
+    private Mono<JsonNode> fetchSingle(String animeId) {
         return animeCatalogClient.get()
                 .uri("/{id}", animeId)
                 .retrieve()
                 .bodyToMono(JsonNode.class)
-                .map(response -> {
-                    JsonNode data = response.path("data");
-                    return AnimeDetails.builder()
-                            .title(data.path("title").path("userPreferred").asText())
-                            .coverImage(data.path("coverImage").path("large").asText())
-                            .bannerImage(data.path("bannerImage").asText())
-                            .status(data.path("status").asText())
-                            .totalEpisodes(data.path("episodes").asInt())
-                            .build();
-                })
-                .timeout(Duration.ofSeconds(5))
+                .map(response -> response.path("data"))
+                .timeout(Duration.ofSeconds(5));
+    }
+
+    private AnimeBasicInfo toBasicInfo(JsonNode data) {
+        List<String> genres = new ArrayList<>();
+        data.path("genres").forEach(genre -> genres.add(genre.asText()));
+
+        return AnimeBasicInfo.builder()
+                .id(data.path("id").asText())
+                .title(data.path("title").path("userPreferred").asText())
+                .coverImage(data.path("coverImage").path("large").asText())
+                .bannerImage(data.path("bannerImage").asText())
+                .totalEpisodes(data.path("episodes").asInt())
+                .status(data.path("status").asText())
+                .format(data.path("format").asText())
+                .genres(genres)
+                .build();
+    }
+
+    private Mono<AnimeBasicInfo> parseBasicInfo(String json) {
+        return Mono.fromCallable(() -> objectMapper.readValue(json, AnimeBasicInfo.class))
                 .onErrorResume(e -> {
-                    log.error("Failed to fetch anime details: {}", e.getMessage());
-                    return Mono.error(new ExternalServiceException(
-                            "Failed to fetch anime details", e));
+                    log.warn("Corrupted anime cache entry, ignoring: {}", e.getMessage());
+                    return Mono.empty();
                 });
     }
 
-    private Mono<AnimeBasicInfo> parseBasicInfo(String json) {
-        // TODO: Parse JSON từ cache
-        return Mono.empty();
+    private Mono<Void> cacheAnimeInfo(String animeId, Optional<AnimeBasicInfo> info) {
+        return Mono.fromCallable(() -> info.isPresent()
+                        ? objectMapper.writeValueAsString(info.get())
+                        : NOT_FOUND)
+                .flatMap(value -> redisTemplate.opsForValue().set(cacheKey(animeId), value,
+                        Duration.ofSeconds(info.isPresent() ? l2TtlSeconds : negativeTtlSeconds)))
+                .onErrorResume(e -> {
+                    log.warn("Failed to cache anime info for {}: {}", animeId, e.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private String cacheKey(String animeId) {
+        return CACHE_PREFIX + animeId + ":basic:v2";
     }
 
-    private Mono<Void> cacheAnimeInfo(String key, AnimeBasicInfo info) {
-        // TODO: Serialize và cache
-        return Mono.empty();
+    /**
+     * Hit/miss của 2 tầng cache
+     */
+    public CacheMetrics getCacheMetrics() {
+        CacheStats l1 = l1Cache.stats();
+        return CacheMetrics.builder()
+                .l1Size(l1Cache.estimatedSize())
+                .l1Hits(l1.hitCount())
+                .l1Misses(l1.missCount())
+                .l1Evictions(l1.evictionCount())
+                .l2Hits(l2Hits.get())
+                .l2Misses(l2Misses.get())
+                .catalogFetches(catalogFetches.get())
+                .build();
+    }
+
+    @Scheduled(fixedDelayString = "${features.anime-cache.stats-log-interval-ms:300000}")
+    public void logCacheMetrics() {
+        CacheMetrics metrics = getCacheMetrics();
+        log.info("📈 Anime cache: L1 size={} hits={} misses={} evictions={} | L2 hits={} misses={} | catalog fetches={}",
+                metrics.getL1Size(), metrics.getL1Hits(), metrics.getL1Misses(), metrics.getL1Evictions(),
+                metrics.getL2Hits(), metrics.getL2Misses(), metrics.getCatalogFetches());
     }
 
     // DTO cho anime basic info
@@ -117,6 +262,7 @@ public class ExternalAnimeService {
         private Integer totalEpisodes;
         private String status;
         private String format;
+        private List<String> genres;
     }
 
     // DTO cho anime details
@@ -131,4 +277,17 @@ public class ExternalAnimeService {
         private String status;
         private Integer totalEpisodes;
     }
-}
\ No newline at end of file
+
+    // Snapshot hit/miss của cache
+    @lombok.Data
+    @lombok.Builder
+    public static class CacheMetrics {
+        private long l1Size;
+        private long l1Hits;
+        private long l1Misses;
+        private long l1Evictions;
+        private long l2Hits;
+        private long l2Misses;
+        private long catalogFetches;
+    }
+}
@@ -1,12 +1,14 @@
 package com.animeflix.userservice.service;
 
 import com.animeflix.userservice.dto.request.AddFavoriteRequest;
+import com.animeflix.userservice.dto.response.CursorPageResponse;
 import com.animeflix.userservice.dto.response.FavoriteResponse;
 import com.animeflix.userservice.entity.Favorite;
 import com.animeflix.userservice.exception.DuplicateResourceException;
 import com.animeflix.userservice.exception.ResourceNotFoundException;
 import com.animeflix.userservice.mapper.FavoriteMapper;
 import com.animeflix.userservice.repository.FavoriteRepository;
+import com.animeflix.userservice.util.CursorUtil;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.domain.PageRequest;
@@ -16,6 +18,7 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.time.LocalDateTime;
+import java.util.List;
 
 @Service
 @RequiredArgsConstructor
@@ -25,6 +28,7 @@ public class FavoriteService {
     private final FavoriteRepository favoriteRepo;
     private final FavoriteMapper mapper;
     private final ExternalAnimeService animeService;
+    private final UserStatsService userStatsService;
 
     /**
      * Thêm vào yêu thích
@@ -41,6 +45,7 @@ public class FavoriteService {
                     return createFavorite(userId, request);
                 })
                 .flatMap(favoriteRepo::save)
+                .flatMap(saved -> userStatsService.recordFavoriteChange(userId, 1).thenReturn(saved))
                 .map(mapper::toResponse);
     }
 
@@ -84,11 +89,29 @@ public class FavoriteService {
      * Lấy danh sách yêu thích (phân trang)
      */
     public Flux<FavoriteResponse> getFavorites(String userId, int page, int size) {
-        Pageable pageable = PageRequest.of(page, size);
+        Pageable pageable = PageRequest.of(Math.max(0, page), CursorUtil.clampSize(size));
         return favoriteRepo.findByUserIdOrderByAddedAtDesc(userId, pageable)
                 .map(mapper::toResponse);
     }
 
+    /**
+     * Lấy danh sách yêu thích theo cursor (keyset), after rỗng = trang đầu
+     */
+    public Mono<CursorPageResponse<FavoriteResponse>> getFavoritesPage(String userId, String after, int size) {
+        int limit = CursorUtil.clampSize(size);
+        Pageable pageable = PageRequest.of(0, limit + 1);
+
+        return Flux.defer(() -> {
+                    if (after == null || after.isBlank()) {
+                        return favoriteRepo.findByUserIdOrderByAddedAtDescIdDesc(userId, pageable);
+                    }
+                    CursorUtil.Cursor cursor = CursorUtil.decode(after);
+                    return favoriteRepo.findPageAfter(userId, cursor.timestamp(), cursor.id(), pageable);
+                })
+                .collectList()
+                .map(list -> CursorUtil.toPage(list, limit, Favorite::getAddedAt, Favorite::getId, mapper::toResponse));
+    }
+
     /**
      * Lấy tất cả yêu thích (không phân trang)
      */
@@ -108,13 +131,14 @@ public class FavoriteService {
      * Xóa khỏi yêu thích
      */
     public Mono<Void> removeFavorite(String userId, String animeId) {
-        return favoriteRepo.existsByUserIdAndAnimeId(userId, animeId)
-                .flatMap(exists -> {
-                    if (!exists) {
+        // Chỉ trừ counter khi thật sự xóa được (2 request xóa đồng thời => chỉ 1 bên trừ)
+        return favoriteRepo.deleteByUserIdAndAnimeId(userId, animeId)
+                .flatMap(deleted -> {
+                    if (deleted == 0) {
                         return Mono.error(new ResourceNotFoundException(
                                 "Anime not found in favorites"));
                     }
-                    return favoriteRepo.deleteByUserIdAndAnimeId(userId, animeId);
+                    return userStatsService.recordFavoriteChange(userId, -deleted);
                 });
     }
 
@@ -147,6 +171,24 @@ public class FavoriteService {
         return favoriteRepo.findByNotifyNewEpisodeTrue();
     }
 
+    /**
+     * Lấy userId của các follower bật thông báo cho 1 anime, theo từng batch
+     * Keyset pagination theo userId nên chi phí chỉ phụ thuộc số follower của anime đó
+     */
+    public Flux<List<String>> getNotificationSubscribers(String animeId, int batchSize) {
+        return fetchSubscriberPage(animeId, "", batchSize)
+                .expand(page -> page.size() < batchSize
+                        ? Mono.empty()
+                        : fetchSubscriberPage(animeId, page.get(page.size() - 1), batchSize))
+                .filter(page -> !page.isEmpty());
+    }
+
+    private Mono<List<String>> fetchSubscriberPage(String animeId, String afterUserId, int batchSize) {
+        return favoriteRepo.findNotificationSubscribers(animeId, afterUserId, PageRequest.of(0, batchSize))
+                .map(Favorite::getUserId)
+                .collectList();
+    }
+
     /**
      * Lấy favorites có bật thông báo của user
      */
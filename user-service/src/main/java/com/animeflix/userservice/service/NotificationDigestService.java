@@ -0,0 +1,284 @@
+package com.animeflix.userservice.service;
+
+import com.animeflix.userservice.dto.kafka.NewEpisodeEvent;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ✅ Digest thông báo tập mới cho user chọn notificationDelivery = "digest"
+ *
+ * - Buffer trên Redis: notifications:digest:{userId} (hash animeId:episode -> event JSON, tự bỏ trùng)
+ * - Hạn flush: ZSET notifications:digest:due (score = thời điểm hết cửa sổ, đặt 1 lần khi buffer mở)
+ * - Buffer đầy (max-items) thì đưa hạn về hiện tại để flush ở lượt kế tiếp
+ * - Flush 2 pha, không mất digest khi Mongo lỗi:
+ *   claim: lấy lock (lease) + chuyển buffer sang notifications:digest:processing:{userId}, dời hạn ra sau lease
+ *   ack:   chỉ sau khi insert thành công mới xóa processing + lock
+ *   insert lỗi / instance chết => lock hết lease, lượt flush sau claim lại processing (gộp thêm tập mới)
+ * - Tập đã flush ghi vào notifications:digest:sent:{userId} => Kafka giao lại event không tạo digest trùng;
+ *   insert lặp lại cùng 1 processing bị chặn bởi digestKey (unique) của notification
+ * - Redis lỗi khi enqueue => trả user về để gửi ngay (ghi thẳng Mongo), không mất thông báo
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class NotificationDigestService {
+
+    private final ReactiveRedisTemplate<String, String> redisTemplate;
+    private final NotificationService notificationService;
+    private final WebSocketNotificationService webSocketService;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final String DIGEST_PREFIX = "notifications:digest:";
+    private static final String PROCESSING_PREFIX = "notifications:digest:processing:";
+    private static final String LOCK_PREFIX = "notifications:digest:lock:";
+    private static final String SENT_PREFIX = "notifications:digest:sent:";
+    private static final String DUE_KEY = "notifications:digest:due";
+
+    // Processing bị bỏ dở quá lâu (lock hết lease mà không ai claim lại) thì tự hết hạn
+    private static final Duration PROCESSING_TTL = Duration.ofDays(1);
+
+    // KEYS: buffer, due, sent | ARGV: userId, dueAt, now, maxItems, ttlMs, field1, value1, ...
+    // Tập đã có trong sent (đã flush) thì bỏ qua
+    private static final RedisScript<Long> ENQUEUE_SCRIPT = RedisScript.of(
+            "local added = 0 " +
+                    "for i = 6, #ARGV, 2 do " +
+                    "if redis.call('SISMEMBER', KEYS[3], ARGV[i]) == 0 then " +
+                    "redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1]) added = added + 1 end " +
+                    "end " +
+                    "if added == 0 then return 0 end " +
+                    "redis.call('PEXPIRE', KEYS[1], ARGV[5]) " +
+                    "redis.call('ZADD', KEYS[2], 'NX', ARGV[2], ARGV[1]) " +
+                    "local size = redis.call('HLEN', KEYS[1]) " +
+                    "if size >= tonumber(ARGV[4]) then redis.call('ZADD', KEYS[2], ARGV[3], ARGV[1]) end " +
+                    "return size",
+            Long.class);
+
+    // KEYS: buffer, processing, due, lock | ARGV: userId, now, leaseMs, token, processingTtlMs
+    // Trả về JSON array các event cần gửi, rỗng nếu instance khác đang giữ lock / chưa tới hạn
+    private static final RedisScript<String> CLAIM_SCRIPT = RedisScript.of(
+            "if not redis.call('SET', KEYS[4], ARGV[4], 'NX', 'PX', ARGV[3]) then return '' end " +
+                    "local score = redis.call('ZSCORE', KEYS[3], ARGV[1]) " +
+                    "if not score or tonumber(score) > tonumber(ARGV[2]) then " +
+                    "redis.call('DEL', KEYS[4]) return '' end " +
+                    "local fields = redis.call('HGETALL', KEYS[1]) " +
+                    "for i = 1, #fields, 2 do redis.call('HSET', KEYS[2], fields[i], fields[i + 1]) end " +
+                    "redis.call('DEL', KEYS[1]) " +
+                    "if redis.call('EXISTS', KEYS[2]) == 0 then " +
+                    "redis.call('ZREM', KEYS[3], ARGV[1]) redis.call('DEL', KEYS[4]) return '' end " +
+                    "redis.call('PEXPIRE', KEYS[2], ARGV[5]) " +
+                    // Không ack trong lease => lượt flush sau thử lại
+                    "redis.call('ZADD', KEYS[3], tonumber(ARGV[2]) + tonumber(ARGV[3]), ARGV[1]) " +
+                    "return '[' .. table.concat(redis.call('HVALS', KEYS[2]), ',') .. ']'",
+            String.class);
+
+    // KEYS: buffer, processing, due, lock, sent | ARGV: userId, token, nextDueAt, now, maxItems, sentTtlMs
+    // Đánh dấu các tập đã gửi, xóa processing; buffer có tập mới (enqueue trong lúc flush) thì hẹn lượt sau
+    private static final RedisScript<Long> ACK_SCRIPT = RedisScript.of(
+            "if redis.call('GET', KEYS[4]) ~= ARGV[2] then return 0 end " +
+                    "local fields = redis.call('HKEYS', KEYS[2]) " +
+                    "for i = 1, #fields do redis.call('SADD', KEYS[5], fields[i]) end " +
+                    "if #fields > 0 then redis.call('PEXPIRE', KEYS[5], ARGV[6]) end " +
+                    "redis.call('DEL', KEYS[2], KEYS[4]) " +
+                    "local size = redis.call('HLEN', KEYS[1]) " +
+                    "if size == 0 then redis.call('ZREM', KEYS[3], ARGV[1]) " +
+                    "elseif size >= tonumber(ARGV[5]) then redis.call('ZADD', KEYS[3], ARGV[4], ARGV[1]) " +
+                    "else redis.call('ZADD', KEYS[3], ARGV[3], ARGV[1]) end " +
+                    "return 1",
+            Long.class);
+
+    // Tập mới trong digest: theo thời điểm phát hành, rồi anime / số tập => nội dung ổn định giữa các lần retry
+    private static final Comparator<NewEpisodeEvent> EVENT_ORDER = Comparator
+            .comparing((NewEpisodeEvent event) -> event.getAiringAt() != null ? event.getAiringAt() : event.getTimestamp(),
+                    Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparing(NewEpisodeEvent::getAnimeId, Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparing(NewEpisodeEvent::getEpisodeNumber, Comparator.nullsLast(Comparator.naturalOrder()));
+
+    // Lượt flush trước chưa xong thì bỏ qua lượt mới
+    private final AtomicBoolean flushing = new AtomicBoolean(false);
+
+    @Value("${features.notifications.digest.enabled:true}")
+    private boolean digestEnabled;
+
+    @Value("${features.notifications.digest.window-seconds:600}")
+    private long windowSeconds;
+
+    @Value("${features.notifications.digest.max-items:50}")
+    private int maxItems;
+
+    @Value("${features.notifications.digest.flush-batch-size:500}")
+    private int flushBatchSize;
+
+    // Thời gian 1 instance giữ digest đã claim; chưa ack trong khoảng này => instance khác flush lại
+    @Value("${features.notifications.digest.claim-lease-ms:120000}")
+    private long claimLeaseMs;
+
+    // Nhớ các tập đã flush trong khoảng này để bỏ qua event Kafka giao lại
+    @Value("${features.notifications.digest.sent-ttl-hours:24}")
+    private long sentTtlHours;
+
+    /**
+     * Đưa các tập mới vào digest của từng user
+     * @return các user không buffer được (digest tắt / Redis lỗi) => caller gửi ngay
+     */
+    public Mono<List<String>> enqueue(Collection<NewEpisodeEvent> events, List<String> userIds) {
+        if (userIds.isEmpty()) {
+            return Mono.just(List.of());
+        }
+        if (!digestEnabled) {
+            return Mono.just(userIds);
+        }
+
+        List<String> entries;
+        try {
+            entries = new ArrayList<>();
+            for (NewEpisodeEvent event : events) {
+                entries.add(event.getAnimeId() + ":" + event.getEpisodeNumber());
+                entries.add(objectMapper.writeValueAsString(event));
+            }
+        } catch (Exception e) {
+            log.warn("Failed to serialize digest entries: {}", e.getMessage());
+            return Mono.just(userIds);
+        }
+
+        long now = System.currentTimeMillis();
+        long windowMs = windowSeconds * 1000;
+
+        return Flux.fromIterable(userIds)
+                .flatMap(userId -> {
+                    List<String> args = new ArrayList<>(List.of(
+                            userId,
+                            String.valueOf(now + windowMs),
+                            String.valueOf(now),
+                            String.valueOf(maxItems),
+                            // Giữ buffer quá hạn flush 1 cửa sổ phòng khi scheduler chậm
+                            String.valueOf(windowMs * 2)));
+                    args.addAll(entries);
+
+                    return redisTemplate.execute(ENQUEUE_SCRIPT,
+                                    List.of(DIGEST_PREFIX + userId, DUE_KEY, SENT_PREFIX + userId), args)
+                            .then(Mono.<String>empty())
+                            .onErrorResume(e -> {
+                                log.warn("Digest enqueue failed for user: {}, delivering immediately: {}",
+                                        userId, e.getMessage());
+                                return Mono.just(userId);
+                            });
+                }, 64)
+                .collectList()
+                .doOnNext(fallback -> log.debug("📥 Buffered {} episode(s) into digest of {} users",
+                        events.size(), userIds.size() - fallback.size()));
+    }
+
+    /**
+     * Flush các digest đã hết cửa sổ: 1 notification + 1 push / user
+     */
+    @Scheduled(fixedDelayString = "${features.notifications.digest.flush-interval-ms:15000}")
+    public void flushDue() {
+        if (!digestEnabled) {
+            return;
+        }
+        // Chạy nền, không giữ thread chung của scheduler; claim có lease nên lượt bị bỏ dở được flush lại sau
+        if (!flushing.compareAndSet(false, true)) {
+            log.debug("Notification digest flush still running, skipping");
+            return;
+        }
+
+        long startedAt = System.currentTimeMillis();
+        String token = UUID.randomUUID().toString();
+
+        redisTemplate.opsForZSet()
+                .rangeByScore(DUE_KEY, Range.closed(0d, (double) startedAt), Limit.limit().count(flushBatchSize))
+                .flatMap(userId -> claim(userId, token, startedAt).map(events -> Map.entry(userId, events)), 16)
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue)
+                .filter(digests -> !digests.isEmpty())
+                .flatMap(digests -> notificationService.createEpisodeDigests(digests)
+                        // Chỉ ack khi cả batch đã vào Mongo; lỗi => giữ processing, retry sau lease
+                        .flatMap(result -> ack(digests.keySet(), token).thenReturn(result))
+                        .doOnNext(result -> {
+                            webSocketService.sendToUsers(result.getNotifications());
+                            log.info("📬 Flushed {} digests ({} episodes, {} already sent) in {} ms",
+                                    result.getInserted(),
+                                    digests.values().stream().mapToInt(List::size).sum(),
+                                    result.getSkipped(),
+                                    System.currentTimeMillis() - startedAt);
+                        })
+                        .onErrorResume(e -> {
+                            log.error("❌ Failed to flush {} notification digests, retrying in {} ms: {}",
+                                    digests.size(), claimLeaseMs, e.getMessage());
+                            return Mono.empty();
+                        }))
+                .doFinally(signal -> flushing.set(false))
+                .subscribe(null, e -> log.error("❌ Failed to flush notification digests: {}", e.getMessage()));
+    }
+
+    private Mono<List<NewEpisodeEvent>> claim(String userId, String token, long now) {
+        return redisTemplate.execute(CLAIM_SCRIPT,
+                        List.of(DIGEST_PREFIX + userId, PROCESSING_PREFIX + userId, DUE_KEY, LOCK_PREFIX + userId),
+                        List.of(userId,
+                                String.valueOf(now),
+                                String.valueOf(claimLeaseMs),
+                                token,
+                                String.valueOf(PROCESSING_TTL.toMillis())))
+                .next()
+                .filter(json -> !json.isEmpty())
+                .flatMap(json -> Mono.fromCallable(() -> {
+                    List<NewEpisodeEvent> events = objectMapper.readValue(json,
+                            new TypeReference<List<NewEpisodeEvent>>() {
+                            });
+                    // HVALS không có thứ tự => sắp lại trước khi dựng digest
+                    events.sort(EVENT_ORDER);
+                    return events;
+                }))
+                .onErrorResume(e -> {
+                    log.warn("Failed to claim digest for user: {}: {}", userId, e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Void> ack(Collection<String> userIds, String token) {
+        long now = System.currentTimeMillis();
+        List<String> args = List.of(
+                "",
+                token,
+                String.valueOf(now + windowSeconds * 1000),
+                String.valueOf(now),
+                String.valueOf(maxItems),
+                String.valueOf(Duration.ofHours(sentTtlHours).toMillis()));
+
+        return Flux.fromIterable(userIds)
+                .flatMap(userId -> {
+                    List<String> userArgs = new ArrayList<>(args);
+                    userArgs.set(0, userId);
+                    return redisTemplate.execute(ACK_SCRIPT,
+                                    List.of(DIGEST_PREFIX + userId, PROCESSING_PREFIX + userId, DUE_KEY,
+                                            LOCK_PREFIX + userId, SENT_PREFIX + userId),
+                                    userArgs)
+                            .onErrorResume(e -> {
+                                // Không ack được => lượt sau insert lại, digestKey chặn bản trùng
+                                log.warn("Failed to ack digest for user: {}: {}", userId, e.getMessage());
+                                return Mono.empty();
+                            });
+                }, 64)
+                .then();
+    }
+}
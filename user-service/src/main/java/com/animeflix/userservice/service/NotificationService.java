@@ -1,21 +1,46 @@
 package com.animeflix.userservice.service;
 
+import com.animeflix.userservice.dto.kafka.NewEpisodeEvent;
+import com.animeflix.userservice.dto.response.CursorPageResponse;
 import com.animeflix.userservice.dto.response.NotificationResponse;
 import com.animeflix.userservice.entity.Notification;
 import com.animeflix.userservice.exception.ResourceNotFoundException;
 import com.animeflix.userservice.mapper.NotificationMapper;
 import com.animeflix.userservice.repository.NotificationRepository;
+import com.animeflix.userservice.util.CursorUtil;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.result.UpdateResult;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Service
 @RequiredArgsConstructor
@@ -24,6 +49,14 @@ public class NotificationService {
 
     private final NotificationRepository notificationRepo;
     private final NotificationMapper mapper;
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final UnreadCounterService unreadCounter;
+
+    // Số anime tối đa liệt kê trong message của digest
+    private static final int DIGEST_MAX_TITLES = 3;
+
+    @Value("${features.notifications.bulk-insert-chunk-size:1000}")
+    private int bulkInsertChunkSize;
 
     /**
      * Tạo notification mới
@@ -49,38 +82,235 @@ public class NotificationService {
                         return Mono.empty();
                     }
 
-                    LocalDateTime now = LocalDateTime.now();
-                    Date expiresAt = Date.from(
-                            now.plusDays(30).atZone(ZoneId.systemDefault()).toInstant()
-                    );
-
-                    Notification notification = Notification.builder()
-                            .userId(userId)
-                            .type(type)
-                            .title(title)
-                            .message(message)
-                            .imageUrl(imageUrl)
-                            .animeId(animeId)
-                            .episodeNumber(episodeNumber)
-                            .actionUrl(String.format("/anime/%s/episode/%d", animeId, episodeNumber))
-                            .isRead(false)
-                            .createdAt(now)
-                            .expiresAt(expiresAt)
-                            .build();
-
-                    return notificationRepo.save(notification);
+                    return notificationRepo.save(
+                            buildNotification(userId, type, title, message, animeId, episodeNumber, imageUrl))
+                            .flatMap(saved -> unreadCounter.adjust(userId, 1).thenReturn(saved));
+                })
+                .onErrorResume(DuplicateKeyException.class, e -> {
+                    log.debug("Skipping duplicate notification for user: {}, anime: {}, ep: {}",
+                            userId, animeId, episodeNumber);
+                    return Mono.empty();
                 });
     }
 
+    /**
+     * Tạo notification tập mới cho nhiều user cùng lúc
+     * insertMany unordered theo chunk, trùng lặp bị chặn bởi user_anime_episode_unique
+     */
+    public Mono<BulkNotificationResult> createEpisodeNotifications(NewEpisodeEvent event, List<String> userIds) {
+        if (userIds.isEmpty()) {
+            return Mono.just(BulkNotificationResult.empty());
+        }
+
+        String title = "New Episode Available!";
+        String message = String.format(
+                "%s - Episode %d is now available",
+                event.getAnimeTitle(),
+                event.getEpisodeNumber()
+        );
+
+        List<Notification> notifications = userIds.stream()
+                .distinct()
+                .map(userId -> buildNotification(
+                        userId,
+                        Notification.NotificationType.NEW_EPISODE,
+                        title,
+                        message,
+                        event.getAnimeId(),
+                        event.getEpisodeNumber(),
+                        event.getCoverImage()))
+                .collect(Collectors.toList());
+
+        int skippedInBatch = userIds.size() - notifications.size();
+
+        return Flux.fromIterable(chunk(notifications, bulkInsertChunkSize))
+                .concatMap(this::insertChunk)
+                .reduce(BulkNotificationResult::merge)
+                .map(result -> result.plusSkipped(skippedInBatch));
+    }
+
+    /**
+     * Tạo notification từ digest đã gom: mỗi user đúng 1 notification
+     * Digest chỉ có 1 tập thì tạo NEW_EPISODE như gửi ngay
+     */
+    public Mono<BulkNotificationResult> createEpisodeDigests(Map<String, List<NewEpisodeEvent>> eventsByUser) {
+        List<Notification> notifications = eventsByUser.entrySet().stream()
+                .filter(entry -> !entry.getValue().isEmpty())
+                .map(entry -> buildDigestNotification(entry.getKey(), entry.getValue()))
+                .collect(Collectors.toList());
+
+        if (notifications.isEmpty()) {
+            return Mono.just(BulkNotificationResult.empty());
+        }
+
+        return Flux.fromIterable(chunk(notifications, bulkInsertChunkSize))
+                .concatMap(this::insertChunk)
+                .reduce(BulkNotificationResult::merge);
+    }
+
+    private Notification buildDigestNotification(String userId, List<NewEpisodeEvent> events) {
+        if (events.size() == 1) {
+            NewEpisodeEvent event = events.get(0);
+            return buildNotification(
+                    userId,
+                    Notification.NotificationType.NEW_EPISODE,
+                    "New Episode Available!",
+                    String.format("%s - Episode %d is now available", event.getAnimeTitle(), event.getEpisodeNumber()),
+                    event.getAnimeId(),
+                    event.getEpisodeNumber(),
+                    event.getCoverImage());
+        }
+
+        // Gom theo anime, giữ thứ tự xuất hiện
+        Map<String, List<NewEpisodeEvent>> byAnime = events.stream()
+                .collect(Collectors.groupingBy(NewEpisodeEvent::getAnimeId, LinkedHashMap::new, Collectors.toList()));
+
+        List<String> parts = byAnime.values().stream()
+                .limit(DIGEST_MAX_TITLES)
+                .map(animeEvents -> {
+                    List<Integer> episodes = animeEvents.stream()
+                            .map(NewEpisodeEvent::getEpisodeNumber)
+                            .sorted()
+                            .collect(Collectors.toList());
+                    int first = episodes.get(0);
+                    int last = episodes.get(episodes.size() - 1);
+                    return first == last
+                            ? String.format("%s (Ep %d)", animeEvents.get(0).getAnimeTitle(), first)
+                            : String.format("%s (Ep %d-%d)", animeEvents.get(0).getAnimeTitle(), first, last);
+                })
+                .collect(Collectors.toList());
+
+        String message = String.join(", ", parts);
+        if (byAnime.size() > DIGEST_MAX_TITLES) {
+            message += String.format(" and %d more", byAnime.size() - DIGEST_MAX_TITLES);
+        }
+
+        NewEpisodeEvent latest = events.get(events.size() - 1);
+        boolean singleAnime = byAnime.size() == 1;
+
+        Notification notification = buildNotification(
+                userId,
+                Notification.NotificationType.EPISODE_DIGEST,
+                String.format("%d New Episodes Available!", events.size()),
+                message,
+                singleAnime ? latest.getAnimeId() : null,
+                null,
+                latest.getCoverImage());
+        notification.setActionUrl(singleAnime ? "/anime/" + latest.getAnimeId() : "/notifications");
+        // Cùng 1 tập hợp tập mới => cùng key; retry flush / Kafka giao lại không tạo digest thứ 2
+        notification.setDigestKey(DigestUtils.md5DigestAsHex(events.stream()
+                .map(event -> event.getAnimeId() + ":" + event.getEpisodeNumber())
+                .sorted()
+                .collect(Collectors.joining(","))
+                .getBytes(StandardCharsets.UTF_8)));
+        return notification;
+    }
+
+    private Mono<BulkNotificationResult> insertChunk(List<Notification> chunk) {
+        // Gán sẵn _id để biết notification nào được insert (cần id khi push WebSocket)
+        List<Document> documents = chunk.stream()
+                .map(notification -> {
+                    notification.setId(new ObjectId().toHexString());
+                    Document document = new Document();
+                    mongoTemplate.getConverter().write(notification, document);
+                    return document;
+                })
+                .collect(Collectors.toList());
+
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(Notification.class))
+                .flatMap(collection -> Mono.from(
+                        collection.insertMany(documents, new InsertManyOptions().ordered(false))))
+                .map(result -> BulkNotificationResult.of(chunk, 0))
+                .onErrorResume(MongoBulkWriteException.class, e -> {
+                    boolean onlyDuplicates = e.getWriteErrors().stream()
+                            .allMatch(error -> ErrorCategory.fromErrorCode(error.getCode())
+                                    == ErrorCategory.DUPLICATE_KEY);
+                    if (!onlyDuplicates) {
+                        return Mono.error(e);
+                    }
+
+                    Set<Integer> failedIndexes = e.getWriteErrors().stream()
+                            .map(BulkWriteError::getIndex)
+                            .collect(Collectors.toSet());
+
+                    List<Notification> inserted = new ArrayList<>();
+                    for (int i = 0; i < chunk.size(); i++) {
+                        if (!failedIndexes.contains(i)) {
+                            inserted.add(chunk.get(i));
+                        }
+                    }
+                    return Mono.just(BulkNotificationResult.of(inserted, failedIndexes.size()));
+                })
+                .flatMap(result -> unreadCounter.incrementAll(result.getNotifications().stream()
+                                .map(Notification::getUserId)
+                                .collect(Collectors.toList()))
+                        .thenReturn(result));
+    }
+
+    private static <T> List<List<T>> chunk(List<T> items, int size) {
+        List<List<T>> chunks = new ArrayList<>();
+        for (int i = 0; i < items.size(); i += size) {
+            chunks.add(items.subList(i, Math.min(i + size, items.size())));
+        }
+        return chunks;
+    }
+
+    private Notification buildNotification(
+            String userId,
+            Notification.NotificationType type,
+            String title,
+            String message,
+            String animeId,
+            Integer episodeNumber,
+            String imageUrl) {
+
+        LocalDateTime now = LocalDateTime.now();
+        Date expiresAt = Date.from(
+                now.plusDays(30).atZone(ZoneId.systemDefault()).toInstant()
+        );
+
+        return Notification.builder()
+                .userId(userId)
+                .type(type)
+                .title(title)
+                .message(message)
+                .imageUrl(imageUrl)
+                .animeId(animeId)
+                .episodeNumber(episodeNumber)
+                .actionUrl(String.format("/anime/%s/episode/%d", animeId, episodeNumber))
+                .isRead(false)
+                .createdAt(now)
+                .expiresAt(expiresAt)
+                .build();
+    }
+
     /**
      * Lấy danh sách thông báo (phân trang)
      */
     public Flux<NotificationResponse> getNotifications(String userId, int page, int size) {
-        Pageable pageable = PageRequest.of(page, size);
+        Pageable pageable = PageRequest.of(Math.max(0, page), CursorUtil.clampSize(size));
         return notificationRepo.findByUserIdOrderByCreatedAtDesc(userId, pageable)
                 .map(mapper::toResponse);
     }
 
+    /**
+     * Lấy danh sách thông báo theo cursor (keyset), after rỗng = trang đầu
+     */
+    public Mono<CursorPageResponse<NotificationResponse>> getNotificationsPage(String userId, String after, int size) {
+        int limit = CursorUtil.clampSize(size);
+        Pageable pageable = PageRequest.of(0, limit + 1);
+
+        return Flux.defer(() -> {
+                    if (after == null || after.isBlank()) {
+                        return notificationRepo.findByUserIdOrderByCreatedAtDescIdDesc(userId, pageable);
+                    }
+                    CursorUtil.Cursor cursor = CursorUtil.decode(after);
+                    return notificationRepo.findPageAfter(userId, cursor.timestamp(), cursor.id(), pageable);
+                })
+                .collectList()
+                .map(list -> CursorUtil.toPage(list, limit, Notification::getCreatedAt, Notification::getId, mapper::toResponse));
+    }
+
     /**
      * Lấy thông báo chưa đọc
      */
@@ -93,24 +323,26 @@ public class NotificationService {
      * Đếm thông báo chưa đọc
      */
     public Mono<Long> countUnread(String userId) {
-        return notificationRepo.countByUserIdAndIsReadFalse(userId);
+        return unreadCounter.getUnread(userId);
     }
 
     /**
      * Đánh dấu đã đọc
      */
     public Mono<NotificationResponse> markAsRead(String userId, String notificationId) {
-        return notificationRepo.findById(notificationId)
-                .switchIfEmpty(Mono.error(new ResourceNotFoundException("Notification not found")))
-                .flatMap(notification -> {
-                    if (!notification.getUserId().equals(userId)) {
-                        return Mono.error(new ResourceNotFoundException("Notification not found"));
-                    }
+        // Chỉ match khi còn unread => counter giảm đúng 1 lần dù request bị gửi trùng
+        Query query = Query.query(Criteria.where("id").is(notificationId)
+                .and("userId").is(userId)
+                .and("isRead").is(false));
+        Update update = new Update()
+                .set("isRead", true)
+                .set("readAt", LocalDateTime.now());
 
-                    notification.setIsRead(true);
-                    notification.setReadAt(LocalDateTime.now());
-                    return notificationRepo.save(notification);
-                })
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), Notification.class)
+                .flatMap(updated -> unreadCounter.adjust(userId, -1).thenReturn(updated))
+                .switchIfEmpty(Mono.defer(() -> notificationRepo.findById(notificationId)
+                        .filter(notification -> notification.getUserId().equals(userId))
+                        .switchIfEmpty(Mono.error(new ResourceNotFoundException("Notification not found")))))
                 .map(mapper::toResponse);
     }
 
@@ -118,34 +350,36 @@ public class NotificationService {
      * Đánh dấu tất cả là đã đọc
      */
     public Mono<Long> markAllAsRead(String userId) {
-        return notificationRepo.findByUserIdAndIsReadFalse(userId)
-                .flatMap(notification -> {
-                    notification.setIsRead(true);
-                    notification.setReadAt(LocalDateTime.now());
-                    return notificationRepo.save(notification);
-                })
-                .count();
+        // 1 updateMany, filter {userId, isRead} đi đúng user_read_idx
+        Query query = Query.query(Criteria.where("userId").is(userId).and("isRead").is(false));
+        Update update = new Update()
+                .set("isRead", true)
+                .set("readAt", LocalDateTime.now());
+
+        return mongoTemplate.updateMulti(query, update, Notification.class)
+                .map(UpdateResult::getModifiedCount)
+                .flatMap(count -> unreadCounter.reset(userId).thenReturn(count));
     }
 
     /**
      * Xóa thông báo
      */
     public Mono<Void> deleteNotification(String userId, String notificationId) {
-        return notificationRepo.findById(notificationId)
+        Query query = Query.query(Criteria.where("id").is(notificationId).and("userId").is(userId));
+
+        return mongoTemplate.findAndRemove(query, Notification.class)
                 .switchIfEmpty(Mono.error(new ResourceNotFoundException("Notification not found")))
-                .flatMap(notification -> {
-                    if (!notification.getUserId().equals(userId)) {
-                        return Mono.error(new ResourceNotFoundException("Notification not found"));
-                    }
-                    return notificationRepo.delete(notification);
-                });
+                .flatMap(removed -> Boolean.TRUE.equals(removed.getIsRead())
+                        ? Mono.<Void>empty()
+                        : unreadCounter.adjust(userId, -1));
     }
 
     /**
      * Xóa tất cả thông báo
      */
     public Mono<Void> deleteAllNotifications(String userId) {
-        return notificationRepo.deleteByUserId(userId);
+        return notificationRepo.deleteByUserId(userId)
+                .then(unreadCounter.reset(userId));
     }
 
     /**
@@ -156,4 +390,35 @@ public class NotificationService {
         return notificationRepo.deleteByExpiresAtBefore(now)
                 .doOnSuccess(v -> log.info("Cleaned up expired notifications"));
     }
-}
\ No newline at end of file
+
+    // Kết quả bulk insert
+    @lombok.Data
+    @lombok.Builder
+    @lombok.NoArgsConstructor
+    @lombok.AllArgsConstructor
+    public static class BulkNotificationResult {
+        private int inserted;
+        private int skipped;
+        private List<Notification> notifications;
+
+        static BulkNotificationResult empty() {
+            return new BulkNotificationResult(0, 0, new ArrayList<>());
+        }
+
+        static BulkNotificationResult of(List<Notification> inserted, int skipped) {
+            return new BulkNotificationResult(inserted.size(), skipped, new ArrayList<>(inserted));
+        }
+
+        // Không sửa list của 2 bên => seed dùng lại khi retry/resubscribe không bị cộng dồn
+        BulkNotificationResult merge(BulkNotificationResult other) {
+            List<Notification> merged = new ArrayList<>(notifications.size() + other.notifications.size());
+            merged.addAll(notifications);
+            merged.addAll(other.notifications);
+            return new BulkNotificationResult(inserted + other.inserted, skipped + other.skipped, merged);
+        }
+
+        BulkNotificationResult plusSkipped(int count) {
+            return new BulkNotificationResult(inserted, skipped + count, notifications);
+        }
+    }
+}
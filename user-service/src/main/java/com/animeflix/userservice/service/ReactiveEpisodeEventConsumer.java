@@ -0,0 +1,117 @@
+package com.animeflix.userservice.service;
+
+import com.animeflix.userservice.dto.kafka.NewEpisodeEvent;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.kafka.receiver.KafkaReceiver;
+import reactor.kafka.receiver.ReceiverRecord;
+import reactor.kafka.sender.KafkaSender;
+import reactor.kafka.sender.SenderRecord;
+import reactor.util.retry.Retry;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+/**
+ * Reactor-Kafka consumer for anime.episode.new
+ *
+ * Active when spring.kafka.episode-consumer.mode=reactive (replaces the @KafkaListener containers).
+ * Each poll is handled as one batch: records are grouped by partition inside the batch and
+ * processed in order within each partition, so the groups complete with the batch (no group
+ * is left behind for a revoked partition). Each offset is acknowledged only after its fan-out
+ * has completed or the record has been published to the dead-letter topic.
+ */
+@Component
+@ConditionalOnProperty(name = "spring.kafka.episode-consumer.mode", havingValue = "reactive")
+@RequiredArgsConstructor
+@Slf4j
+public class ReactiveEpisodeEventConsumer {
+
+    private final KafkaReceiver<String, NewEpisodeEvent> receiver;
+    private final KafkaSender<String, NewEpisodeEvent> deadLetterSender;
+    private final EpisodeFanoutService fanoutService;
+
+    @Value("${spring.kafka.topics.new-episode-dlt:anime.episode.new.DLT}")
+    private String deadLetterTopic;
+
+    private Disposable subscription;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        log.info("🚀 Starting reactive consumer for new episode events");
+
+        subscription = receiver.receiveBatch()
+                // Số group <= số partition trong 1 poll => flatMap không giới hạn vẫn bị chặn bởi batch
+                .concatMap(batch -> batch
+                        .groupBy(record -> record.receiverOffset().topicPartition())
+                        .flatMap(partition -> partition.concatMap(this::processRecord), Integer.MAX_VALUE))
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+                        .maxBackoff(Duration.ofSeconds(30))
+                        .doBeforeRetry(signal -> log.warn("⚠️ Reactive consumer restarting: {}",
+                                signal.failure().getMessage())))
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (subscription != null) {
+            subscription.dispose();
+        }
+    }
+
+    /**
+     * Process one record, then acknowledge its offset
+     */
+    private Mono<Void> processRecord(ReceiverRecord<String, NewEpisodeEvent> record) {
+        NewEpisodeEvent event = record.value();
+
+        if (event == null || event.getAnimeId() == null) {
+            log.warn("⏭️ Skipping invalid record: partition={}, offset={}", record.partition(), record.offset());
+            record.receiverOffset().acknowledge();
+            return Mono.empty();
+        }
+
+        log.info("📨 Received new episode event: anime={}, episode={}, partition={}, offset={}",
+                event.getAnimeId(),
+                event.getEpisodeNumber(),
+                record.partition(),
+                record.offset());
+
+        return fanoutService.processEvent(event)
+                .retryWhen(Retry.backoff(3, Duration.ofSeconds(1)))
+                .doOnNext(count -> log.info("✅ Processed event successfully: {} notifications created", count))
+                .then()
+                // Hết retry: đẩy sang DLT để không chặn partition; gửi DLT lỗi thì không ack => consumer restart đọc lại
+                .onErrorResume(error -> {
+                    log.error("❌ Error processing event at offset {}, sending to {}: {}",
+                            record.offset(), deadLetterTopic, error.getMessage(), error);
+                    return sendToDeadLetter(record, error);
+                })
+                .then(Mono.fromRunnable(() -> record.receiverOffset().acknowledge()));
+    }
+
+    private Mono<Void> sendToDeadLetter(ReceiverRecord<String, NewEpisodeEvent> record, Throwable error) {
+        ProducerRecord<String, NewEpisodeEvent> deadLetter =
+                new ProducerRecord<>(deadLetterTopic, record.key(), record.value());
+        deadLetter.headers()
+                .add("x-original-topic", record.topic().getBytes(StandardCharsets.UTF_8))
+                .add("x-original-partition", String.valueOf(record.partition()).getBytes(StandardCharsets.UTF_8))
+                .add("x-original-offset", String.valueOf(record.offset()).getBytes(StandardCharsets.UTF_8))
+                .add("x-exception-message", String.valueOf(error.getMessage()).getBytes(StandardCharsets.UTF_8));
+
+        return deadLetterSender.send(Mono.just(SenderRecord.create(deadLetter, record.offset())))
+                .flatMap(result -> result.exception() == null
+                        ? Mono.<Void>empty()
+                        : Mono.error(result.exception()))
+                .then();
+    }
+}
@@ -4,19 +4,20 @@ import com.animeflix.userservice.dto.response.RecommendationResponse;
 import com.animeflix.userservice.entity.WatchHistory;
 import com.animeflix.userservice.repository.WatchHistoryRepository;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 @Service
@@ -26,14 +27,34 @@ public class RecommendationService {
 
     private final WatchHistoryRepository historyRepo;
     private final ReactiveRedisTemplate<String, String> redisTemplate;
+    private final TrendingCandidatePool candidatePool;
     private final ObjectMapper objectMapper = new ObjectMapper();
 
-    @Qualifier("animeCatalogWebClient")
-    private final WebClient animeCatalogClient;
+    private final ExternalAnimeService animeService;
+    private final CoWatchRecommendationEngine coWatchEngine;
+
+    @Value("${features.recommendations.co-watch.blend-weight:0.5}")
+    private double coWatchWeight;
+
+    private static final int CANDIDATES_PER_SOURCE = 30;
 
     private static final String CACHE_KEY_PREFIX = "recommendations:";
     private static final Duration CACHE_TTL = Duration.ofHours(6);
 
+    private static final String LOCK_KEY_PREFIX = "recommendations:lock:";
+    private static final Duration LOCK_TTL = Duration.ofSeconds(30);
+    private static final Duration LOCK_WAIT = Duration.ofSeconds(5);
+    private static final Duration LOCK_POLL_INTERVAL = Duration.ofMillis(200);
+
+    // Chỉ xóa lock nếu vẫn là của mình
+    private static final RedisScript<Long> RELEASE_LOCK_SCRIPT = RedisScript.of(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then " +
+                    "return redis.call('DEL', KEYS[1]) else return 0 end",
+            Long.class);
+
+    // Single-flight trong node: userId -> Mono đang generate (dùng chung cho các request đồng thời)
+    private final Map<String, Mono<RecommendationResponse>> inFlight = new ConcurrentHashMap<>();
+
     /**
      * ✅ PUBLIC API - Lấy gợi ý anime cho user
      */
@@ -42,12 +63,61 @@ public class RecommendationService {
 
         return redisTemplate.opsForValue().get(cacheKey)
                 .flatMap(this::parseFromCache)
-                .switchIfEmpty(Mono.defer(() -> {
-                    log.info("🔍 Generating recommendations for user: {}", userId);
-                    return generateRecommendations(userId)
-                            .doOnNext(response -> cacheRecommendations(cacheKey, response)
-                                    .subscribe());
-                }));
+                .switchIfEmpty(Mono.defer(() -> inFlight.computeIfAbsent(userId, id -> {
+                    // Chỉ gỡ đúng lần generate này: lần sau có thể đã được đăng ký trước khi doFinally chạy
+                    AtomicReference<Mono<RecommendationResponse>> self = new AtomicReference<>();
+                    Mono<RecommendationResponse> shared = generateSingleFlight(id, cacheKey)
+                            .doFinally(signal -> inFlight.remove(id, self.get()))
+                            .cache();
+                    self.set(shared);
+                    return shared;
+                })));
+    }
+
+    /**
+     * Single-flight giữa các node: chỉ node giữ Redis lock mới generate,
+     * node khác chờ kết quả xuất hiện trong cache
+     */
+    private Mono<RecommendationResponse> generateSingleFlight(String userId, String cacheKey) {
+        String lockKey = LOCK_KEY_PREFIX + userId;
+        String token = UUID.randomUUID().toString();
+
+        return redisTemplate.opsForValue().setIfAbsent(lockKey, token, LOCK_TTL)
+                .onErrorReturn(true) // Redis lỗi => cứ generate
+                .flatMap(acquired -> {
+                    if (!acquired) {
+                        log.debug("⏳ Recommendations for user {} being generated on another node", userId);
+                        return awaitCachedRecommendations(cacheKey)
+                                .switchIfEmpty(Mono.defer(() -> generateAndCache(userId, cacheKey)));
+                    }
+
+                    return generateAndCache(userId, cacheKey)
+                            .flatMap(response -> releaseLock(lockKey, token).thenReturn(response))
+                            .onErrorResume(e -> releaseLock(lockKey, token).then(Mono.error(e)));
+                });
+    }
+
+    private Mono<RecommendationResponse> generateAndCache(String userId, String cacheKey) {
+        log.info("🔍 Generating recommendations for user: {}", userId);
+        // Chờ ghi cache xong để node đang chờ thấy kết quả ngay
+        return generateRecommendations(userId)
+                .flatMap(response -> cacheRecommendations(cacheKey, response)
+                        .onErrorReturn(false)
+                        .thenReturn(response));
+    }
+
+    private Mono<RecommendationResponse> awaitCachedRecommendations(String cacheKey) {
+        return Flux.interval(LOCK_POLL_INTERVAL)
+                .concatMap(tick -> redisTemplate.opsForValue().get(cacheKey))
+                .next()
+                .flatMap(this::parseFromCache)
+                .timeout(LOCK_WAIT, Mono.empty());
+    }
+
+    private Mono<Long> releaseLock(String lockKey, String token) {
+        return redisTemplate.execute(RELEASE_LOCK_SCRIPT, List.of(lockKey), List.of(token))
+                .next()
+                .onErrorReturn(0L);
     }
 
     /**
@@ -71,46 +141,26 @@ public class RecommendationService {
 
                     log.debug("🎬 Recent anime IDs: {}", recentAnimeIds);
 
+                    Set<String> watchedIds = history.stream()
+                            .map(WatchHistory::getAniId)
+                            .collect(Collectors.toSet());
+
                     // ✅ FIX: Fetch anime details từ CATALOG SERVICE
                     return analyzeWatchHistory(recentAnimeIds)
-                            .flatMap(this::findSimilarAnime);
+                            .flatMap(genreScores -> findSimilarAnime(genreScores, recentAnimeIds, watchedIds));
                 });
     }
 
     /**
-     * ✅ STEP 2: Phân tích watch history - FIX CHỖ NÀY
-     * Gọi CATALOG SERVICE để lấy genres của các anime đã xem
+     * ✅ STEP 2: Phân tích watch history
+     * Lấy genres qua ExternalAnimeService (cache 2 tầng, miss được gom thành 1 lệnh /batch)
      */
     private Mono<Map<String, Integer>> analyzeWatchHistory(List<String> animeIds) {
         log.debug("🔍 Analyzing {} anime from watch history", animeIds.size());
 
-        // Fetch anime details từ catalog service để lấy genres
         return Flux.fromIterable(animeIds)
-                .flatMap(animeId -> {
-                    log.debug("📡 Fetching anime details: {}", animeId);
-
-                    return animeCatalogClient.get()
-                            .uri("/{id}", animeId)
-                            .retrieve()
-                            .bodyToMono(JsonNode.class)
-                            .map(response -> {
-                                // Parse genres từ response
-                                JsonNode media = response.path("data").path("Media");
-                                JsonNode genresNode = media.path("genres");
-
-                                List<String> genres = new ArrayList<>();
-                                if (genresNode.isArray()) {
-                                    genresNode.forEach(g -> genres.add(g.asText()));
-                                }
-
-                                log.debug("✅ Genres for anime {}: {}", animeId, genres);
-                                return genres;
-                            })
-                            .onErrorResume(e -> {
-                                log.warn("⚠️ Failed to fetch anime {}: {}", animeId, e.getMessage());
-                                return Mono.just(Collections.emptyList());
-                            });
-                }, 3) // Fetch 3 anime đồng thời
+                .flatMap(animeId -> animeService.getAnimeBasicInfo(animeId)
+                        .map(info -> info.getGenres() != null ? info.getGenres() : Collections.<String>emptyList()))
                 .flatMap(Flux::fromIterable) // Flatten List<String> to String
                 .collectMultimap(genre -> genre, genre -> 1) // Count genres
                 .map(multimap -> {
@@ -128,10 +178,16 @@ public class RecommendationService {
     }
 
     /**
-     * ✅ STEP 3: Tìm anime tương tự dựa trên genres
+     * ✅ STEP 3: Tìm anime tương tự
+     * Blend genre score (pool trending) với co-watch score (CoWatchRecommendationEngine)
      */
-    private Mono<RecommendationResponse> findSimilarAnime(Map<String, Integer> genreScores) {
-        if (genreScores.isEmpty()) {
+    private Mono<RecommendationResponse> findSimilarAnime(
+            Map<String, Integer> genreScores, List<String> recentAnimeIds, Set<String> watchedIds) {
+
+        List<CoWatchRecommendationEngine.ScoredAnime> coWatched =
+                coWatchEngine.recommend(recentAnimeIds, watchedIds, CANDIDATES_PER_SOURCE);
+
+        if (genreScores.isEmpty() && coWatched.isEmpty()) {
             log.warn("⚠️ No genres found - Fallback to trending");
             return getTrendingAnime();
         }
@@ -143,110 +199,99 @@ public class RecommendationService {
                 .map(Map.Entry::getKey)
                 .collect(Collectors.toList());
 
-        log.info("🎯 Top genres: {}", topGenres);
-
-        // ✅ Gọi TRENDING từ catalog service (đã có genres)
-        return getTrendingAnime()
-                .map(response -> {
-                    // Score lại dựa trên genre matching
-                    List<RecommendationResponse.AnimeRecommendation> scored =
-                            response.getRecommendations().stream()
-                                    .map(anime -> {
-                                        int score = calculateScore(anime.getGenres(), genreScores);
-                                        anime.setScore(score);
-                                        anime.setMatchReason(getMatchReason(topGenres));
-                                        return anime;
-                                    })
-                                    .filter(anime -> anime.getScore() > 0)
-                                    .sorted(Comparator.comparingInt(
-                                                    RecommendationResponse.AnimeRecommendation::getScore)
-                                            .reversed())
-                                    .limit(10)
-                                    .collect(Collectors.toList());
-
-                    return RecommendationResponse.builder()
-                            .recommendations(scored)
-                            .reason("Based on your watch history: " + String.join(", ", topGenres))
-                            .build();
-                });
+        log.info("🎯 Top genres: {}, co-watch candidates: {}", topGenres, coWatched.size());
+
+        // ✅ Score trên pool trending dùng chung (không gọi mạng mỗi request)
+        Mono<List<RecommendationResponse.AnimeRecommendation>> genreRanked = genreScores.isEmpty()
+                ? Mono.just(Collections.emptyList())
+                : candidatePool.score(genreScores, CANDIDATES_PER_SOURCE, getMatchReason(topGenres));
+
+        return genreRanked
+                .flatMap(ranked -> blend(ranked, coWatched))
+                .map(blended -> RecommendationResponse.builder()
+                        .recommendations(blended)
+                        .reason(topGenres.isEmpty()
+                                ? "Based on what viewers like you watched"
+                                : "Based on your watch history: " + String.join(", ", topGenres))
+                        .build());
     }
 
     /**
-     * ✅ STEP 4: Lấy trending anime từ CATALOG SERVICE
-     * Response đã có genres, chỉ cần parse
+     * score = (1 - w) * genre + w * co-watch, cả 2 chuẩn hóa về 0..1 theo max của từng nguồn
+     * Candidate chỉ có từ co-watch thì lấy metadata qua ExternalAnimeService (cache + batch)
      */
-    private Mono<RecommendationResponse> getTrendingAnime() {
-        log.debug("📈 Fetching trending anime from catalog service");
-
-        return animeCatalogClient.get()
-                .uri("/trending?page=1&perPage=20")
-                .retrieve()
-                .bodyToMono(JsonNode.class)
-                .map(response -> {
-                    List<RecommendationResponse.AnimeRecommendation> recommendations = new ArrayList<>();
-
-                    // Parse response từ catalog service
-                    JsonNode data = response.path("data");
-                    JsonNode pageData = data.path("Page");
-                    JsonNode mediaList = pageData.path("media");
-
-                    if (mediaList.isArray()) {
-                        mediaList.forEach(node -> {
-                            // Parse genres
-                            List<String> genres = new ArrayList<>();
-                            JsonNode genresNode = node.path("genres");
-                            if (genresNode.isArray()) {
-                                genresNode.forEach(g -> genres.add(g.asText()));
-                            }
+    private Mono<List<RecommendationResponse.AnimeRecommendation>> blend(
+            List<RecommendationResponse.AnimeRecommendation> genreRanked,
+            List<CoWatchRecommendationEngine.ScoredAnime> coWatched) {
 
-                            recommendations.add(RecommendationResponse.AnimeRecommendation.builder()
-                                    .id(node.path("id").asText())
-                                    .title(node.path("title").path("userPreferred").asText())
-                                    .coverImage(node.path("coverImage").path("large").asText())
-                                    .bannerImage(node.path("bannerImage").asText(null))
-                                    .genres(genres)
-                                    .averageScore(node.path("averageScore").asInt(0))
-                                    .popularity(node.path("popularity").asInt(0))
-                                    .status(node.path("status").asText())
-                                    .format(node.path("format").asText())
-                                    .score(80) // Default score, sẽ được recalculate
-                                    .matchReason("Trending now")
-                                    .build());
-                        });
-                    }
+        Map<String, RecommendationResponse.AnimeRecommendation> byId = new LinkedHashMap<>();
+        genreRanked.forEach(anime -> byId.put(anime.getId(), anime));
+
+        double maxGenre = genreRanked.stream().mapToInt(RecommendationResponse.AnimeRecommendation::getScore).max().orElse(1);
+        Map<String, Double> genreNorm = genreRanked.stream().collect(Collectors.toMap(
+                RecommendationResponse.AnimeRecommendation::getId, anime -> anime.getScore() / maxGenre, (a, b) -> a));
+
+        double maxCoWatch = coWatched.isEmpty() ? 1 : coWatched.get(0).score();
+        Map<String, Double> coWatchNorm = coWatched.stream().collect(Collectors.toMap(
+                CoWatchRecommendationEngine.ScoredAnime::animeId, scored -> scored.score() / maxCoWatch, (a, b) -> a));
 
-                    log.info("✅ Fetched {} trending anime", recommendations.size());
+        // Chỉ có 1 nguồn thì dùng trọn nguồn đó
+        double weight = coWatched.isEmpty() ? 0 : genreRanked.isEmpty() ? 1 : coWatchWeight;
 
+        List<String> missing = coWatched.stream()
+                .map(CoWatchRecommendationEngine.ScoredAnime::animeId)
+                .filter(id -> !byId.containsKey(id))
+                .collect(Collectors.toList());
+
+        return Flux.fromIterable(missing)
+                .flatMapSequential(animeService::getAnimeBasicInfo)
+                .map(info -> RecommendationResponse.AnimeRecommendation.builder()
+                        .id(info.getId())
+                        .title(info.getTitle())
+                        .coverImage(info.getCoverImage())
+                        .bannerImage(info.getBannerImage())
+                        .genres(info.getGenres())
+                        .status(info.getStatus())
+                        .format(info.getFormat())
+                        .build())
+                .doOnNext(anime -> byId.put(anime.getId(), anime))
+                .then(Mono.fromCallable(() -> byId.values().stream()
+                        .map(anime -> {
+                            double genre = genreNorm.getOrDefault(anime.getId(), 0.0);
+                            double coWatch = coWatchNorm.getOrDefault(anime.getId(), 0.0);
+                            anime.setScore((int) Math.round(100 * ((1 - weight) * genre + weight * coWatch)));
+                            if (coWatch > 0) {
+                                anime.setMatchReason(genre > 0
+                                        ? "Matches your genres and is popular with viewers like you"
+                                        : "Viewers who watched the same anime also watched this");
+                            }
+                            return anime;
+                        })
+                        .filter(anime -> anime.getScore() > 0)
+                        .sorted((a, b) -> Integer.compare(b.getScore(), a.getScore()))
+                        .limit(10)
+                        .collect(Collectors.toList())));
+    }
+
+    /**
+     * ✅ STEP 4: Lấy trending anime từ pool dùng chung (refresh định kỳ từ CATALOG SERVICE)
+     */
+    private Mono<RecommendationResponse> getTrendingAnime() {
+        return candidatePool.topTrending(20)
+                .map(recommendations -> {
+                    if (recommendations.isEmpty()) {
+                        return RecommendationResponse.builder()
+                                .recommendations(Collections.emptyList())
+                                .reason("Unable to fetch recommendations")
+                                .build();
+                    }
                     return RecommendationResponse.builder()
                             .recommendations(recommendations)
                             .reason("Trending anime - Start watching to get personalized recommendations")
                             .build();
-                })
-                .onErrorResume(e -> {
-                    log.error("❌ Failed to fetch trending anime: {}", e.getMessage());
-                    return Mono.just(RecommendationResponse.builder()
-                            .recommendations(Collections.emptyList())
-                            .reason("Unable to fetch recommendations")
-                            .build());
                 });
     }
 
-    /**
-     * ✅ HELPER: Calculate score dựa trên genre matching
-     */
-    private Integer calculateScore(List<String> animeGenres, Map<String, Integer> genreScores) {
-        if (animeGenres == null || animeGenres.isEmpty()) {
-            return 0;
-        }
-
-        int score = 0;
-        for (String genre : animeGenres) {
-            score += genreScores.getOrDefault(genre, 0) * 10; // x10 để score rõ ràng hơn
-        }
-
-        return score;
-    }
-
     /**
      * ✅ HELPER: Generate match reason
      */
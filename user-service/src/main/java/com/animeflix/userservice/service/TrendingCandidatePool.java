@@ -0,0 +1,251 @@
+package com.animeflix.userservice.service;
+
+import com.animeflix.userservice.dto.response.RecommendationResponse;
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * ✅ Process-wide pool of trending candidates for recommendations
+ *
+ * Refreshed from catalog service on a schedule and kept in memory as pre-parsed
+ * AnimeRecommendation templates + genre bitsets, so scoring a user is pure CPU
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class TrendingCandidatePool {
+
+    @Qualifier("animeCatalogWebClient")
+    private final WebClient animeCatalogClient;
+
+    @Value("${features.recommendations.candidate-pool.pages:10}")
+    private int pages;
+
+    @Value("${features.recommendations.candidate-pool.per-page:50}")
+    private int perPage;
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    // Single-flight cho refresh on-demand khi pool còn trống
+    private final AtomicReference<Mono<Snapshot>> pendingRefresh = new AtomicReference<>();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        refreshNow().subscribe();
+    }
+
+    @Scheduled(fixedDelayString = "${features.recommendations.candidate-pool.refresh-interval-ms:600000}",
+            initialDelayString = "${features.recommendations.candidate-pool.refresh-interval-ms:600000}")
+    public void scheduledRefresh() {
+        refreshNow().subscribe();
+    }
+
+    /**
+     * Top trending (theo thứ tự catalog trả về)
+     */
+    public Mono<List<RecommendationResponse.AnimeRecommendation>> topTrending(int limit) {
+        return currentSnapshot().map(current -> current.candidates().stream()
+                .limit(limit)
+                .map(candidate -> copyOf(candidate.template()))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Score toàn bộ pool theo genre của user, trả về top N có score > 0
+     */
+    public Mono<List<RecommendationResponse.AnimeRecommendation>> score(
+            Map<String, Integer> genreScores, int limit, String matchReason) {
+
+        return currentSnapshot().map(current -> {
+            // Trọng số theo index genre của pool (x10 để score rõ ràng hơn)
+            int[] weights = new int[current.genreIndex().size()];
+            genreScores.forEach((genre, count) -> {
+                Integer index = current.genreIndex().get(genre);
+                if (index != null) {
+                    weights[index] = count * 10;
+                }
+            });
+
+            List<Candidate> candidates = current.candidates();
+            int[] scores = new int[candidates.size()];
+            for (int i = 0; i < candidates.size(); i++) {
+                BitSet genres = candidates.get(i).genres();
+                int score = 0;
+                for (int g = genres.nextSetBit(0); g >= 0; g = genres.nextSetBit(g + 1)) {
+                    score += weights[g];
+                }
+                scores[i] = score;
+            }
+
+            return IntStream.range(0, candidates.size())
+                    .filter(i -> scores[i] > 0)
+                    .boxed()
+                    .sorted((a, b) -> Integer.compare(scores[b], scores[a]))
+                    .limit(limit)
+                    .map(i -> {
+                        RecommendationResponse.AnimeRecommendation anime = copyOf(candidates.get(i).template());
+                        anime.setScore(scores[i]);
+                        anime.setMatchReason(matchReason);
+                        return anime;
+                    })
+                    .collect(Collectors.toList());
+        });
+    }
+
+    public int size() {
+        return snapshot.candidates().size();
+    }
+
+    private Mono<Snapshot> currentSnapshot() {
+        Snapshot current = snapshot;
+        return current.candidates().isEmpty() ? refreshNow() : Mono.just(current);
+    }
+
+    /**
+     * Tải lại pool; các lời gọi đồng thời dùng chung 1 lần tải
+     */
+    private Mono<Snapshot> refreshNow() {
+        // Chỉ gỡ đúng lần tải này: lần tải mới có thể đã được đăng ký trước khi doFinally chạy
+        AtomicReference<Mono<Snapshot>> self = new AtomicReference<>();
+        Mono<Snapshot> refresh = fetchCandidates()
+                .map(this::buildSnapshot)
+                .doOnNext(built -> {
+                    if (!built.candidates().isEmpty()) {
+                        snapshot = built;
+                    }
+                    log.info("✅ Trending candidate pool refreshed: {} anime, {} genres",
+                            built.candidates().size(), built.genreIndex().size());
+                })
+                .map(built -> snapshot)
+                .onErrorResume(e -> {
+                    log.error("❌ Failed to refresh trending candidate pool: {}", e.getMessage());
+                    return Mono.just(snapshot);
+                })
+                .doFinally(signal -> pendingRefresh.compareAndSet(self.get(), null))
+                .cache();
+        self.set(refresh);
+
+        // Lần tải đang chạy có thể vừa xong giữa get() và CAS => thử lại thay vì trả null
+        while (true) {
+            Mono<Snapshot> pending = pendingRefresh.get();
+            if (pending != null) {
+                return pending;
+            }
+            if (pendingRefresh.compareAndSet(null, refresh)) {
+                return refresh;
+            }
+        }
+    }
+
+    private Mono<List<RecommendationResponse.AnimeRecommendation>> fetchCandidates() {
+        return Flux.range(1, pages)
+                .concatMap(page -> animeCatalogClient.get()
+                        .uri("/trending?page={page}&perPage={perPage}", page, perPage)
+                        .retrieve()
+                        .bodyToMono(JsonNode.class)
+                        .timeout(Duration.ofSeconds(10))
+                        .map(this::parseMediaList)
+                        .onErrorResume(e -> {
+                            log.warn("⚠️ Failed to fetch trending page {}: {}", page, e.getMessage());
+                            return Mono.just(Collections.emptyList());
+                        }))
+                .takeUntil(List::isEmpty)
+                .flatMapIterable(list -> list)
+                .collectList();
+    }
+
+    /**
+     * Parse response từ catalog service: data là mảng AnimeResponse (hoặc data.Page.media kiểu AniList)
+     */
+    private List<RecommendationResponse.AnimeRecommendation> parseMediaList(JsonNode response) {
+        JsonNode data = response.path("data");
+        JsonNode mediaList = data.isArray() ? data : data.path("Page").path("media");
+
+        List<RecommendationResponse.AnimeRecommendation> recommendations = new ArrayList<>();
+        if (!mediaList.isArray()) {
+            return recommendations;
+        }
+
+        mediaList.forEach(node -> {
+            // Parse genres
+            List<String> genres = new ArrayList<>();
+            JsonNode genresNode = node.path("genres");
+            if (genresNode.isArray()) {
+                genresNode.forEach(g -> genres.add(g.asText()));
+            }
+
+            recommendations.add(RecommendationResponse.AnimeRecommendation.builder()
+                    .id(node.path("id").asText())
+                    .title(node.path("title").path("userPreferred").asText())
+                    .coverImage(node.path("coverImage").path("large").asText())
+                    .bannerImage(node.path("bannerImage").asText(null))
+                    .genres(genres)
+                    .averageScore(node.path("averageScore").asInt(0))
+                    .popularity(node.path("popularity").asInt(0))
+                    .status(node.path("status").asText())
+                    .format(node.path("format").asText())
+                    .score(80) // Default score, sẽ được recalculate
+                    .matchReason("Trending now")
+                    .build());
+        });
+        return recommendations;
+    }
+
+    private Snapshot buildSnapshot(List<RecommendationResponse.AnimeRecommendation> templates) {
+        Map<String, Integer> genreIndex = new HashMap<>();
+        Set<String> seenIds = new HashSet<>();
+        List<Candidate> candidates = new ArrayList<>(templates.size());
+
+        for (RecommendationResponse.AnimeRecommendation template : templates) {
+            if (!seenIds.add(template.getId())) {
+                continue;
+            }
+            BitSet genres = new BitSet();
+            for (String genre : template.getGenres()) {
+                genres.set(genreIndex.computeIfAbsent(genre, g -> genreIndex.size()));
+            }
+            candidates.add(new Candidate(template, genres));
+        }
+
+        return new Snapshot(List.copyOf(candidates), Map.copyOf(genreIndex));
+    }
+
+    private RecommendationResponse.AnimeRecommendation copyOf(RecommendationResponse.AnimeRecommendation template) {
+        return RecommendationResponse.AnimeRecommendation.builder()
+                .id(template.getId())
+                .title(template.getTitle())
+                .coverImage(template.getCoverImage())
+                .bannerImage(template.getBannerImage())
+                .genres(template.getGenres())
+                .averageScore(template.getAverageScore())
+                .popularity(template.getPopularity())
+                .status(template.getStatus())
+                .format(template.getFormat())
+                .score(template.getScore())
+                .matchReason(template.getMatchReason())
+                .build();
+    }
+
+    private record Candidate(RecommendationResponse.AnimeRecommendation template, BitSet genres) {
+    }
+
+    private record Snapshot(List<Candidate> candidates, Map<String, Integer> genreIndex) {
+        static final Snapshot EMPTY = new Snapshot(List.of(), Map.of());
+    }
+}
@@ -0,0 +1,190 @@
+package com.animeflix.userservice.service;
+
+import com.animeflix.userservice.repository.NotificationRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ✅ Counter thông báo chưa đọc trên Redis: notifications:unread:{userId}
+ *
+ * - Đọc: GET, chưa có key thì đếm từ Mongo 1 lần rồi SET NX
+ * - Ghi: Lua cộng delta chỉ khi key đã tồn tại (không tạo counter sai khi chưa khởi tạo)
+ * - Đối soát định kỳ với Mongo, mỗi lần đổi thì push badge count qua WebSocket
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class UnreadCounterService {
+
+    private final ReactiveRedisTemplate<String, String> redisTemplate;
+    private final NotificationRepository notificationRepo;
+    private final WebSocketNotificationService webSocketService;
+
+    private static final String UNREAD_PREFIX = "notifications:unread:";
+
+    // Trả về giá trị mới, -1 nếu counter chưa được khởi tạo
+    private static final RedisScript<Long> ADJUST_SCRIPT = RedisScript.of(
+            "local current = redis.call('GET', KEYS[1]) " +
+                    "if not current then return -1 end " +
+                    "local value = math.max(0, tonumber(current) + tonumber(ARGV[1])) " +
+                    "redis.call('SET', KEYS[1], value, 'PX', ARGV[2]) " +
+                    "return value",
+            Long.class);
+
+    // KEYS: counter | ARGV: expected, count, ttlMs => chỉ ghi khi counter chưa đổi từ lúc đọc
+    // (adjust chen vào giữa lúc đếm Mongo thì bỏ lượt này, lần đối soát sau xử lý)
+    private static final RedisScript<Long> RECONCILE_SCRIPT = RedisScript.of(
+            "if redis.call('GET', KEYS[1]) ~= ARGV[1] then return 0 end " +
+                    "redis.call('SET', KEYS[1], ARGV[2], 'PX', ARGV[3]) " +
+                    "return 1",
+            Long.class);
+
+    // Lượt đối soát trước chưa xong thì bỏ qua lượt mới
+    private final AtomicBoolean reconciling = new AtomicBoolean(false);
+
+    @Value("${features.notifications.unread-counter-ttl-hours:24}")
+    private long counterTtlHours;
+
+    @Value("${features.notifications.unread-reconcile-concurrency:8}")
+    private int reconcileConcurrency;
+
+    /**
+     * Số thông báo chưa đọc (badge)
+     */
+    public Mono<Long> getUnread(String userId) {
+        return redisTemplate.opsForValue().get(UNREAD_PREFIX + userId)
+                .map(Long::parseLong)
+                .switchIfEmpty(Mono.defer(() -> initialize(userId)))
+                .onErrorResume(e -> {
+                    log.warn("Unread counter unavailable for user: {}: {}", userId, e.getMessage());
+                    return notificationRepo.countByUserIdAndIsReadFalse(userId);
+                });
+    }
+
+    /**
+     * Cộng/trừ counter sau khi Mongo đã ghi xong, rồi push số mới cho user
+     */
+    public Mono<Void> adjust(String userId, long delta) {
+        return adjustCounter(userId, delta)
+                .switchIfEmpty(Mono.defer(() -> initialize(userId)))
+                .doOnNext(count -> webSocketService.sendUnreadCount(userId, count))
+                .onErrorResume(e -> {
+                    log.warn("Failed to update unread counter for user: {}: {}", userId, e.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    /**
+     * +1 cho mọi user của 1 đợt fan-out
+     * User chưa có counter thì bỏ qua (sẽ đếm lại khi đọc), tránh 1 count query / user
+     */
+    public Mono<Void> incrementAll(Collection<String> userIds) {
+        if (userIds.isEmpty()) {
+            return Mono.empty();
+        }
+
+        return Flux.fromIterable(userIds)
+                .flatMap(userId -> adjustCounter(userId, 1)
+                        .map(count -> Map.entry(userId, count)), 64)
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue)
+                .doOnNext(webSocketService::sendUnreadCounts)
+                .onErrorResume(e -> {
+                    log.warn("Failed to update unread counters for {} users: {}", userIds.size(), e.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    /**
+     * Đặt counter về 0 (mark all read / xóa tất cả)
+     */
+    public Mono<Void> reset(String userId) {
+        return redisTemplate.opsForValue().set(UNREAD_PREFIX + userId, "0", counterTtl())
+                .doOnNext(ok -> webSocketService.sendUnreadCount(userId, 0L))
+                .onErrorResume(e -> {
+                    log.warn("Failed to reset unread counter for user: {}: {}", userId, e.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    /**
+     * Đối soát counter đang có trên Redis với Mongo
+     * (notification hết hạn bị TTL index xóa, ghi Redis lỗi, ...)
+     */
+    @Scheduled(fixedDelayString = "${features.notifications.unread-reconcile-interval-ms:300000}")
+    public void reconcile() {
+        // Chạy nền, không giữ thread của scheduler trong lúc quét
+        if (!reconciling.compareAndSet(false, true)) {
+            log.debug("Unread counter reconciliation still running, skipping");
+            return;
+        }
+
+        long startedAt = System.currentTimeMillis();
+
+        redisTemplate.scan(ScanOptions.scanOptions().match(UNREAD_PREFIX + "*").count(500).build())
+                .flatMap(key -> reconcileKey(key)
+                        .onErrorResume(e -> {
+                            log.warn("Failed to reconcile unread counter {}: {}", key, e.getMessage());
+                            return Mono.empty();
+                        }), reconcileConcurrency)
+                .filter(Boolean::booleanValue)
+                .count()
+                .doOnNext(count -> log.debug("🔄 Reconciled {} unread counters in {} ms",
+                        count, System.currentTimeMillis() - startedAt))
+                .doFinally(signal -> reconciling.set(false))
+                .subscribe(null, e -> log.error("❌ Unread counter reconciliation failed: {}", e.getMessage()));
+    }
+
+    /**
+     * Đọc counter, đếm Mongo, rồi compare-and-set
+     * @return true nếu đã ghi giá trị mới
+     */
+    private Mono<Boolean> reconcileKey(String key) {
+        String userId = key.substring(UNREAD_PREFIX.length());
+
+        return redisTemplate.opsForValue().get(key)
+                .flatMap(expected -> notificationRepo.countByUserIdAndIsReadFalse(userId)
+                        .filter(count -> !String.valueOf(count).equals(expected))
+                        .flatMap(count -> redisTemplate.execute(RECONCILE_SCRIPT, List.of(key), List.of(
+                                        expected,
+                                        String.valueOf(count),
+                                        String.valueOf(counterTtl().toMillis())))
+                                .next()
+                                .map(updated -> updated == 1)));
+    }
+
+    private Mono<Long> adjustCounter(String userId, long delta) {
+        return redisTemplate.execute(ADJUST_SCRIPT,
+                        List.of(UNREAD_PREFIX + userId),
+                        List.of(String.valueOf(delta), String.valueOf(counterTtl().toMillis())))
+                .next()
+                .filter(value -> value >= 0);
+    }
+
+    private Mono<Long> initialize(String userId) {
+        return notificationRepo.countByUserIdAndIsReadFalse(userId)
+                .flatMap(count -> redisTemplate.opsForValue()
+                        .setIfAbsent(UNREAD_PREFIX + userId, String.valueOf(count), counterTtl())
+                        .thenReturn(count));
+    }
+
+    private Duration counterTtl() {
+        return Duration.ofHours(counterTtlHours);
+    }
+}
@@ -7,10 +7,19 @@ import com.animeflix.userservice.mapper.UserPreferenceMapper;
 import com.animeflix.userservice.repository.UserPreferenceRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Mono;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Service
 @RequiredArgsConstructor
@@ -20,6 +29,12 @@ public class UserPreferenceService {
     private final UserPreferenceRepository preferenceRepo;
     private final UserPreferenceMapper mapper;
 
+    // Cache cờ enableNotifications + kiểu delivery: userId -> (mode, expiresAt)
+    private final Map<String, CachedMode> notificationModeCache = new ConcurrentHashMap<>();
+
+    @Value("${features.notifications.preference-cache-ttl-seconds:60}")
+    private long preferenceCacheTtlSeconds;
+
     /**
      * Lấy preferences của user (tạo mới nếu chưa có)
      */
@@ -40,6 +55,7 @@ public class UserPreferenceService {
                     preference.setUpdatedAt(LocalDateTime.now());
                     return preferenceRepo.save(preference);
                 })
+                .doOnNext(saved -> notificationModeCache.remove(userId))
                 .map(mapper::toResponse);
     }
 
@@ -53,6 +69,7 @@ public class UserPreferenceService {
                 .userId(userId)
                 .enableNotifications(true)
                 .notifyOnlyFavorites(false)
+                .notificationDelivery("immediate")
                 .notifyRecommendations(true)
                 .autoPlayNext(true)
                 .preferredQuality("1080p")
@@ -70,8 +87,118 @@ public class UserPreferenceService {
      * Check xem user có bật notifications không
      */
     public Mono<Boolean> isNotificationEnabled(String userId) {
+        DeliveryMode cached = getCachedMode(userId);
+        if (cached != null) {
+            return Mono.just(cached != DeliveryMode.DISABLED);
+        }
+
         return preferenceRepo.findByUserId(userId)
-                .map(UserPreference::getEnableNotifications)
-                .defaultIfEmpty(true);
+                .map(UserPreferenceService::toDeliveryMode)
+                .defaultIfEmpty(DeliveryMode.IMMEDIATE)
+                .doOnNext(mode -> cacheMode(userId, mode))
+                .map(mode -> mode != DeliveryMode.DISABLED);
+    }
+
+    /**
+     * Lọc ra các user bật notifications (1 query $in cho các user chưa có trong cache)
+     */
+    public Mono<List<String>> filterNotificationEnabled(Collection<String> userIds) {
+        return resolveNotificationTargets(userIds)
+                .map(targets -> {
+                    List<String> enabled = new ArrayList<>(targets.getImmediate());
+                    enabled.addAll(targets.getDigest());
+                    return enabled;
+                });
+    }
+
+    /**
+     * Chia các user bật notifications theo kiểu delivery: gửi ngay / gom vào digest
+     */
+    public Mono<NotificationTargets> resolveNotificationTargets(Collection<String> userIds) {
+        NotificationTargets targets = new NotificationTargets(new ArrayList<>(), new ArrayList<>());
+        Set<String> misses = new HashSet<>();
+
+        for (String userId : userIds) {
+            DeliveryMode cached = getCachedMode(userId);
+            if (cached == null) {
+                misses.add(userId);
+            } else {
+                targets.add(userId, cached);
+            }
+        }
+
+        if (misses.isEmpty()) {
+            return Mono.just(targets);
+        }
+
+        return preferenceRepo.findNotificationFlagsByUserIdIn(misses)
+                .collectMap(UserPreference::getUserId, UserPreferenceService::toDeliveryMode)
+                .map(modes -> {
+                    for (String userId : misses) {
+                        // Chưa có preference => mặc định bật, gửi ngay
+                        DeliveryMode mode = modes.getOrDefault(userId, DeliveryMode.IMMEDIATE);
+                        cacheMode(userId, mode);
+                        targets.add(userId, mode);
+                    }
+                    log.debug("Preference lookup: {} cached, {} fetched",
+                            userIds.size() - misses.size(), misses.size());
+                    return targets;
+                });
+    }
+
+    private static DeliveryMode toDeliveryMode(UserPreference preference) {
+        if (Boolean.FALSE.equals(preference.getEnableNotifications())) {
+            return DeliveryMode.DISABLED;
+        }
+        return "digest".equalsIgnoreCase(preference.getNotificationDelivery())
+                ? DeliveryMode.DIGEST
+                : DeliveryMode.IMMEDIATE;
+    }
+
+    private DeliveryMode getCachedMode(String userId) {
+        CachedMode cached = notificationModeCache.get(userId);
+        if (cached == null || cached.expiresAt() < System.currentTimeMillis()) {
+            return null;
+        }
+        return cached.mode();
+    }
+
+    private void cacheMode(String userId, DeliveryMode mode) {
+        notificationModeCache.put(userId, new CachedMode(
+                mode, System.currentTimeMillis() + preferenceCacheTtlSeconds * 1000));
+    }
+
+    /**
+     * Dọn các entry hết hạn trong cache
+     */
+    @Scheduled(fixedDelay = 60_000)
+    public void evictExpiredFlags() {
+        long now = System.currentTimeMillis();
+        notificationModeCache.values().removeIf(cached -> cached.expiresAt() < now);
+    }
+
+    private enum DeliveryMode {
+        DISABLED,
+        IMMEDIATE,
+        DIGEST
+    }
+
+    private record CachedMode(DeliveryMode mode, long expiresAt) {
+    }
+
+    // Kết quả chia user theo kiểu delivery
+    @lombok.Data
+    @lombok.AllArgsConstructor
+    public static class NotificationTargets {
+        private List<String> immediate;
+        private List<String> digest;
+
+        private void add(String userId, DeliveryMode mode) {
+            if (mode == DeliveryMode.IMMEDIATE) {
+                immediate.add(userId);
+            } else if (mode == DeliveryMode.DIGEST) {
+                digest.add(userId);
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,275 @@
+package com.animeflix.userservice.service;
+
+import com.animeflix.userservice.dto.response.UserStatsResponse;
+import com.animeflix.userservice.entity.Favorite;
+import com.animeflix.userservice.entity.UserStats;
+import com.animeflix.userservice.entity.WatchHistory;
+import com.animeflix.userservice.repository.FavoriteRepository;
+import com.animeflix.userservice.repository.UserStatsRepository;
+import com.animeflix.userservice.repository.WatchHistoryRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ✅ Thống kê user đọc từ projection user_stats (1 point read)
+ *
+ * Các service ghi history/favorites gọi record* để $inc counter (unread nằm ở UnreadCounterService),
+ * rebuild() tính lại từ collection gốc (backfill + đối soát định kỳ)
+ *
+ * Mọi lần ghi đều $inc revision; rebuild chỉ $set kết quả khi revision chưa đổi từ lúc đọc
+ * => $inc chen vào giữa lúc rebuild không bị ghi đè (rebuild thử lại, hết lượt thì để lần đối soát sau)
+ * Xóa history cũng cập nhật từng phần (không rebuild); lệch nhỏ khi flush chạy đúng lúc xóa
+ * được chấp nhận và sửa ở lần đối soát hằng đêm (rebuildAll)
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class UserStatsService {
+
+    private final UserStatsRepository statsRepo;
+    private final WatchHistoryRepository historyRepo;
+    private final FavoriteRepository favoriteRepo;
+    private final UnreadCounterService unreadCounter;
+    private final ReactiveMongoTemplate mongoTemplate;
+
+    @Value("${features.user-stats.rebuild-concurrency:4}")
+    private int rebuildConcurrency;
+
+    private static final int REBUILD_ATTEMPTS = 3;
+
+    // Lượt đối soát trước chưa xong thì bỏ qua lượt mới
+    private final AtomicBoolean rebuildingAll = new AtomicBoolean(false);
+
+    /**
+     * Lấy thống kê, chưa có projection thì rebuild (lazy backfill)
+     */
+    public Mono<UserStatsResponse> getStats(String userId) {
+        Mono<UserStats> stats = statsRepo.findCountersByUserId(userId)
+                .switchIfEmpty(Mono.defer(() -> rebuild(userId)));
+
+        // Unread lấy từ counter Redis (UnreadCounterService)
+        return Mono.zip(stats, unreadCounter.getUnread(userId))
+                .map(tuple -> toResponse(tuple.getT1(), tuple.getT2()));
+    }
+
+    // ========== INCREMENTAL UPDATES ==========
+
+    /**
+     * Cộng dồn thời gian xem (delta có thể âm khi user tua lại)
+     */
+    public Mono<Void> recordWatchTime(String userId, double deltaSeconds) {
+        if (deltaSeconds == 0) {
+            return Mono.empty();
+        }
+        return increment(userId, new Update().inc("totalWatchTimeSeconds", deltaSeconds));
+    }
+
+    /**
+     * Đánh dấu anime đã xem, chỉ $inc khi aniId chưa có trong set
+     */
+    public Mono<Void> recordAnimeWatched(String userId, String aniId) {
+        Query query = Query.query(Criteria.where("_id").is(userId).and("watchedAnimeIds").ne(aniId));
+        Update update = new Update()
+                .addToSet("watchedAnimeIds", aniId)
+                .inc("totalAnimeWatched", 1)
+                .inc("revision", 1)
+                .set("updatedAt", LocalDateTime.now());
+
+        return mongoTemplate.upsert(query, update, UserStats.class)
+                // Document đã có aniId => filter không match, upsert đụng _id => đã đếm rồi
+                .onErrorResume(DuplicateKeyException.class, e -> Mono.empty())
+                .onErrorResume(e -> {
+                    log.warn("Failed to update user stats for user: {}: {}", userId, e.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    public Mono<Void> recordFavoriteChange(String userId, long delta) {
+        return increment(userId, new Update().inc("favoritesCount", delta));
+    }
+
+    /**
+     * Xóa history của 1 anime: bỏ khỏi set đã xem + trừ thời gian xem của anime đó
+     */
+    public Mono<Void> recordAnimeRemoved(String userId, String aniId, double watchedSeconds) {
+        Query query = Query.query(Criteria.where("_id").is(userId).and("watchedAnimeIds").is(aniId));
+        Update update = new Update()
+                .pull("watchedAnimeIds", aniId)
+                .inc("totalAnimeWatched", -1)
+                .inc("revision", 1)
+                .set("updatedAt", LocalDateTime.now());
+
+        return mongoTemplate.updateFirst(query, update, UserStats.class)
+                .then(recordWatchTime(userId, -watchedSeconds))
+                .onErrorResume(e -> {
+                    log.warn("Failed to update user stats for user: {}: {}", userId, e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Xóa toàn bộ history: reset phần watch, giữ favoritesCount
+     */
+    public Mono<Void> recordHistoryCleared(String userId) {
+        return increment(userId, new Update()
+                .set("totalAnimeWatched", 0L)
+                .set("watchedAnimeIds", List.of())
+                .set("totalWatchTimeSeconds", 0.0));
+    }
+
+    private Mono<Void> increment(String userId, Update update) {
+        return mongoTemplate.upsert(Query.query(Criteria.where("_id").is(userId)),
+                        update.inc("revision", 1).set("updatedAt", LocalDateTime.now()), UserStats.class)
+                .onErrorResume(e -> {
+                    log.warn("Failed to update user stats for user: {}: {}", userId, e.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    // ========== REBUILD ==========
+
+    /**
+     * Tính lại projection của 1 user từ watch_history/favorites (compare-and-set theo revision)
+     */
+    public Mono<UserStats> rebuild(String userId) {
+        return Mono.defer(() -> currentRevision(userId)
+                        .flatMap(revision -> compute(userId)
+                                .flatMap(stats -> compareAndSet(stats, revision.orElse(null)))))
+                .retryWhen(Retry.max(REBUILD_ATTEMPTS - 1)
+                        .filter(e -> e instanceof OptimisticLockingFailureException || e instanceof DuplicateKeyException))
+                .doOnNext(stats -> log.debug("📊 Rebuilt stats for user: {}", userId))
+                .onErrorResume(e -> e instanceof OptimisticLockingFailureException || e instanceof DuplicateKeyException,
+                        e -> {
+                            // User đang ghi liên tục => giữ counter hiện tại, lần đối soát sau sửa drift
+                            log.debug("Stats of user {} kept changing during rebuild, skipping", userId);
+                            return statsRepo.findCountersByUserId(userId);
+                        });
+    }
+
+    private Mono<Optional<Long>> currentRevision(String userId) {
+        Query query = Query.query(Criteria.where("_id").is(userId));
+        query.fields().include("revision");
+
+        return mongoTemplate.findOne(query, UserStats.class)
+                .map(stats -> Optional.of(stats.getRevision() == null ? 0L : stats.getRevision()))
+                .defaultIfEmpty(Optional.empty());
+    }
+
+    private Mono<UserStats> compute(String userId) {
+        Mono<List<String>> animeIds = mongoTemplate.findDistinct(
+                        Query.query(Criteria.where("userId").is(userId)), "aniId", WatchHistory.class, String.class)
+                .collectList();
+        Mono<Long> totalSeconds = historyRepo.getTotalWatchedSeconds(userId).defaultIfEmpty(0L);
+        Mono<Long> favCount = favoriteRepo.countByUserId(userId);
+
+        return Mono.zip(animeIds, totalSeconds, favCount)
+                .map(tuple -> {
+                    LocalDateTime now = LocalDateTime.now();
+                    return UserStats.builder()
+                            .userId(userId)
+                            .totalAnimeWatched((long) tuple.getT1().size())
+                            .watchedAnimeIds(tuple.getT1())
+                            .totalWatchTimeSeconds(tuple.getT2().doubleValue())
+                            .favoritesCount(tuple.getT3())
+                            .updatedAt(now)
+                            .rebuiltAt(now)
+                            .build();
+                });
+    }
+
+    /**
+     * Chưa có document => insert (đụng _id = có người vừa tạo, thử lại)
+     * Đã có => $set khi revision vẫn như lúc đọc, không khớp => OptimisticLockingFailureException
+     */
+    private Mono<UserStats> compareAndSet(UserStats stats, Long expectedRevision) {
+        if (expectedRevision == null) {
+            stats.setRevision(1L);
+            return mongoTemplate.insert(stats);
+        }
+
+        Criteria revision = expectedRevision == 0
+                ? new Criteria().orOperator(Criteria.where("revision").exists(false), Criteria.where("revision").is(0L))
+                : Criteria.where("revision").is(expectedRevision);
+        Query query = Query.query(Criteria.where("_id").is(stats.getUserId())).addCriteria(revision);
+        Update update = new Update()
+                .set("totalAnimeWatched", stats.getTotalAnimeWatched())
+                .set("watchedAnimeIds", stats.getWatchedAnimeIds())
+                .set("totalWatchTimeSeconds", stats.getTotalWatchTimeSeconds())
+                .set("favoritesCount", stats.getFavoritesCount())
+                .set("updatedAt", stats.getUpdatedAt())
+                .set("rebuiltAt", stats.getRebuiltAt())
+                .inc("revision", 1);
+
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), UserStats.class)
+                .switchIfEmpty(Mono.error(() -> new OptimisticLockingFailureException(
+                        "User stats of " + stats.getUserId() + " changed during rebuild")));
+    }
+
+    /**
+     * Đối soát toàn bộ user (backfill lần đầu + sửa drift của counter)
+     */
+    @Scheduled(cron = "${features.user-stats.rebuild-cron:0 30 4 * * *}")
+    public void rebuildAll() {
+        // Chạy nền: rebuild có thể mất hàng chục phút, không giữ thread chung của scheduler
+        // (presence WebSocket, flush watch progress / digest dùng chung thread đó)
+        if (!rebuildingAll.compareAndSet(false, true)) {
+            log.debug("User stats rebuild still running, skipping");
+            return;
+        }
+
+        long startedAt = System.currentTimeMillis();
+
+        Flux.merge(
+                        distinctUserIds(WatchHistory.class),
+                        distinctUserIds(Favorite.class))
+                .distinct()
+                .flatMap(userId -> rebuild(userId)
+                        .onErrorResume(e -> {
+                            log.warn("Failed to rebuild stats for user: {}: {}", userId, e.getMessage());
+                            return Mono.empty();
+                        }), rebuildConcurrency)
+                .count()
+                .doOnNext(count -> log.info("📊 Rebuilt stats for {} users in {} ms",
+                        count, System.currentTimeMillis() - startedAt))
+                .doFinally(signal -> rebuildingAll.set(false))
+                .subscribe(null, e -> log.error("❌ User stats rebuild failed: {}", e.getMessage()));
+    }
+
+    private Flux<String> distinctUserIds(Class<?> entityClass) {
+        return mongoTemplate.findDistinct(new Query(), "userId", entityClass, String.class);
+    }
+
+    private UserStatsResponse toResponse(UserStats stats, Long unreadNotifications) {
+        return UserStatsResponse.builder()
+                .totalAnimeWatched(valueOf(stats.getTotalAnimeWatched()))
+                .totalWatchTimeSeconds(stats.getTotalWatchTimeSeconds() == null
+                        ? 0L : Math.max(0L, Math.round(stats.getTotalWatchTimeSeconds())))
+                .favoritesCount(valueOf(stats.getFavoritesCount()))
+                .unreadNotifications(valueOf(unreadNotifications))
+                .build();
+    }
+
+    private Long valueOf(Long counter) {
+        return counter == null ? 0L : Math.max(0L, counter);
+    }
+}
@@ -1,10 +1,12 @@
 package com.animeflix.userservice.service;
 
 import com.animeflix.userservice.dto.request.AddHistoryRequest;
+import com.animeflix.userservice.dto.response.CursorPageResponse;
 import com.animeflix.userservice.dto.response.WatchHistoryResponse;
 import com.animeflix.userservice.entity.WatchHistory;
 import com.animeflix.userservice.mapper.WatchHistoryMapper;
 import com.animeflix.userservice.repository.WatchHistoryRepository;
+import com.animeflix.userservice.util.CursorUtil;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.domain.PageRequest;
@@ -22,64 +24,35 @@ public class WatchHistoryService {
 
     private final WatchHistoryRepository historyRepo;
     private final WatchHistoryMapper mapper;
-    private final ContinueWatchingService continueWatchingService;
+    private final WatchProgressBuffer progressBuffer;
+    private final UserStatsService userStatsService;
 
     /**
      * Thêm/Update watch history
+     *
+     * Heartbeat được gom vào WatchProgressBuffer, chỉ ghi xuống Mongo khi flush định kỳ
+     * hoặc ngay khi xem xong tập
      */
     public Mono<WatchHistoryResponse> addOrUpdateHistory(String userId, AddHistoryRequest request) {
         log.debug("Adding watch history for user: {}, anime: {}, episode: {}",
                 userId, request.getAniId(), request.getEpNum());
 
-        // Tìm history của episode này
-        return historyRepo.findByUserIdAndAniIdAndEpId(userId, request.getAniId(), request.getEpId())
-                .flatMap(existing -> updateExisting(existing, request))
-                .switchIfEmpty(Mono.defer(() -> createNew(userId, request)))
-                .flatMap(historyRepo::save)
-                .doOnNext(saved -> {
-                    // Async update continue-watching
-                    continueWatchingService.updateFromHistory(saved)
-                            .subscribe(
-                                    cw -> log.debug("Updated continue-watching for anime: {}", saved.getAniId()),
-                                    err -> log.warn("Failed to update continue-watching: {}", err.getMessage())
-                            );
-                })
-                .map(mapper::toResponse);
-    }
-
-    private Mono<WatchHistory> updateExisting(WatchHistory existing, AddHistoryRequest request) {
-        // Update progress
-        existing.setTimeWatched(request.getTimeWatched());
-        existing.setDuration(request.getDuration());
-        existing.setProgress(calculateProgress(request.getTimeWatched(), request.getDuration()));
-        existing.setCompleted(request.getCompleted());
-
-        if (request.getEpTitle() != null) {
-            existing.setEpTitle(request.getEpTitle());
-        }
-
-        existing.setNextepId(request.getNextepId());
-        existing.setNextepNum(request.getNextepNum());
-
-        if (request.getProvider() != null) {
-            existing.setProvider(request.getProvider());
-        }
-        if (request.getSubtype() != null) {
-            existing.setSubtype(request.getSubtype());
-        }
-        if (request.getDevice() != null) {
-            existing.setDevice(request.getDevice());
-        }
-        if (request.getQuality() != null) {
-            existing.setQuality(request.getQuality());
-        }
+        return progressBuffer.offer(toHistory(userId, request))
+                .flatMap(buffered -> {
+                    if (!isFinished(buffered)) {
+                        return Mono.just(mapper.toResponse(buffered));
+                    }
 
-        existing.setUpdatedAt(LocalDateTime.now());
-        return Mono.just(existing);
+                    // Xem xong => flush ngay để continue-watching được dọn
+                    return progressBuffer.flushEntry(userId, request.getAniId(), request.getEpId())
+                            .thenReturn(mapper.toResponse(buffered));
+                });
     }
 
-    private Mono<WatchHistory> createNew(String userId, AddHistoryRequest request) {
-        return Mono.just(WatchHistory.builder()
+    private WatchHistory toHistory(String userId, AddHistoryRequest request) {
+        LocalDateTime now = LocalDateTime.now();
+
+        return WatchHistory.builder()
                 .userId(userId)
 
                 .aniId(request.getAniId())
@@ -93,20 +66,25 @@ public class WatchHistoryService {
                 .timeWatched(request.getTimeWatched())
                 .duration(request.getDuration())
                 .progress(calculateProgress(request.getTimeWatched(), request.getDuration()))
-                .completed(request.getCompleted())
+                .completed(Boolean.TRUE.equals(request.getCompleted()))
 
                 .nextepId(request.getNextepId())
                 .nextepNum(request.getNextepNum())
 
                 .provider(request.getProvider())
-                .subtype(request.getSubtype() != null ? request.getSubtype() : "sub")
+                .subtype(request.getSubtype())
 
                 .device(request.getDevice())
                 .quality(request.getQuality())
 
-                .createdAt(LocalDateTime.now())
-                .updatedAt(LocalDateTime.now())
-                .build());
+                .createdAt(now)
+                .updatedAt(now)
+                .build();
+    }
+
+    private boolean isFinished(WatchHistory history) {
+        return Boolean.TRUE.equals(history.getCompleted())
+                || (history.getProgress() != null && history.getProgress() >= 0.9);
     }
 
     /**
@@ -123,16 +101,39 @@ public class WatchHistoryService {
      * Lấy lịch sử xem (phân trang)
      */
     public Flux<WatchHistoryResponse> getHistory(String userId, int page, int size) {
-        Pageable pageable = PageRequest.of(page, size);
-        return historyRepo.findByUserIdOrderByCreatedAtDesc(userId, pageable)
+        Pageable pageable = PageRequest.of(Math.max(0, page), CursorUtil.clampSize(size));
+        return progressBuffer.flushUser(userId)
+                .thenMany(historyRepo.findByUserIdOrderByCreatedAtDesc(userId, pageable))
                 .map(mapper::toResponse);
     }
 
+    /**
+     * Lấy lịch sử xem theo cursor (keyset), after rỗng = trang đầu
+     */
+    public Mono<CursorPageResponse<WatchHistoryResponse>> getHistoryPage(String userId, String after, int size) {
+        int limit = CursorUtil.clampSize(size);
+        Pageable pageable = PageRequest.of(0, limit + 1);
+
+        Flux<WatchHistory> rows = Flux.defer(() -> {
+            if (after == null || after.isBlank()) {
+                return historyRepo.findByUserIdOrderByCreatedAtDescIdDesc(userId, pageable);
+            }
+            CursorUtil.Cursor cursor = CursorUtil.decode(after);
+            return historyRepo.findPageAfter(userId, cursor.timestamp(), cursor.id(), pageable);
+        });
+
+        return progressBuffer.flushUser(userId)
+                .thenMany(rows)
+                .collectList()
+                .map(list -> CursorUtil.toPage(list, limit, WatchHistory::getCreatedAt, WatchHistory::getId, mapper::toResponse));
+    }
+
     /**
      * Lấy lịch sử xem của 1 anime cụ thể
      */
     public Flux<WatchHistoryResponse> getHistoryByAnime(String userId, String aniId) {
-        return historyRepo.findByUserIdAndAniIdOrderByCreatedAtDesc(userId, aniId)
+        return progressBuffer.flushUser(userId)
+                .thenMany(historyRepo.findByUserIdAndAniIdOrderByCreatedAtDesc(userId, aniId))
                 .map(mapper::toResponse);
     }
 
@@ -140,27 +141,36 @@ public class WatchHistoryService {
      * Xóa lịch sử của 1 anime
      */
     public Mono<Void> deleteByAnime(String userId, String aniId) {
-        return historyRepo.deleteByUserIdAndAniId(userId, aniId);
+        return progressBuffer.discard(userId, aniId)
+                .then(historyRepo.getWatchedSecondsByAnime(userId, aniId).defaultIfEmpty(0.0))
+                .flatMap(seconds -> historyRepo.deleteByUserIdAndAniId(userId, aniId)
+                        .filter(deleted -> deleted > 0)
+                        .flatMap(deleted -> userStatsService.recordAnimeRemoved(userId, aniId, seconds)))
+                .then();
     }
 
     /**
      * Xóa toàn bộ lịch sử
      */
     public Mono<Void> clearHistory(String userId) {
-        return historyRepo.deleteByUserId(userId);
+        return progressBuffer.discardUser(userId)
+                .then(historyRepo.deleteByUserId(userId))
+                .then(userStatsService.recordHistoryCleared(userId));
     }
 
     /**
      * Đếm số anime đã xem
      */
     public Mono<Long> countAnimeWatched(String userId) {
-        return historyRepo.countDistinctAnimeByUserId(userId);
+        return progressBuffer.flushUser(userId)
+                .then(historyRepo.countDistinctAnimeByUserId(userId));
     }
 
     /**
      * Tổng thời gian xem
      */
     public Mono<Long> getTotalWatchedSeconds(String userId) {
-        return historyRepo.getTotalWatchedSeconds(userId);
+        return progressBuffer.flushUser(userId)
+                .then(historyRepo.getTotalWatchedSeconds(userId));
     }
 }
\ No newline at end of file
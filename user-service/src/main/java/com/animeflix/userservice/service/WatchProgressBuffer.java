@@ -0,0 +1,451 @@
+package com.animeflix.userservice.service;
+
+import com.animeflix.userservice.entity.WatchHistory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.mongodb.bulk.BulkWriteResult;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ✅ Write-behind buffer cho watch-progress heartbeat
+ *
+ * Player gửi heartbeat vài giây 1 lần => chỉ giữ bản mới nhất cho mỗi {userId, aniId, epId},
+ * flush xuống Mongo bằng bulk upsert theo chu kỳ hoặc khi xem xong tập.
+ * Mỗi lần flush cũng cập nhật projection user_stats theo delta timeWatched
+ *
+ * Buffer nằm trên Redis (dùng chung mọi replica):
+ * - HASH watch:buffer:{userId}: aniId|epId -> WatchHistory JSON
+ * - SET watch:buffer:dirty: user có buffer chờ flush
+ * - Lấy ra để flush bằng Lua (HVALS + DEL) => heartbeat đến sau đó vào buffer mới, không bị mất
+ * - Ghi Mongo lỗi => trả entry về bằng HSETNX (heartbeat mới hơn đã đến thì giữ bản mới)
+ * => request đọc ở replica nào cũng flush được buffer của user
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class WatchProgressBuffer {
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final ReactiveRedisTemplate<String, String> redisTemplate;
+    private final ContinueWatchingService continueWatchingService;
+    private final UserStatsService userStatsService;
+
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+
+    private static final String BUFFER_PREFIX = "watch:buffer:";
+    private static final String DIRTY_KEY = "watch:buffer:dirty";
+
+    // Buffer không được flush (mất dirty set...) thì tự hết hạn
+    private static final Duration BUFFER_TTL = Duration.ofDays(1);
+
+    // KEYS: buffer, dirty | ARGV: userId => JSON array các entry, buffer bị xóa
+    private static final RedisScript<String> TAKE_ALL_SCRIPT = RedisScript.of(
+            "redis.call('SREM', KEYS[2], ARGV[1]) " +
+                    "local items = redis.call('HVALS', KEYS[1]) " +
+                    "if #items == 0 then return '' end " +
+                    "redis.call('DEL', KEYS[1]) " +
+                    "return '[' .. table.concat(items, ',') .. ']'",
+            String.class);
+
+    // KEYS: buffer | ARGV: field => entry JSON (đã xóa khỏi buffer), rỗng nếu không có
+    private static final RedisScript<String> TAKE_ONE_SCRIPT = RedisScript.of(
+            "local item = redis.call('HGET', KEYS[1], ARGV[1]) " +
+                    "if not item then return '' end " +
+                    "redis.call('HDEL', KEYS[1], ARGV[1]) " +
+                    "return item",
+            String.class);
+
+    // KEYS: buffer, dirty | ARGV: userId, ttlMs, field1, value1, ... => trả entry về sau khi flush lỗi
+    private static final RedisScript<Long> RESTORE_SCRIPT = RedisScript.of(
+            "local restored = 0 " +
+                    "for i = 3, #ARGV, 2 do restored = restored + redis.call('HSETNX', KEYS[1], ARGV[i], ARGV[i + 1]) end " +
+                    "redis.call('PEXPIRE', KEYS[1], ARGV[2]) " +
+                    "redis.call('SADD', KEYS[2], ARGV[1]) " +
+                    "return restored",
+            Long.class);
+
+    // KEYS: buffer | ARGV: prefix "aniId|" => xóa các tập của 1 anime
+    private static final RedisScript<Long> DISCARD_ANIME_SCRIPT = RedisScript.of(
+            "local removed = 0 " +
+                    "for _, field in ipairs(redis.call('HKEYS', KEYS[1])) do " +
+                    "if string.sub(field, 1, #ARGV[1]) == ARGV[1] then " +
+                    "removed = removed + redis.call('HDEL', KEYS[1], field) end " +
+                    "end " +
+                    "return removed",
+            Long.class);
+
+    private static final Comparator<WatchHistory> UPDATED_AT_ORDER = Comparator.comparing(
+            WatchHistory::getUpdatedAt, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    // Lượt flush trước chưa xong thì bỏ qua lượt mới
+    private final AtomicBoolean flushing = new AtomicBoolean(false);
+
+    // Số user lấy ra mỗi lượt flush định kỳ
+    @Value("${features.watch-history.flush-batch-users:1000}")
+    private int flushBatchUsers;
+
+    // Số tập tối đa trong 1 query $or tra timeWatched cũ
+    @Value("${features.watch-history.lookup-chunk-size:500}")
+    private int lookupChunkSize;
+
+    /**
+     * Ghi nhận heartbeat, trả về trạng thái đã merge
+     * Redis lỗi => ghi thẳng Mongo, không mất progress
+     */
+    public Mono<WatchHistory> offer(WatchHistory update) {
+        String key = BUFFER_PREFIX + update.getUserId();
+        String field = entryKey(update.getAniId(), update.getEpId());
+
+        return redisTemplate.<String, String>opsForHash().get(key, field)
+                .map(this::parse)
+                .map(previous -> mergeEntry(previous, update))
+                .defaultIfEmpty(update)
+                .flatMap(merged -> redisTemplate.<String, String>opsForHash().put(key, field, serialize(merged))
+                        .then(redisTemplate.expire(key, BUFFER_TTL))
+                        .then(redisTemplate.opsForSet().add(DIRTY_KEY, update.getUserId()))
+                        .thenReturn(merged))
+                .onErrorResume(e -> {
+                    log.warn("Watch progress buffer unavailable, writing through for user: {}: {}",
+                            update.getUserId(), e.getMessage());
+                    return write(List.of(update)).thenReturn(update);
+                });
+    }
+
+    /**
+     * Flush ngay 1 tập (khi xem xong)
+     */
+    public Mono<Void> flushEntry(String userId, String aniId, String epId) {
+        return redisTemplate.execute(TAKE_ONE_SCRIPT, List.of(BUFFER_PREFIX + userId), List.of(entryKey(aniId, epId)))
+                .next()
+                .filter(json -> !json.isEmpty())
+                .map(this::parse)
+                .flatMap(entry -> writeOrRestore(List.of(entry)));
+    }
+
+    /**
+     * Flush toàn bộ buffer của 1 user (trước khi đọc history)
+     */
+    public Mono<Void> flushUser(String userId) {
+        return take(userId)
+                .filter(entries -> !entries.isEmpty())
+                .flatMap(this::writeOrRestore);
+    }
+
+    /**
+     * Bỏ buffer của 1 anime (trước khi xóa history, tránh ghi lại bản đã xóa)
+     */
+    public Mono<Void> discard(String userId, String aniId) {
+        return redisTemplate.execute(DISCARD_ANIME_SCRIPT, List.of(BUFFER_PREFIX + userId), List.of(aniId + "|"))
+                .then();
+    }
+
+    /**
+     * Bỏ toàn bộ buffer của user
+     */
+    public Mono<Void> discardUser(String userId) {
+        return redisTemplate.delete(BUFFER_PREFIX + userId)
+                .then(redisTemplate.opsForSet().remove(DIRTY_KEY, userId))
+                .then();
+    }
+
+    @Scheduled(fixedDelayString = "${features.watch-history.flush-interval-ms:10000}")
+    public void scheduledFlush() {
+        // Chạy nền, không giữ thread chung của scheduler (presence WebSocket, digest flush, ...)
+        if (!flushing.compareAndSet(false, true)) {
+            log.debug("Watch progress flush still running, skipping");
+            return;
+        }
+
+        flushAll()
+                .doFinally(signal -> flushing.set(false))
+                .subscribe(null, e -> log.error("❌ Failed to flush watch progress buffer: {}", e.getMessage()));
+    }
+
+    /**
+     * Entry đã lấy khỏi Redis trong lượt này được giữ lại đến khi ghi xong:
+     * lỗi trước lúc ghi / lượt flush bị hủy => trả về buffer (lỗi lúc ghi do writeOrRestore xử lý)
+     */
+    private Mono<Void> flushAll() {
+        List<WatchHistory> taken = new CopyOnWriteArrayList<>();
+
+        return redisTemplate.opsForSet().pop(DIRTY_KEY, flushBatchUsers)
+                .flatMap(this::take, 16)
+                .doOnNext(taken::addAll)
+                .then(Mono.fromCallable(() -> List.copyOf(taken)))
+                .onErrorResume(e -> restoreTaken(taken).then(Mono.error(e)))
+                .filter(entries -> !entries.isEmpty())
+                .flatMap(this::writeOrRestore)
+                .doOnCancel(() -> restoreTaken(taken).subscribe());
+    }
+
+    private Mono<Void> restoreTaken(List<WatchHistory> taken) {
+        return taken.isEmpty() ? Mono.empty() : restore(List.copyOf(taken));
+    }
+
+    /**
+     * Lấy (và xóa) toàn bộ buffer của 1 user trong 1 lệnh Lua
+     * Lỗi của 1 user (Redis lỗi, JSON hỏng) không làm hỏng lượt flush của các user khác
+     */
+    private Mono<List<WatchHistory>> take(String userId) {
+        return redisTemplate.execute(TAKE_ALL_SCRIPT, List.of(BUFFER_PREFIX + userId, DIRTY_KEY), List.of(userId))
+                .next()
+                .filter(json -> !json.isEmpty())
+                .map(json -> {
+                    try {
+                        return objectMapper.readValue(json, new TypeReference<List<WatchHistory>>() {
+                        });
+                    } catch (JsonProcessingException e) {
+                        throw new IllegalStateException("Corrupted watch progress buffer of user " + userId, e);
+                    }
+                })
+                .defaultIfEmpty(List.of())
+                .onErrorResume(e -> {
+                    // Buffer hỏng đã bị xóa bởi script => chỉ mất buffer của user này
+                    log.error("❌ Dropped watch progress buffer of user {}: {}", userId, e.getMessage());
+                    return Mono.just(List.of());
+                });
+    }
+
+    /**
+     * Ghi Mongo, lỗi thì trả entry về buffer để lượt flush sau ghi lại
+     */
+    private Mono<Void> writeOrRestore(List<WatchHistory> entries) {
+        return write(entries)
+                .onErrorResume(e -> restore(entries)
+                        .then(Mono.error(e)));
+    }
+
+    private Mono<Void> restore(List<WatchHistory> entries) {
+        Map<String, List<String>> argsByUser = new HashMap<>();
+        for (WatchHistory entry : entries) {
+            List<String> args = argsByUser.computeIfAbsent(entry.getUserId(),
+                    userId -> new ArrayList<>(List.of(userId, String.valueOf(BUFFER_TTL.toMillis()))));
+            args.add(entryKey(entry.getAniId(), entry.getEpId()));
+            args.add(serialize(entry));
+        }
+
+        return Flux.fromIterable(argsByUser.entrySet())
+                .flatMap(user -> redisTemplate.execute(RESTORE_SCRIPT,
+                                List.of(BUFFER_PREFIX + user.getKey(), DIRTY_KEY), user.getValue())
+                        .onErrorResume(e -> {
+                            log.error("❌ Lost {} watch progress entries of user {}: {}",
+                                    user.getValue().size() / 2 - 1, user.getKey(), e.getMessage());
+                            return Mono.empty();
+                        }), 16)
+                .then()
+                .doOnSuccess(ignored -> log.warn("↩️ Returned {} watch progress entries to buffer after failed flush",
+                        entries.size()));
+    }
+
+    /**
+     * Bulk upsert (unordered) rồi cập nhật continue-watching + user stats cho các tập vừa flush
+     */
+    private Mono<Void> write(List<WatchHistory> entries) {
+        long startedAt = System.currentTimeMillis();
+
+        return findPreviousTimeWatched(entries)
+                .flatMap(previous -> bulkUpsert(entries)
+                        .doOnNext(result -> log.debug("💾 Flushed {} watch progress entries ({} upserted, {} modified) in {} ms",
+                                entries.size(),
+                                result.getUpserts().size(),
+                                result.getModifiedCount(),
+                                System.currentTimeMillis() - startedAt))
+                        .then(recordStats(entries, previous)))
+                // Nhiều tập của cùng 1 anime trong 1 lượt => chỉ tập xem gần nhất quyết định continue-watching
+                .thenMany(Flux.fromIterable(latestPerAnime(entries))
+                        .flatMap(entry -> continueWatchingService.updateFromHistory(entry)
+                                .onErrorResume(e -> {
+                                    log.warn("Failed to update continue-watching: {}", e.getMessage());
+                                    return Mono.empty();
+                                }), 16))
+                .then();
+    }
+
+    /**
+     * Entry có updatedAt mới nhất cho mỗi {userId, aniId}
+     */
+    static List<WatchHistory> latestPerAnime(List<WatchHistory> entries) {
+        Map<String, WatchHistory> latest = new LinkedHashMap<>();
+        for (WatchHistory entry : entries) {
+            latest.merge(entry.getUserId() + "|" + entry.getAniId(), entry,
+                    (current, candidate) -> UPDATED_AT_ORDER.compare(candidate, current) > 0 ? candidate : current);
+        }
+        return new ArrayList<>(latest.values());
+    }
+
+    private Mono<BulkWriteResult> bulkUpsert(List<WatchHistory> entries) {
+        return Mono.defer(() -> {
+                    var bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, WatchHistory.class);
+                    entries.forEach(entry -> bulkOps.upsert(entryQuery(entry), toUpsert(entry)));
+                    return bulkOps.execute();
+                })
+                // 2 node flush cùng 1 tập => upsert đụng index unique, chạy lại sẽ thành update
+                .retryWhen(Retry.max(1).filter(DuplicateKeyException.class::isInstance));
+    }
+
+    /**
+     * timeWatched đang lưu của các tập sắp flush (chỉ project key + timeWatched)
+     * Chia $or theo lookup-chunk-size: flush lớn không tạo 1 query khổng lồ (giới hạn 16MB / plan $or)
+     */
+    private Mono<Map<String, Double>> findPreviousTimeWatched(List<WatchHistory> entries) {
+        return Flux.fromIterable(chunk(entries, lookupChunkSize))
+                .concatMap(chunk -> {
+                    Query query = new Query(new Criteria().orOperator(chunk.stream()
+                            .map(entry -> Criteria.where("userId").is(entry.getUserId())
+                                    .and("aniId").is(entry.getAniId())
+                                    .and("epId").is(entry.getEpId()))
+                            .toList()));
+                    query.fields().include("userId", "aniId", "epId", "timeWatched");
+                    return mongoTemplate.find(query, WatchHistory.class);
+                })
+                .collectMap(this::statsKey, existing -> valueOf(existing.getTimeWatched()));
+    }
+
+    private static <T> List<List<T>> chunk(List<T> items, int size) {
+        List<List<T>> chunks = new ArrayList<>();
+        for (int i = 0; i < items.size(); i += size) {
+            chunks.add(items.subList(i, Math.min(i + size, items.size())));
+        }
+        return chunks;
+    }
+
+    /**
+     * $inc thời gian xem theo delta, tập mới thì đánh dấu anime đã xem
+     */
+    private Mono<Void> recordStats(List<WatchHistory> entries, Map<String, Double> previous) {
+        Map<String, Double> deltas = new HashMap<>();
+        List<WatchHistory> newEpisodes = new ArrayList<>();
+
+        for (WatchHistory entry : entries) {
+            Double before = previous.get(statsKey(entry));
+            if (before == null) {
+                newEpisodes.add(entry);
+            }
+            deltas.merge(entry.getUserId(), valueOf(entry.getTimeWatched()) - valueOf(before), Double::sum);
+        }
+
+        return Flux.concat(
+                        Flux.fromIterable(deltas.entrySet())
+                                .flatMap(delta -> userStatsService.recordWatchTime(delta.getKey(), delta.getValue()), 16),
+                        Flux.fromIterable(newEpisodes)
+                                .flatMap(entry -> userStatsService.recordAnimeWatched(entry.getUserId(), entry.getAniId()), 16))
+                .then();
+    }
+
+    private double valueOf(Double seconds) {
+        return seconds == null ? 0.0 : seconds;
+    }
+
+    private String statsKey(WatchHistory entry) {
+        return entry.getUserId() + "|" + entryKey(entry.getAniId(), entry.getEpId());
+    }
+
+    private Query entryQuery(WatchHistory entry) {
+        return Query.query(Criteria.where("userId").is(entry.getUserId())
+                .and("aniId").is(entry.getAniId())
+                .and("epId").is(entry.getEpId()));
+    }
+
+    /**
+     * Giống createNew/updateExisting: field progress luôn $set, field mô tả chỉ $set khi có giá trị
+     */
+    private Update toUpsert(WatchHistory entry) {
+        Update update = new Update()
+                .set("timeWatched", entry.getTimeWatched())
+                .set("duration", entry.getDuration())
+                .set("progress", entry.getProgress())
+                .set("completed", entry.getCompleted())
+                .set("nextepId", entry.getNextepId())
+                .set("nextepNum", entry.getNextepNum())
+                .set("updatedAt", entry.getUpdatedAt())
+                .setOnInsert("aniTitle", entry.getAniTitle())
+                .setOnInsert("image", entry.getImage())
+                .setOnInsert("epNum", entry.getEpNum())
+                .setOnInsert("createdAt", entry.getCreatedAt());
+
+        setIfPresent(update, "epTitle", entry.getEpTitle());
+        setIfPresent(update, "provider", entry.getProvider());
+        setIfPresent(update, "device", entry.getDevice());
+        setIfPresent(update, "quality", entry.getQuality());
+
+        if (entry.getSubtype() != null) {
+            update.set("subtype", entry.getSubtype());
+        } else {
+            update.setOnInsert("subtype", "sub");
+        }
+        return update;
+    }
+
+    private void setIfPresent(Update update, String field, Object value) {
+        if (value != null) {
+            update.set(field, value);
+        }
+    }
+
+    /**
+     * Heartbeat mới thay bản cũ, nhưng giữ createdAt và các field mô tả đã có
+     */
+    static WatchHistory mergeEntry(WatchHistory previous, WatchHistory latest) {
+        latest.setCreatedAt(previous.getCreatedAt());
+        if (latest.getEpTitle() == null) {
+            latest.setEpTitle(previous.getEpTitle());
+        }
+        if (latest.getProvider() == null) {
+            latest.setProvider(previous.getProvider());
+        }
+        if (latest.getDevice() == null) {
+            latest.setDevice(previous.getDevice());
+        }
+        if (latest.getQuality() == null) {
+            latest.setQuality(previous.getQuality());
+        }
+        return latest;
+    }
+
+    private String entryKey(String aniId, String epId) {
+        return aniId + "|" + epId;
+    }
+
+    private String serialize(WatchHistory entry) {
+        try {
+            return objectMapper.writeValueAsString(entry);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot serialize watch progress entry", e);
+        }
+    }
+
+    private WatchHistory parse(String json) {
+        try {
+            return objectMapper.readValue(json, WatchHistory.class);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Corrupted watch progress entry", e);
+        }
+    }
+}
@@ -1,14 +1,21 @@
 package com.animeflix.userservice.service;
 
+import com.animeflix.userservice.dto.websocket.UnreadCountMessage;
 import com.animeflix.userservice.dto.websocket.WebSocketNotificationMessage;
 import com.animeflix.userservice.entity.Notification;
 import com.animeflix.userservice.handler.NotificationWebSocketHandler;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.time.ZoneId;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * ✅ WebSocket Notification Service (Updated for Reactive WebSocket)
@@ -19,28 +26,88 @@ import java.time.ZoneId;
 public class WebSocketNotificationService {
 
     private final NotificationWebSocketHandler webSocketHandler;
+    private final WebSocketRoutingService routingService;
 
     /**
      * Send notification to specific user via WebSocket
-     * Only sends if user is online
      */
     public void sendToUser(String userId, Notification notification) {
-        webSocketHandler.isUserOnline(userId)
-                .subscribe(online -> {
-                    if (Boolean.TRUE.equals(online)) {
-                        WebSocketNotificationMessage message = buildMessage(notification);
-                        webSocketHandler.sendToUser(userId, message);
-                    } else {
-                        log.debug("⏭️ User {} offline, notification stored only", userId);
-                    }
-                });
+        deliver(userId, buildMessage(notification));
     }
 
     /**
-     * Broadcast notification to all online users
+     * Send notifications of a fan-out batch
+     */
+    public void sendToUsers(List<Notification> notifications) {
+        deliverAll(notifications.stream()
+                .map(notification -> Map.entry(notification.getUserId(), (Object) buildMessage(notification)))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Push badge count (số thông báo chưa đọc)
+     */
+    public void sendUnreadCount(String userId, long count) {
+        deliver(userId, buildUnreadMessage(count));
+    }
+
+    /**
+     * Push badge count cho nhiều user (sau fan-out)
+     */
+    public void sendUnreadCounts(Map<String, Long> counts) {
+        deliverAll(counts.entrySet().stream()
+                .map(entry -> Map.entry(entry.getKey(), (Object) buildUnreadMessage(entry.getValue())))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Socket trên node này => gửi trực tiếp, đồng thời forward qua Redis tới các node khác của user (đa thiết bị)
+     */
+    private void deliver(String userId, Object message) {
+        deliverAll(List.of(Map.entry(userId, message)));
+    }
+
+    /**
+     * User có socket local gửi trực tiếp, rồi tra presence của cả batch và forward tới mọi node còn lại
+     */
+    private void deliverAll(List<Map.Entry<String, Object>> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        Set<String> localUsers = new HashSet<>();
+        for (Map.Entry<String, Object> message : messages) {
+            if (webSocketHandler.hasLocalSession(message.getKey())) {
+                webSocketHandler.sendToUser(message.getKey(), message.getValue());
+                localUsers.add(message.getKey());
+            }
+        }
+
+        List<String> userIds = messages.stream()
+                .map(Map.Entry::getKey)
+                .distinct()
+                .collect(Collectors.toList());
+        String self = routingService.getNodeId();
+
+        routingService.resolveNodes(userIds)
+                .flatMapMany(nodes -> Flux.fromIterable(messages)
+                        .flatMap(message -> Flux.fromIterable(nodes.getOrDefault(message.getKey(), Set.of()))
+                                // Node này đã gửi local; chỉ gọi forwardToNode(self) khi mất session để dọn field cũ
+                                .filter(owner -> !owner.equals(self) || !localUsers.contains(message.getKey()))
+                                .flatMap(owner -> routingService.forwardToNode(
+                                        message.getKey(), owner, message.getValue()))))
+                .filter(Boolean::booleanValue)
+                .count()
+                .subscribe(forwarded -> log.debug("🔀 Forwarded {} message(s) to other nodes ({} local users)",
+                                forwarded, localUsers.size()),
+                        error -> log.warn("⚠️ Failed to route messages: {}", error.getMessage()));
+    }
+
+    /**
+     * Broadcast notification to all online users (mọi node)
      */
     public void broadcast(WebSocketNotificationMessage message) {
-        webSocketHandler.broadcast(message);
+        routingService.broadcast(message).subscribe();
     }
 
     /**
@@ -50,6 +117,13 @@ public class WebSocketNotificationService {
         return webSocketHandler.getOnlineUsersCount();
     }
 
+    private UnreadCountMessage buildUnreadMessage(long count) {
+        return UnreadCountMessage.builder()
+                .unreadCount(count)
+                .timestamp(System.currentTimeMillis())
+                .build();
+    }
+
     /**
      * Build WebSocket message from notification entity
      */
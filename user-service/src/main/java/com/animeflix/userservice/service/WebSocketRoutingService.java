@@ -0,0 +1,237 @@
+package com.animeflix.userservice.service;
+
+import com.animeflix.userservice.dto.websocket.RoutedWebSocketMessage;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * ✅ Cluster-wide WebSocket routing + presence via Redis
+ *
+ * - Mỗi node subscribe channel riêng: ws:node:{nodeId}
+ * - Presence: hash presence:{userId}, field = nodeId đang giữ socket, value = hạn (epoch millis)
+ *   => user mở nhiều thiết bị trên nhiều node thì mỗi node có 1 field với hạn riêng, refresh bằng ping/pong
+ *   => node crash thì field của node đó quá hạn (bị bỏ qua + dọn dần), key tự hết hạn khi không còn node nào refresh
+ * - Gửi cho user => publish vào channel của từng node đang giữ socket của user
+ * - Số user online: HyperLogLog theo cửa sổ TTL (PFCOUNT, O(1))
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class WebSocketRoutingService {
+
+    private final ReactiveRedisTemplate<String, String> redisTemplate;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final String PRESENCE_PREFIX = "presence:";
+    private static final String PRESENCE_HLL_PREFIX = "presence:hll:";
+    private static final String NODE_CHANNEL_PREFIX = "ws:node:";
+    private static final String BROADCAST_CHANNEL = "ws:broadcast";
+
+    // KEYS: presence | ARGV: nodeId, expiresAt, ttlMs, now
+    // Ghi field của node này, dọn field đã quá hạn của node khác, gia hạn cả key
+    private static final RedisScript<Long> REGISTER_SCRIPT = RedisScript.of(
+            "redis.call('HSET', KEYS[1], ARGV[1], ARGV[2]) " +
+                    "local fields = redis.call('HGETALL', KEYS[1]) " +
+                    "for i = 1, #fields, 2 do " +
+                    "if tonumber(fields[i + 1]) <= tonumber(ARGV[4]) then redis.call('HDEL', KEYS[1], fields[i]) end " +
+                    "end " +
+                    "redis.call('PEXPIRE', KEYS[1], ARGV[3]) " +
+                    "return redis.call('HLEN', KEYS[1])",
+            Long.class);
+
+    @Value("${websocket.node-id:}")
+    private String nodeId;
+
+    // Client phải ping trong khoảng này, nếu không sẽ bị coi là offline
+    @Value("${websocket.presence.ttl-seconds:90}")
+    private long presenceTtlSeconds;
+
+    @PostConstruct
+    void init() {
+        if (nodeId == null || nodeId.isBlank()) {
+            nodeId = UUID.randomUUID().toString();
+        }
+        log.info("✅ WebSocket routing node id: {}", nodeId);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Ghi nhận user đang có socket ở node này (cũng dùng để refresh heartbeat)
+     */
+    public Mono<Boolean> registerSession(String userId) {
+        Duration ttl = Duration.ofSeconds(presenceTtlSeconds);
+        String hllKey = currentPresenceBucket();
+        long now = System.currentTimeMillis();
+
+        return redisTemplate.execute(REGISTER_SCRIPT, List.of(PRESENCE_PREFIX + userId), List.of(
+                        nodeId,
+                        String.valueOf(now + ttl.toMillis()),
+                        String.valueOf(ttl.toMillis()),
+                        String.valueOf(now)))
+                .next()
+                .flatMap(nodes -> redisTemplate.opsForHyperLogLog().add(hllKey, userId)
+                        .then(redisTemplate.expire(hllKey, ttl.multipliedBy(2)))
+                        .thenReturn(true))
+                .defaultIfEmpty(false);
+    }
+
+    /**
+     * Heartbeat (ping/pong) => gia hạn TTL presence
+     */
+    public Mono<Boolean> refreshPresence(String userId) {
+        return registerSession(userId);
+    }
+
+    /**
+     * Xóa presence của user trên node này (field của node khác giữ nguyên)
+     */
+    public Mono<Long> unregisterSession(String userId) {
+        return unregisterRoute(userId, nodeId);
+    }
+
+    private Mono<Long> unregisterRoute(String userId, String owner) {
+        return redisTemplate.opsForHash().remove(PRESENCE_PREFIX + userId, owner);
+    }
+
+    /**
+     * Check if user is online (trên bất kỳ node nào)
+     */
+    public Mono<Boolean> isUserOnline(String userId) {
+        return liveNodes(userId, System.currentTimeMillis())
+                .map(nodes -> !nodes.isEmpty());
+    }
+
+    /**
+     * Tra các node đang giữ socket cho cả batch user (HGETALL chạy song song trên cùng connection)
+     *
+     * @return userId -> các nodeId còn hạn, chỉ gồm user đang online
+     */
+    public Mono<Map<String, Set<String>>> resolveNodes(List<String> userIds) {
+        if (userIds.isEmpty()) {
+            return Mono.just(Collections.emptyMap());
+        }
+
+        long now = System.currentTimeMillis();
+
+        return Flux.fromIterable(new LinkedHashSet<>(userIds))
+                .flatMap(userId -> liveNodes(userId, now)
+                        .filter(nodes -> !nodes.isEmpty())
+                        .map(nodes -> Map.entry(userId, nodes)), 64)
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue);
+    }
+
+    private Mono<Set<String>> liveNodes(String userId, long now) {
+        return redisTemplate.<String, String>opsForHash().entries(PRESENCE_PREFIX + userId)
+                .filter(entry -> isLive(entry.getValue(), now))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+    }
+
+    private static boolean isLive(String expiresAt, long now) {
+        try {
+            return Long.parseLong(expiresAt) > now;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Số user online gần đúng: union HLL của cửa sổ hiện tại và cửa sổ trước
+     */
+    public Mono<Long> countOnlineUsers() {
+        long bucket = presenceBucket();
+        return redisTemplate.opsForHyperLogLog()
+                .size(PRESENCE_HLL_PREFIX + bucket, PRESENCE_HLL_PREFIX + (bucket - 1));
+    }
+
+    private String currentPresenceBucket() {
+        return PRESENCE_HLL_PREFIX + presenceBucket();
+    }
+
+    private long presenceBucket() {
+        return System.currentTimeMillis() / (presenceTtlSeconds * 1000);
+    }
+
+    /**
+     * Forward message tới 1 node đang giữ socket của user (từ resolveNodes)
+     */
+    public Mono<Boolean> forwardToNode(String userId, String owner, Object message) {
+        if (owner.equals(nodeId)) {
+            // Presence có field của node này nhưng không còn session local => field cũ
+            return unregisterSession(userId).thenReturn(false);
+        }
+        return publish(NODE_CHANNEL_PREFIX + owner, userId, message)
+                .flatMap(receivers -> {
+                    if (receivers > 0) {
+                        return Mono.just(true);
+                    }
+                    // Không node nào nghe channel => node đã chết, dọn field của node đó
+                    log.debug("🧹 Node {} unreachable, removing presence of user {}", owner, userId);
+                    return unregisterRoute(userId, owner).thenReturn(false);
+                });
+    }
+
+    /**
+     * Broadcast message tới tất cả node
+     */
+    public Mono<Long> broadcast(Object message) {
+        return publish(BROADCAST_CHANNEL, null, message);
+    }
+
+    /**
+     * Message gửi tới node này (channel riêng + broadcast)
+     */
+    public Flux<RoutedWebSocketMessage> inboundMessages() {
+        return redisTemplate.listenToChannel(NODE_CHANNEL_PREFIX + nodeId, BROADCAST_CHANNEL)
+                .flatMap(message -> parseEnvelope(message.getMessage()))
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+                        .maxBackoff(Duration.ofSeconds(30))
+                        .doBeforeRetry(signal -> log.warn("⚠️ Redis pub/sub resubscribing: {}",
+                                signal.failure().getMessage())));
+    }
+
+    private Mono<Long> publish(String channel, String userId, Object message) {
+        try {
+            String payload = message instanceof String text ? text : objectMapper.writeValueAsString(message);
+            String envelope = objectMapper.writeValueAsString(RoutedWebSocketMessage.builder()
+                    .userId(userId)
+                    .payload(payload)
+                    .build());
+            return redisTemplate.convertAndSend(channel, envelope);
+        } catch (JsonProcessingException e) {
+            log.error("❌ Failed to serialize routed message: {}", e.getMessage());
+            return Mono.just(0L);
+        }
+    }
+
+    private Mono<RoutedWebSocketMessage> parseEnvelope(String json) {
+        try {
+            return Mono.just(objectMapper.readValue(json, RoutedWebSocketMessage.class));
+        } catch (JsonProcessingException e) {
+            log.warn("⚠️ Failed to parse routed message: {}", e.getMessage());
+            return Mono.empty();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.animeflix.userservice.util;
+
+import com.animeflix.userservice.dto.response.CursorPageResponse;
+import com.animeflix.userservice.exception.ValidationException;
+import org.bson.types.ObjectId;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Cursor cho keyset pagination: base64url("{epochMillis}:{objectId}")
+ * Sort (timestamp desc, _id desc) nên cặp này xác định đúng vị trí trang tiếp theo
+ */
+public final class CursorUtil {
+
+    // Trần page size cho mọi endpoint phân trang (cursor lẫn offset)
+    public static final int MAX_PAGE_SIZE = 100;
+
+    private CursorUtil() {
+    }
+
+    /**
+     * Kẹp size vào [1, MAX_PAGE_SIZE] => client không kéo được cả collection trong 1 request
+     */
+    public static int clampSize(int size) {
+        return Math.min(Math.max(1, size), MAX_PAGE_SIZE);
+    }
+
+    public record Cursor(LocalDateTime timestamp, ObjectId id) {
+    }
+
+    public static String encode(LocalDateTime timestamp, String id) {
+        long epochMillis = timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        String raw = epochMillis + ":" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static Cursor decode(String cursor) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = raw.indexOf(':');
+            LocalDateTime timestamp = LocalDateTime.ofInstant(
+                    Instant.ofEpochMilli(Long.parseLong(raw.substring(0, separator))), ZoneId.systemDefault());
+            return new Cursor(timestamp, new ObjectId(raw.substring(separator + 1)));
+        } catch (RuntimeException e) {
+            throw new ValidationException("Invalid cursor");
+        }
+    }
+
+    /**
+     * rows được query với limit = size + 1: có dòng thừa => còn trang sau
+     */
+    public static <E, T> CursorPageResponse<T> toPage(
+            List<E> rows,
+            int size,
+            Function<E, LocalDateTime> timestamp,
+            Function<E, String> id,
+            Function<E, T> mapper) {
+
+        boolean hasMore = rows.size() > size;
+        List<E> page = hasMore ? rows.subList(0, size) : rows;
+
+        String nextCursor = null;
+        if (hasMore) {
+            E last = page.get(page.size() - 1);
+            nextCursor = encode(timestamp.apply(last), id.apply(last));
+        }
+
+        return CursorPageResponse.<T>builder()
+                .items(page.stream().map(mapper).collect(Collectors.toList()))
+                .nextCursor(nextCursor)
+                .build();
+    }
+}
@@ -0,0 +1,162 @@
+package com.animeflix.userservice.service;
+
+import com.animeflix.userservice.support.TestServices;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AnimeBatchLoaderTest {
+
+    private static final Set<String> CATALOG = Set.of("a", "b", "c", "d", "e");
+
+    // ids của từng lệnh GET /batch đã gửi
+    private final List<List<String>> calls = new CopyOnWriteArrayList<>();
+
+    private AnimeBatchLoader loader;
+
+    @AfterEach
+    void tearDown() {
+        loader.stop();
+    }
+
+    @Test
+    void concurrentLookupsAreCoalescedIntoOneCall() {
+        loader = start(request -> ok(ids(request)), 10);
+
+        List<String> titles = Flux.just("a", "b", "a", "c")
+                .flatMapSequential(loader::load)
+                .map(node -> node.path("title").asText())
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        assertThat(titles).containsExactly("A", "B", "A", "C");
+        assertThat(calls).hasSize(1);
+        assertThat(calls.get(0)).containsExactly("a", "b", "c");
+    }
+
+    @Test
+    void batchesAreSplitAtMaxBatchSize() {
+        loader = start(request -> ok(ids(request)), 2);
+
+        List<JsonNode> nodes = Flux.just("a", "b", "c", "d", "e")
+                .flatMap(loader::load)
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        assertThat(nodes).hasSize(5);
+        assertThat(calls).allSatisfy(ids -> assertThat(ids).hasSizeLessThanOrEqualTo(2));
+        assertThat(calls.stream().mapToInt(List::size).sum()).isEqualTo(5);
+    }
+
+    @Test
+    void unknownIdCompletesEmpty() {
+        loader = start(request -> ok(ids(request)), 10);
+
+        StepVerifier.create(loader.load("missing"))
+                .verifyComplete();
+    }
+
+    @Test
+    void emptyResponseBodyCompletesEveryLookup() {
+        loader = start(request -> {
+            ids(request);
+            return Mono.just(ClientResponse.create(HttpStatus.OK).build());
+        }, 10);
+
+        StepVerifier.create(Flux.just("a", "b").flatMap(loader::load))
+                .expectComplete()
+                .verify(Duration.ofSeconds(5));
+    }
+
+    @Test
+    void failedBatchErrorsItsLookupsAndLoaderKeepsWorking() {
+        loader = start(request -> {
+            List<String> ids = ids(request);
+            return calls.size() == 1
+                    ? Mono.just(ClientResponse.create(HttpStatus.INTERNAL_SERVER_ERROR).build())
+                    : ok(ids);
+        }, 10);
+
+        StepVerifier.create(loader.load("a"))
+                .expectError(WebClientResponseException.class)
+                .verify(Duration.ofSeconds(5));
+
+        StepVerifier.create(loader.load("b").map(node -> node.path("title").asText()))
+                .expectNext("B")
+                .verifyComplete();
+    }
+
+    @Test
+    void synchronousExchangeFailureDoesNotKillThePipeline() {
+        loader = start(request -> {
+            if (calls.isEmpty()) {
+                ids(request);
+                throw new IllegalStateException("connection pool closed");
+            }
+            return ok(ids(request));
+        }, 10);
+
+        StepVerifier.create(loader.load("a"))
+                .expectError()
+                .verify(Duration.ofSeconds(5));
+
+        StepVerifier.create(loader.load("c").map(node -> node.path("title").asText()))
+                .expectNext("C")
+                .verifyComplete();
+    }
+
+    private AnimeBatchLoader start(ExchangeFunction catalog, int maxBatchSize) {
+        WebClient client = WebClient.builder()
+                .baseUrl("http://anime-catalog-service/api/anime")
+                .exchangeFunction(catalog)
+                .build();
+
+        // @PostConstruct start() chạy khi dựng bean
+        return TestServices.create(AnimeBatchLoader.class, List.of(client),
+                "features.anime-batch.window-ms=50",
+                "features.anime-batch.max-batch-size=" + maxBatchSize,
+                "features.anime-batch.queue-size=1024");
+    }
+
+    private List<String> ids(ClientRequest request) {
+        String raw = UriComponentsBuilder.fromUri(request.url()).build().getQueryParams().getFirst("ids");
+        List<String> ids = Arrays.asList(URLDecoder.decode(raw, StandardCharsets.UTF_8).split(","));
+        calls.add(ids);
+        return ids;
+    }
+
+    private Mono<ClientResponse> ok(List<String> ids) {
+        String data = ids.stream()
+                .filter(CATALOG::contains)
+                .map(id -> "{\"id\":\"" + id + "\",\"title\":\"" + id.toUpperCase() + "\"}")
+                .collect(Collectors.joining(","));
+
+        return Mono.just(ClientResponse.create(HttpStatus.OK)
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .body("{\"data\":[" + data + "]}")
+                .build());
+    }
+}
@@ -0,0 +1,69 @@
+package com.animeflix.userservice.service;
+
+import com.animeflix.userservice.entity.Notification;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BulkNotificationResultTest {
+
+    @Test
+    void mergeSumsCountsAndConcatenatesNotifications() {
+        Notification first = notification("user-1");
+        Notification second = notification("user-2");
+
+        NotificationService.BulkNotificationResult merged = NotificationService.BulkNotificationResult.of(List.of(first), 1)
+                .merge(NotificationService.BulkNotificationResult.of(List.of(second), 2));
+
+        assertThat(merged.getInserted()).isEqualTo(2);
+        assertThat(merged.getSkipped()).isEqualTo(3);
+        assertThat(merged.getNotifications()).containsExactly(first, second);
+    }
+
+    @Test
+    void mergeDoesNotMutateEitherSide() {
+        NotificationService.BulkNotificationResult left = NotificationService.BulkNotificationResult.of(
+                List.of(notification("user-1")), 0);
+        NotificationService.BulkNotificationResult right = NotificationService.BulkNotificationResult.of(
+                List.of(notification("user-2")), 0);
+
+        left.merge(right);
+
+        assertThat(left.getNotifications()).hasSize(1);
+        assertThat(left.getInserted()).isEqualTo(1);
+        assertThat(right.getNotifications()).hasSize(1);
+    }
+
+    @Test
+    void resubscribingReduceDoesNotAccumulateAcrossRuns() {
+        // Fan-out retry => reduceWith phải bắt đầu lại từ seed rỗng mỗi lần subscribe
+        AtomicInteger attempts = new AtomicInteger();
+        Mono<NotificationService.BulkNotificationResult> fanOut = Flux.range(0, 3)
+                .map(i -> NotificationService.BulkNotificationResult.of(List.of(notification("user-" + i)), 0))
+                .reduceWith(NotificationService.BulkNotificationResult::empty,
+                        NotificationService.BulkNotificationResult::merge)
+                .flatMap(result -> attempts.incrementAndGet() < 2
+                        ? Mono.error(new IllegalStateException("transient"))
+                        : Mono.just(result))
+                .retry(1);
+
+        NotificationService.BulkNotificationResult result = fanOut.block();
+
+        assertThat(result.getInserted()).isEqualTo(3);
+        assertThat(result.getNotifications()).hasSize(3);
+    }
+
+    private Notification notification(String userId) {
+        return Notification.builder()
+                .userId(userId)
+                .type(Notification.NotificationType.NEW_EPISODE)
+                .animeId("anime-1")
+                .episodeNumber(1)
+                .build();
+    }
+}
@@ -0,0 +1,150 @@
+package com.animeflix.userservice.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Đo latency serving của co-watch recommend() trên snapshot tổng hợp cỡ production
+ *
+ * Không chạy trong build thường, bật bằng:
+ *   mvn test -Dtest=CoWatchRecommendBenchmark -Dbenchmark=true
+ */
+@Slf4j
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class CoWatchRecommendBenchmark {
+
+    private static final int ANIME_COUNT = 10_000;
+    private static final int USER_COUNT = 50_000;
+    private static final int MAX_ITEMS_PER_USER = 60;
+    private static final int TOP_K = 50;
+    private static final int MIN_CO_COUNT = 2;
+
+    // Giống RecommendationService: 5 anime gần nhất làm seed, 20 anime đã xem bị loại, lấy 30 ứng viên
+    private static final int SEEDS = 5;
+    private static final int WATCHED = 20;
+    private static final int LIMIT = 30;
+
+    private static final int WARMUP = 20_000;
+    private static final int ITERATIONS = 100_000;
+    private static final long TARGET_MICROS = 1_000;
+
+    private static CoWatchRecommendationEngine engine;
+    private static CoWatchRecommendationEngine.Snapshot snapshot;
+
+    @BeforeAll
+    static void buildSnapshot() {
+        Random random = new Random(42);
+        CoWatchRecommendationEngine.MatrixBuilder builder = new CoWatchRecommendationEngine.MatrixBuilder();
+        long startedAt = System.currentTimeMillis();
+        for (int user = 0; user < USER_COUNT; user++) {
+            builder.addUser(new ArrayList<>(history(random, 1 + random.nextInt(MAX_ITEMS_PER_USER))));
+        }
+        snapshot = builder.build(TOP_K, MIN_CO_COUNT, startedAt);
+
+        engine = new CoWatchRecommendationEngine(mock(ReactiveMongoTemplate.class));
+        ReflectionTestUtils.setField(engine, "snapshot", snapshot);
+
+        log.info("📊 Synthetic co-watch snapshot: {} anime, {} edges, {} users, ~{} KB, built in {} ms",
+                snapshot.animeIds().length, snapshot.neighbours().length, snapshot.usersScanned(),
+                snapshot.estimatedBytes() / 1024, snapshot.buildMillis());
+    }
+
+    @Test
+    void recommendForTypicalUsers() {
+        Random random = new Random(7);
+        long[] micros = measure("recommend typical user", () -> {
+            List<String> history = new ArrayList<>(history(random, WATCHED));
+            return new Request(history.subList(0, SEEDS), new HashSet<>(history));
+        });
+
+        assertThat(percentile(micros, 0.95)).as("p95 µs").isLessThan(TARGET_MICROS);
+    }
+
+    @Test
+    void recommendForHeavyUsersOfThePopularHead() {
+        // Worst case: seed đều là anime phổ biến nhất => mỗi seed đủ TOP_K neighbour, ít trùng nhau
+        Random random = new Random(11);
+        long[] micros = measure("recommend popular-head user", () -> {
+            List<String> seeds = new ArrayList<>();
+            while (seeds.size() < SEEDS) {
+                String animeId = "anime-" + random.nextInt(50);
+                if (!seeds.contains(animeId)) {
+                    seeds.add(animeId);
+                }
+            }
+            Set<String> watched = new HashSet<>(seeds);
+            watched.addAll(history(random, WATCHED - SEEDS));
+            return new Request(seeds, watched);
+        });
+
+        assertThat(percentile(micros, 0.95)).as("p95 µs").isLessThan(TARGET_MICROS);
+    }
+
+    // ========== Đo ==========
+
+    private long[] measure(String name, Supplier<Request> requests) {
+        // Chuẩn bị request trước => chỉ đo recommend()
+        Request[] prepared = new Request[WARMUP + ITERATIONS];
+        for (int i = 0; i < prepared.length; i++) {
+            prepared[i] = requests.get();
+        }
+
+        long checksum = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            checksum += recommend(prepared[i]).size();
+        }
+
+        long[] nanos = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            Request request = prepared[WARMUP + i];
+            long startedAt = System.nanoTime();
+            checksum += recommend(request).size();
+            nanos[i] = System.nanoTime() - startedAt;
+        }
+
+        Arrays.sort(nanos);
+        long[] micros = Arrays.stream(nanos).map(n -> n / 1000).toArray();
+        log.info("📊 {}: {} ops, mean {} µs, p50 {} µs, p95 {} µs, p99 {} µs, max {} µs (checksum {})",
+                name, ITERATIONS, Math.round(Arrays.stream(nanos).average().orElse(0) / 1000),
+                percentile(micros, 0.50), percentile(micros, 0.95), percentile(micros, 0.99),
+                micros[micros.length - 1], checksum);
+        return micros;
+    }
+
+    private List<CoWatchRecommendationEngine.ScoredAnime> recommend(Request request) {
+        return engine.recommend(request.seeds(), request.watched(), LIMIT);
+    }
+
+    private long percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+
+    // Phân bố lệch về id nhỏ (đầu danh sách phổ biến), đuôi dài vẫn có lượt xem
+    private static Set<String> history(Random random, int count) {
+        Set<String> items = new LinkedHashSet<>();
+        while (items.size() < count) {
+            items.add("anime-" + (int) Math.floor(Math.pow(random.nextDouble(), 3) * ANIME_COUNT));
+        }
+        return items;
+    }
+
+    private record Request(List<String> seeds, Set<String> watched) {
+    }
+}
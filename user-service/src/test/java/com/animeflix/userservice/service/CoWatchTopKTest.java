@@ -0,0 +1,157 @@
+package com.animeflix.userservice.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class CoWatchTopKTest {
+
+    /**
+     * users(A)=6, users(B)=3, users(C)=2, users(D)=3, users(E)=1
+     * co(A,B)=3 => 0.707, co(A,C)=2 => 0.577, co(A,D)=2 => 0.471, co(A,E)=1 => 0.408
+     */
+    private static final List<List<String>> WATCHED = List.of(
+            List.of("A", "B", "C"),
+            List.of("A", "B", "C"),
+            List.of("A", "B"),
+            List.of("A", "D"),
+            List.of("A", "D"),
+            List.of("D"),
+            List.of("A", "E"));
+
+    @Test
+    void keepsTheKHighestCosineNeighboursInDescendingOrder() {
+        CoWatchRecommendationEngine.Snapshot snapshot = build(WATCHED, 2, 2);
+
+        assertThat(neighbours(snapshot, "A")).containsExactly("B", "C");
+        assertThat(weights(snapshot, "A").get(0)).isCloseTo((float) (3 / Math.sqrt(18)), within(1e-6f));
+        assertThat(weights(snapshot, "A").get(1)).isCloseTo((float) (2 / Math.sqrt(12)), within(1e-6f));
+    }
+
+    @Test
+    void returnsFewerThanKWhenNotEnoughCandidates() {
+        CoWatchRecommendationEngine.Snapshot snapshot = build(WATCHED, 10, 2);
+
+        assertThat(neighbours(snapshot, "A")).containsExactly("B", "C", "D");
+    }
+
+    @Test
+    void dropsPairsBelowMinCoCount() {
+        assertThat(neighbours(build(WATCHED, 10, 3), "A")).containsExactly("B");
+        assertThat(neighbours(build(WATCHED, 10, 1), "A")).containsExactly("B", "C", "D", "E");
+        // E chỉ xem chung với A đúng 1 lần
+        assertThat(neighbours(build(WATCHED, 10, 2), "E")).isEmpty();
+    }
+
+    @Test
+    void similarityIsSymmetric() {
+        CoWatchRecommendationEngine.Snapshot snapshot = build(WATCHED, 10, 1);
+
+        assertThat(neighbours(snapshot, "B")).contains("A");
+        int aInB = neighbours(snapshot, "B").indexOf("A");
+        int bInA = neighbours(snapshot, "A").indexOf("B");
+        assertThat(weights(snapshot, "B").get(aInB)).isEqualTo(weights(snapshot, "A").get(bInA));
+    }
+
+    @Test
+    void duplicateAnimeOfOneUserCountOnce() {
+        CoWatchRecommendationEngine.Snapshot snapshot = build(List.of(
+                List.of("A", "B", "B", "A"),
+                List.of("A", "B")), 5, 1);
+
+        assertThat(weights(snapshot, "A")).containsExactly(1.0f);
+    }
+
+    @Test
+    void matchesBruteForceOnRandomHistories() {
+        Random random = new Random(42);
+        List<List<String>> watched = new ArrayList<>();
+        for (int user = 0; user < 500; user++) {
+            Set<String> items = new LinkedHashSet<>();
+            int count = 1 + random.nextInt(15);
+            while (items.size() < count) {
+                // Phân bố lệch về các id nhỏ => có anime phổ biến, nhiều cặp vượt K
+                items.add("anime-" + (int) Math.floor(Math.pow(random.nextDouble(), 2) * 120));
+            }
+            watched.add(new ArrayList<>(items));
+        }
+
+        int k = 5;
+        int minCoCount = 2;
+        CoWatchRecommendationEngine.Snapshot snapshot = build(watched, k, minCoCount);
+        Map<String, Map<String, Float>> expected = bruteForce(watched, minCoCount);
+
+        for (String anime : snapshot.animeIds()) {
+            List<Float> actual = weights(snapshot, anime);
+            List<Float> all = expected.getOrDefault(anime, Map.of()).values().stream()
+                    .sorted(Comparator.reverseOrder())
+                    .toList();
+
+            // Cùng các weight top-K (id có thể khác khi bằng nhau)
+            assertThat(actual).containsExactlyElementsOf(all.subList(0, Math.min(k, all.size())));
+            for (int i = 0; i < actual.size(); i++) {
+                String neighbour = neighbours(snapshot, anime).get(i);
+                assertThat(expected.get(anime).get(neighbour)).isEqualTo(actual.get(i));
+            }
+        }
+    }
+
+    private CoWatchRecommendationEngine.Snapshot build(List<List<String>> watched, int k, int minCoCount) {
+        CoWatchRecommendationEngine.MatrixBuilder builder = new CoWatchRecommendationEngine.MatrixBuilder();
+        watched.forEach(builder::addUser);
+        return builder.build(k, minCoCount, System.currentTimeMillis());
+    }
+
+    private List<String> neighbours(CoWatchRecommendationEngine.Snapshot snapshot, String animeId) {
+        int a = snapshot.index().get(animeId);
+        List<String> result = new ArrayList<>();
+        for (int e = snapshot.offsets()[a]; e < snapshot.offsets()[a + 1]; e++) {
+            result.add(snapshot.animeIds()[snapshot.neighbours()[e]]);
+        }
+        return result;
+    }
+
+    private List<Float> weights(CoWatchRecommendationEngine.Snapshot snapshot, String animeId) {
+        int a = snapshot.index().get(animeId);
+        List<Float> result = new ArrayList<>();
+        for (int e = snapshot.offsets()[a]; e < snapshot.offsets()[a + 1]; e++) {
+            result.add(snapshot.weights()[e]);
+        }
+        return result;
+    }
+
+    private Map<String, Map<String, Float>> bruteForce(List<List<String>> watched, int minCoCount) {
+        Map<String, Integer> users = new HashMap<>();
+        Map<String, Map<String, Integer>> co = new HashMap<>();
+        for (List<String> items : watched) {
+            List<String> distinct = items.stream().distinct().toList();
+            for (String a : distinct) {
+                users.merge(a, 1, Integer::sum);
+                for (String b : distinct) {
+                    if (!a.equals(b)) {
+                        co.computeIfAbsent(a, key -> new HashMap<>()).merge(b, 1, Integer::sum);
+                    }
+                }
+            }
+        }
+
+        Map<String, Map<String, Float>> similarity = new HashMap<>();
+        co.forEach((a, counts) -> counts.forEach((b, count) -> {
+            if (count >= minCoCount) {
+                similarity.computeIfAbsent(a, key -> new HashMap<>())
+                        .put(b, (float) (count / Math.sqrt((double) users.get(a) * users.get(b))));
+            }
+        }));
+        return similarity;
+    }
+}
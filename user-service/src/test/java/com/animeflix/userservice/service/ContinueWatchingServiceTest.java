@@ -0,0 +1,137 @@
+package com.animeflix.userservice.service;
+
+import com.animeflix.userservice.entity.ContinueWatching;
+import com.animeflix.userservice.entity.WatchHistory;
+import com.animeflix.userservice.mapper.ContinueWatchingMapper;
+import com.animeflix.userservice.repository.ContinueWatchingRepository;
+import com.animeflix.userservice.support.MongoContainerTest;
+import com.animeflix.userservice.support.TestServices;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class ContinueWatchingServiceTest extends MongoContainerTest {
+
+    private static final String USER = "user-1";
+    private static final int MAX_ITEMS = 3;
+
+    private ContinueWatchingRepository continueRepo;
+    private ContinueWatchingService continueService;
+
+    @BeforeEach
+    void setUp() {
+        continueRepo = repository(ContinueWatchingRepository.class);
+        mongoTemplate.indexOps(ContinueWatching.class).ensureIndex(new Index()
+                .on("userId", Sort.Direction.ASC).on("aniId", Sort.Direction.ASC)
+                .unique().named("user_anime_unique")).block();
+        mongoTemplate.indexOps(ContinueWatching.class).ensureIndex(new Index()
+                .on("userId", Sort.Direction.ASC).on("lastWatchedAt", Sort.Direction.DESC)
+                .named("user_watched_idx")).block();
+
+        continueService = TestServices.create(ContinueWatchingService.class,
+                List.of(continueRepo, mock(ContinueWatchingMapper.class), mongoTemplate),
+                "features.continue-watching.max-items=" + MAX_ITEMS);
+    }
+
+    @Test
+    void keepsOnlyTheMostRecentMaxItems() throws InterruptedException {
+        for (int i = 1; i <= 5; i++) {
+            continueService.updateFromHistory(history("anime-" + i, 0.3)).block();
+            // lastWatchedAt lưu tới millisecond => tách các lần xem
+            Thread.sleep(5);
+        }
+
+        assertThat(aniIdsByRecency()).containsExactly("anime-5", "anime-4", "anime-3");
+    }
+
+    @Test
+    void rewatchingAnOldEntryUpdatesItInPlaceAndKeepsIt() throws InterruptedException {
+        for (int i = 1; i <= 3; i++) {
+            continueService.updateFromHistory(history("anime-" + i, 0.3)).block();
+            Thread.sleep(5);
+        }
+
+        continueService.updateFromHistory(history("anime-1", 0.5)).block();
+        Thread.sleep(5);
+        continueService.updateFromHistory(history("anime-4", 0.1)).block();
+
+        assertThat(aniIdsByRecency()).containsExactly("anime-4", "anime-1", "anime-3");
+        ContinueWatching rewatched = continueRepo.findByUserIdAndAniId(USER, "anime-1").block();
+        assertThat(rewatched.getProgress()).isEqualTo(0.5);
+        assertThat(rewatched.getCreatedAt()).isBefore(rewatched.getLastWatchedAt());
+    }
+
+    @Test
+    void entriesWithTheSameLastWatchedAtAreTrimmedByIdWithoutOvershooting() {
+        // Mốc cắt rơi vào giữa 1 nhóm cùng lastWatchedAt => tie-break bằng _id, vẫn giữ đúng maxItems
+        LocalDateTime sameInstant = LocalDateTime.now().minusHours(1).truncatedTo(ChronoUnit.MILLIS);
+        for (int i = 1; i <= 4; i++) {
+            mongoTemplate.insert(ContinueWatching.builder()
+                    .userId(USER)
+                    .aniId("old-" + i)
+                    .lastWatchedAt(sameInstant)
+                    .createdAt(sameInstant)
+                    .build()).block();
+        }
+
+        continueService.updateFromHistory(history("anime-new", 0.2)).block();
+
+        assertThat(aniIdsByRecency()).containsExactly("anime-new", "old-4", "old-3");
+    }
+
+    @Test
+    void otherUsersAreNotTrimmed() {
+        for (int i = 1; i <= 4; i++) {
+            mongoTemplate.insert(ContinueWatching.builder()
+                    .userId("user-2")
+                    .aniId("anime-" + i)
+                    .lastWatchedAt(LocalDateTime.now().minusMinutes(i))
+                    .build()).block();
+        }
+
+        continueService.updateFromHistory(history("anime-1", 0.3)).block();
+
+        assertThat(mongoTemplate.count(Query.query(Criteria.where("userId").is("user-2")), ContinueWatching.class)
+                .block()).isEqualTo(4);
+    }
+
+    @Test
+    void finishedEpisodeRemovesTheEntry() {
+        continueService.updateFromHistory(history("anime-1", 0.3)).block();
+
+        continueService.updateFromHistory(history("anime-1", 0.95)).block();
+
+        assertThat(continueRepo.findByUserIdAndAniId(USER, "anime-1").block()).isNull();
+    }
+
+    private List<String> aniIdsByRecency() {
+        return continueRepo.findByUserIdOrderByLastWatchedAtDescIdDesc(USER, PageRequest.of(0, 100))
+                .map(ContinueWatching::getAniId)
+                .collectList()
+                .block();
+    }
+
+    private WatchHistory history(String aniId, double progress) {
+        return WatchHistory.builder()
+                .userId(USER)
+                .aniId(aniId)
+                .epId(aniId + "-ep-1")
+                .epNum(1)
+                .timeWatched(progress * 1440)
+                .duration(1440.0)
+                .progress(progress)
+                .completed(false)
+                .build();
+    }
+}
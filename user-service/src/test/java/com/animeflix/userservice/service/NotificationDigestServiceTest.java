@@ -0,0 +1,188 @@
+package com.animeflix.userservice.service;
+
+import com.animeflix.userservice.dto.kafka.NewEpisodeEvent;
+import com.animeflix.userservice.support.RedisContainerTest;
+import com.animeflix.userservice.support.TestServices;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class NotificationDigestServiceTest extends RedisContainerTest {
+
+    private static final String USER = "user-1";
+    private static final String DUE_KEY = "notifications:digest:due";
+    // Window 0 => buffer đến hạn ngay, còn lại dùng default của service
+    private static final String[] PROPERTIES = {"features.notifications.digest.window-seconds=0"};
+
+    private final NotificationService notificationService = mock(NotificationService.class);
+    private final WebSocketNotificationService webSocketService = mock(WebSocketNotificationService.class);
+
+    private NotificationDigestService digestService;
+
+    @BeforeEach
+    void setUp() {
+        digestService = digestService();
+
+        when(notificationService.createEpisodeDigests(anyMap()))
+                .thenReturn(Mono.just(NotificationService.BulkNotificationResult.empty()));
+    }
+
+    @Test
+    void enqueueDeduplicatesEpisodesAndFlushSendsThemInAiringOrder() {
+        NewEpisodeEvent later = episode("anime-1", 2, 2_000L);
+        NewEpisodeEvent earlier = episode("anime-2", 5, 1_000L);
+
+        assertThat(digestService.enqueue(List.of(later, earlier), List.of(USER)).block()).isEmpty();
+        // Kafka giao lại cùng event => vẫn 1 field
+        digestService.enqueue(List.of(later), List.of(USER)).block();
+        assertThat(redisTemplate.opsForHash().size("notifications:digest:" + USER).block()).isEqualTo(2);
+
+        flush();
+
+        Map<String, List<NewEpisodeEvent>> digests = captureDigests(1);
+        assertThat(digests.get(USER)).extracting(NewEpisodeEvent::getAnimeId).containsExactly("anime-2", "anime-1");
+        verify(webSocketService).sendToUsers(List.of());
+
+        assertThat(redisTemplate.hasKey("notifications:digest:" + USER).block()).isFalse();
+        assertThat(redisTemplate.hasKey("notifications:digest:processing:" + USER).block()).isFalse();
+        assertThat(redisTemplate.hasKey("notifications:digest:lock:" + USER).block()).isFalse();
+        assertThat(redisTemplate.opsForZSet().score(DUE_KEY, USER).block()).isNull();
+        assertThat(redisTemplate.opsForSet().members("notifications:digest:sent:" + USER).collectList().block())
+                .containsExactlyInAnyOrder("anime-1:2", "anime-2:5");
+    }
+
+    @Test
+    void episodesAlreadyFlushedAreNotBufferedAgain() {
+        NewEpisodeEvent event = episode("anime-1", 1, 1_000L);
+        digestService.enqueue(List.of(event), List.of(USER)).block();
+        flush();
+
+        digestService.enqueue(List.of(event), List.of(USER)).block();
+
+        assertThat(redisTemplate.hasKey("notifications:digest:" + USER).block()).isFalse();
+        assertThat(redisTemplate.opsForZSet().score(DUE_KEY, USER).block()).isNull();
+
+        flush();
+        verify(notificationService, times(1)).createEpisodeDigests(anyMap());
+    }
+
+    @Test
+    void digestIsNotFlushedBeforeItsWindowEnds() {
+        digestService = digestService("features.notifications.digest.window-seconds=600");
+
+        digestService.enqueue(List.of(episode("anime-1", 1, 1_000L)), List.of(USER)).block();
+        flush();
+
+        verify(notificationService, never()).createEpisodeDigests(anyMap());
+        assertThat(redisTemplate.opsForHash().size("notifications:digest:" + USER).block()).isEqualTo(1);
+        assertThat(redisTemplate.hasKey("notifications:digest:lock:" + USER).block()).isFalse();
+    }
+
+    @Test
+    void fullBufferIsDueImmediately() {
+        digestService = digestService(
+                "features.notifications.digest.window-seconds=600",
+                "features.notifications.digest.max-items=2");
+
+        digestService.enqueue(List.of(episode("anime-1", 1, 1_000L), episode("anime-1", 2, 2_000L)),
+                List.of(USER)).block();
+        flush();
+
+        assertThat(captureDigests(1).get(USER)).hasSize(2);
+    }
+
+    @Test
+    void failedInsertKeepsClaimedEpisodesForTheNextFlush() throws InterruptedException {
+        digestService = digestService("features.notifications.digest.claim-lease-ms=200");
+        when(notificationService.createEpisodeDigests(anyMap()))
+                .thenReturn(Mono.error(new IllegalStateException("mongo down")))
+                .thenReturn(Mono.just(NotificationService.BulkNotificationResult.empty()));
+
+        digestService.enqueue(List.of(episode("anime-1", 1, 1_000L)), List.of(USER)).block();
+        flush();
+
+        assertThat(redisTemplate.opsForHash().size("notifications:digest:processing:" + USER).block()).isEqualTo(1);
+        assertThat(redisTemplate.hasKey("notifications:digest:lock:" + USER).block()).isTrue();
+        // Đang trong lease => instance khác không claim lại
+        flush();
+        verify(notificationService, times(1)).createEpisodeDigests(anyMap());
+
+        // Tập mới tới trong lúc chờ retry được gộp vào lần flush sau
+        digestService.enqueue(List.of(episode("anime-1", 2, 2_000L)), List.of(USER)).block();
+        Thread.sleep(300);
+        reset(webSocketService);
+        flush();
+
+        Map<String, List<NewEpisodeEvent>> digests = captureDigests(2);
+        assertThat(digests.get(USER)).extracting(NewEpisodeEvent::getEpisodeNumber).containsExactly(1, 2);
+        assertThat(redisTemplate.hasKey("notifications:digest:processing:" + USER).block()).isFalse();
+        assertThat(redisTemplate.opsForZSet().score(DUE_KEY, USER).block()).isNull();
+    }
+
+    @Test
+    void disabledDigestReturnsAllUsersForImmediateDelivery() {
+        digestService = digestService("features.notifications.digest.enabled=false");
+
+        List<String> fallback = digestService.enqueue(List.of(episode("anime-1", 1, 1_000L)),
+                List.of(USER, "user-2")).block();
+
+        assertThat(fallback).containsExactly(USER, "user-2");
+        assertThat(redisTemplate.hasKey(DUE_KEY).block()).isFalse();
+    }
+
+    private NotificationDigestService digestService(String... overrides) {
+        return TestServices.create(NotificationDigestService.class,
+                List.of(redisTemplate, notificationService, webSocketService),
+                Stream.concat(Stream.of(PROPERTIES), Stream.of(overrides)).toArray(String[]::new));
+    }
+
+    // flushDue chạy nền => đợi lượt flush kết thúc
+    private void flush() {
+        digestService.flushDue();
+        AtomicBoolean flushing = (AtomicBoolean) ReflectionTestUtils.getField(digestService, "flushing");
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (flushing.get()) {
+            assertThat(System.currentTimeMillis()).as("timed out waiting for digest flush").isLessThan(deadline);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, List<NewEpisodeEvent>> captureDigests(int calls) {
+        ArgumentCaptor<Map<String, List<NewEpisodeEvent>>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(notificationService, times(calls)).createEpisodeDigests(captor.capture());
+        return captor.getValue();
+    }
+
+    private NewEpisodeEvent episode(String animeId, int episode, long airingAt) {
+        return NewEpisodeEvent.builder()
+                .eventId(animeId + "-" + episode)
+                .animeId(animeId)
+                .animeTitle("Title " + animeId)
+                .episodeNumber(episode)
+                .airingAt(airingAt)
+                .timestamp(airingAt)
+                .build();
+    }
+}
@@ -0,0 +1,136 @@
+package com.animeflix.userservice.service;
+
+import com.animeflix.userservice.repository.NotificationRepository;
+import com.animeflix.userservice.support.RedisContainerTest;
+import com.animeflix.userservice.support.TestServices;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class UnreadCounterServiceTest extends RedisContainerTest {
+
+    private static final String USER = "user-1";
+    private static final String KEY = "notifications:unread:" + USER;
+
+    private final NotificationRepository notificationRepo = mock(NotificationRepository.class);
+    private final WebSocketNotificationService webSocketService = mock(WebSocketNotificationService.class);
+
+    private UnreadCounterService counterService;
+
+    @BeforeEach
+    void setUp() {
+        // TTL / concurrency dùng default của service
+        counterService = TestServices.create(UnreadCounterService.class,
+                List.of(redisTemplate, notificationRepo, webSocketService));
+    }
+
+    @Test
+    void firstReadCountsMongoOnceThenServesFromRedis() {
+        when(notificationRepo.countByUserIdAndIsReadFalse(USER)).thenReturn(Mono.just(7L));
+
+        assertThat(counterService.getUnread(USER).block()).isEqualTo(7L);
+        assertThat(counterService.getUnread(USER).block()).isEqualTo(7L);
+
+        verify(notificationRepo, times(1)).countByUserIdAndIsReadFalse(USER);
+        assertThat(redisTemplate.getExpire(KEY).block()).isPositive();
+    }
+
+    @Test
+    void adjustAppliesDeltaAndPushesNewCount() {
+        redisTemplate.opsForValue().set(KEY, "3").block();
+
+        counterService.adjust(USER, 2).block();
+        counterService.adjust(USER, -1).block();
+
+        assertThat(redisTemplate.opsForValue().get(KEY).block()).isEqualTo("4");
+        verify(webSocketService).sendUnreadCount(USER, 5L);
+        verify(webSocketService).sendUnreadCount(USER, 4L);
+        verify(notificationRepo, never()).countByUserIdAndIsReadFalse(USER);
+    }
+
+    @Test
+    void adjustNeverGoesBelowZero() {
+        redisTemplate.opsForValue().set(KEY, "1").block();
+
+        counterService.adjust(USER, -5).block();
+
+        assertThat(redisTemplate.opsForValue().get(KEY).block()).isEqualTo("0");
+    }
+
+    @Test
+    void adjustWithoutCounterInitializesFromMongo() {
+        // Mongo đã ghi xong trước khi adjust => count đã gồm delta
+        when(notificationRepo.countByUserIdAndIsReadFalse(USER)).thenReturn(Mono.just(4L));
+
+        counterService.adjust(USER, 1).block();
+
+        assertThat(redisTemplate.opsForValue().get(KEY).block()).isEqualTo("4");
+        verify(webSocketService).sendUnreadCount(USER, 4L);
+    }
+
+    @Test
+    void incrementAllSkipsUsersWithoutCounter() {
+        redisTemplate.opsForValue().set(KEY, "2").block();
+
+        counterService.incrementAll(List.of(USER, "user-2")).block();
+
+        assertThat(redisTemplate.opsForValue().get(KEY).block()).isEqualTo("3");
+        assertThat(redisTemplate.hasKey("notifications:unread:user-2").block()).isFalse();
+        verify(webSocketService).sendUnreadCounts(Map.of(USER, 3L));
+    }
+
+    @Test
+    void reconcileOverwritesDriftedCounter() {
+        redisTemplate.opsForValue().set(KEY, "9").block();
+        when(notificationRepo.countByUserIdAndIsReadFalse(USER)).thenReturn(Mono.just(2L));
+
+        counterService.reconcile();
+
+        awaitReconciled();
+        assertThat(redisTemplate.opsForValue().get(KEY).block()).isEqualTo("2");
+    }
+
+    @Test
+    void reconcileDoesNotClobberAdjustMadeWhileCounting() {
+        redisTemplate.opsForValue().set(KEY, "9").block();
+        // Notification mới tới đúng lúc đang đếm Mongo
+        when(notificationRepo.countByUserIdAndIsReadFalse(USER)).thenReturn(Mono.defer(() ->
+                counterService.adjust(USER, 1).thenReturn(2L)));
+
+        counterService.reconcile();
+
+        awaitReconciled();
+        assertThat(redisTemplate.opsForValue().get(KEY).block()).isEqualTo("10");
+    }
+
+    private void awaitReconciled() {
+        AtomicBoolean reconciling = (AtomicBoolean) ReflectionTestUtils.getField(counterService, "reconciling");
+        await(() -> !reconciling.get());
+    }
+
+    private void await(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!condition.getAsBoolean()) {
+            assertThat(System.currentTimeMillis()).as("timed out waiting for reconcile").isLessThan(deadline);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
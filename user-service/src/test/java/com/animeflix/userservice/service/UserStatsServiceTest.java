@@ -0,0 +1,157 @@
+package com.animeflix.userservice.service;
+
+import com.animeflix.userservice.entity.UserStats;
+import com.animeflix.userservice.entity.WatchHistory;
+import com.animeflix.userservice.repository.FavoriteRepository;
+import com.animeflix.userservice.repository.UserStatsRepository;
+import com.animeflix.userservice.repository.WatchHistoryRepository;
+import com.animeflix.userservice.support.MongoContainerTest;
+import com.animeflix.userservice.support.TestServices;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class UserStatsServiceTest extends MongoContainerTest {
+
+    private static final String USER = "user-1";
+
+    private final FavoriteRepository favoriteRepo = mock(FavoriteRepository.class);
+
+    private UserStatsService statsService;
+
+    @BeforeEach
+    void setUp() {
+        statsService = TestServices.create(UserStatsService.class, List.of(
+                repository(UserStatsRepository.class), repository(WatchHistoryRepository.class), favoriteRepo,
+                mock(UnreadCounterService.class), mongoTemplate));
+
+        when(favoriteRepo.countByUserId(USER)).thenReturn(Mono.just(2L));
+        watched("anime-1", "ep-1", 600.0);
+        watched("anime-1", "ep-2", 300.0);
+        watched("anime-2", "ep-1", 100.0);
+    }
+
+    @Test
+    void rebuildWithoutProjectionInsertsComputedStats() {
+        UserStats stats = statsService.rebuild(USER).block();
+
+        assertThat(stats.getRevision()).isEqualTo(1L);
+        UserStats stored = mongoTemplate.findById(USER, UserStats.class).block();
+        assertThat(stored.getTotalAnimeWatched()).isEqualTo(2L);
+        assertThat(stored.getWatchedAnimeIds()).containsExactlyInAnyOrder("anime-1", "anime-2");
+        assertThat(stored.getTotalWatchTimeSeconds()).isEqualTo(1000.0);
+        assertThat(stored.getFavoritesCount()).isEqualTo(2L);
+    }
+
+    @Test
+    void rebuildFixesDriftedCountersAndBumpsRevision() {
+        mongoTemplate.insert(UserStats.builder()
+                .userId(USER)
+                .totalAnimeWatched(7L)
+                .totalWatchTimeSeconds(99.0)
+                .favoritesCount(0L)
+                .revision(5L)
+                .build()).block();
+
+        statsService.rebuild(USER).block();
+
+        UserStats stored = mongoTemplate.findById(USER, UserStats.class).block();
+        assertThat(stored.getTotalAnimeWatched()).isEqualTo(2L);
+        assertThat(stored.getTotalWatchTimeSeconds()).isEqualTo(1000.0);
+        assertThat(stored.getFavoritesCount()).isEqualTo(2L);
+        assertThat(stored.getRevision()).isEqualTo(6L);
+    }
+
+    @Test
+    void incrementDuringRebuildIsNotOverwritten() {
+        statsService.rebuild(USER).block();
+        // Lần đếm đầu tiên: user thêm favorite đúng lúc rebuild đang tính => CAS trượt, rebuild tính lại
+        when(favoriteRepo.countByUserId(USER))
+                .thenReturn(Mono.defer(() -> statsService.recordFavoriteChange(USER, 1).thenReturn(2L)))
+                .thenReturn(Mono.just(3L));
+
+        statsService.rebuild(USER).block();
+
+        verify(favoriteRepo, times(3)).countByUserId(USER);
+        UserStats stored = mongoTemplate.findById(USER, UserStats.class).block();
+        assertThat(stored.getFavoritesCount()).isEqualTo(3L);
+        // insert (1) + $inc favorite (2) + rebuild thành công (3)
+        assertThat(stored.getRevision()).isEqualTo(3L);
+    }
+
+    @Test
+    void rebuildGivesUpAfterRetriesAndReturnsCurrentCounters() {
+        statsService.rebuild(USER).block();
+        when(favoriteRepo.countByUserId(USER))
+                .thenReturn(Mono.defer(() -> statsService.recordFavoriteChange(USER, 1).thenReturn(0L)));
+
+        UserStats stats = statsService.rebuild(USER).block();
+
+        // 3 lần đều bị $inc chen vào => giữ counter do $inc ghi
+        assertThat(stats.getFavoritesCount()).isEqualTo(5L);
+        assertThat(mongoTemplate.findById(USER, UserStats.class).block().getRevision()).isEqualTo(4L);
+    }
+
+    @Test
+    void recordAnimeWatchedCountsEachAnimeOnce() {
+        statsService.recordAnimeWatched(USER, "anime-1").block();
+        statsService.recordAnimeWatched(USER, "anime-1").block();
+        statsService.recordAnimeWatched(USER, "anime-2").block();
+
+        UserStats stored = mongoTemplate.findById(USER, UserStats.class).block();
+        assertThat(stored.getTotalAnimeWatched()).isEqualTo(2L);
+        assertThat(stored.getWatchedAnimeIds()).containsExactly("anime-1", "anime-2");
+    }
+
+    @Test
+    void recordAnimeRemovedUpdatesWithoutRebuilding() {
+        statsService.rebuild(USER).block();
+
+        statsService.recordAnimeRemoved(USER, "anime-1", 900.0).block();
+        // Xóa lần 2 (request lặp) không trừ thêm anime
+        statsService.recordAnimeRemoved(USER, "anime-1", 0.0).block();
+
+        UserStats stored = mongoTemplate.findById(USER, UserStats.class).block();
+        assertThat(stored.getTotalAnimeWatched()).isEqualTo(1L);
+        assertThat(stored.getWatchedAnimeIds()).containsExactly("anime-2");
+        assertThat(stored.getTotalWatchTimeSeconds()).isEqualTo(100.0);
+        verify(favoriteRepo, times(1)).countByUserId(USER);
+    }
+
+    @Test
+    void recordHistoryClearedKeepsFavorites() {
+        statsService.rebuild(USER).block();
+
+        statsService.recordHistoryCleared(USER).block();
+
+        UserStats stored = mongoTemplate.findById(USER, UserStats.class).block();
+        assertThat(stored.getTotalAnimeWatched()).isZero();
+        assertThat(stored.getWatchedAnimeIds()).isEmpty();
+        assertThat(stored.getTotalWatchTimeSeconds()).isZero();
+        assertThat(stored.getFavoritesCount()).isEqualTo(2L);
+    }
+
+    private void watched(String aniId, String epId, double seconds) {
+        mongoTemplate.insert(WatchHistory.builder()
+                .userId(USER)
+                .aniId(aniId)
+                .epId(epId)
+                .epNum(1)
+                .timeWatched(seconds)
+                .duration(1440.0)
+                .progress(seconds / 1440.0)
+                .completed(false)
+                .createdAt(LocalDateTime.now())
+                .updatedAt(LocalDateTime.now())
+                .build()).block();
+    }
+}
@@ -0,0 +1,97 @@
+package com.animeflix.userservice.service;
+
+import com.animeflix.userservice.entity.WatchHistory;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class WatchProgressBufferMergeTest {
+
+    private final LocalDateTime firstSeen = LocalDateTime.of(2026, 1, 1, 20, 0);
+
+    @Test
+    void latestProgressWinsButFirstCreatedAtIsKept() {
+        WatchHistory previous = heartbeat(120.0, firstSeen);
+        WatchHistory latest = heartbeat(180.0, firstSeen.plusMinutes(1));
+
+        WatchHistory merged = WatchProgressBuffer.mergeEntry(previous, latest);
+
+        assertThat(merged.getTimeWatched()).isEqualTo(180.0);
+        assertThat(merged.getUpdatedAt()).isEqualTo(firstSeen.plusMinutes(1));
+        assertThat(merged.getCreatedAt()).isEqualTo(firstSeen);
+    }
+
+    @Test
+    void missingDescriptiveFieldsAreCarriedOver() {
+        WatchHistory previous = heartbeat(120.0, firstSeen);
+        previous.setEpTitle("The Beginning");
+        previous.setProvider("gogo");
+        previous.setDevice("web");
+        previous.setQuality("1080p");
+
+        WatchHistory merged = WatchProgressBuffer.mergeEntry(previous, heartbeat(150.0, firstSeen.plusSeconds(30)));
+
+        assertThat(merged.getEpTitle()).isEqualTo("The Beginning");
+        assertThat(merged.getProvider()).isEqualTo("gogo");
+        assertThat(merged.getDevice()).isEqualTo("web");
+        assertThat(merged.getQuality()).isEqualTo("1080p");
+    }
+
+    @Test
+    void descriptiveFieldsOfLatestHeartbeatOverridePrevious() {
+        WatchHistory previous = heartbeat(120.0, firstSeen);
+        previous.setDevice("web");
+        previous.setQuality("1080p");
+
+        WatchHistory latest = heartbeat(150.0, firstSeen.plusSeconds(30));
+        latest.setDevice("tv");
+        latest.setQuality("720p");
+
+        WatchHistory merged = WatchProgressBuffer.mergeEntry(previous, latest);
+
+        assertThat(merged.getDevice()).isEqualTo("tv");
+        assertThat(merged.getQuality()).isEqualTo("720p");
+    }
+
+    @Test
+    void rewindIsNotIgnored() {
+        // User tua lại => timeWatched giảm, vẫn lấy bản mới nhất
+        WatchHistory merged = WatchProgressBuffer.mergeEntry(
+                heartbeat(600.0, firstSeen), heartbeat(30.0, firstSeen.plusMinutes(2)));
+
+        assertThat(merged.getTimeWatched()).isEqualTo(30.0);
+    }
+
+    @Test
+    void latestPerAnimeKeepsTheMostRecentEpisodeOfEachAnime() {
+        WatchHistory ep1 = heartbeat(900.0, firstSeen);
+        WatchHistory ep2 = heartbeat(60.0, firstSeen.plusMinutes(25));
+        ep2.setEpId("ep-2");
+        ep2.setEpNum(2);
+        WatchHistory otherAnime = heartbeat(30.0, firstSeen.plusMinutes(5));
+        otherAnime.setAniId("anime-2");
+
+        // Thứ tự trong buffer (HVALS) không theo thời gian
+        List<WatchHistory> latest = WatchProgressBuffer.latestPerAnime(List.of(ep2, otherAnime, ep1));
+
+        assertThat(latest).containsExactlyInAnyOrder(ep2, otherAnime);
+    }
+
+    private WatchHistory heartbeat(double timeWatched, LocalDateTime at) {
+        return WatchHistory.builder()
+                .userId("user-1")
+                .aniId("anime-1")
+                .epId("ep-1")
+                .epNum(1)
+                .timeWatched(timeWatched)
+                .duration(1440.0)
+                .progress(timeWatched / 1440.0)
+                .completed(false)
+                .createdAt(at)
+                .updatedAt(at)
+                .build();
+    }
+}
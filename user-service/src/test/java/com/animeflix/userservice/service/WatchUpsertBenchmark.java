@@ -0,0 +1,244 @@
+package com.animeflix.userservice.service;
+
+import com.animeflix.userservice.entity.ContinueWatching;
+import com.animeflix.userservice.entity.WatchHistory;
+import com.animeflix.userservice.mapper.ContinueWatchingMapper;
+import com.animeflix.userservice.repository.ContinueWatchingRepository;
+import com.animeflix.userservice.support.MongoContainerTest;
+import com.animeflix.userservice.support.TestServices;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Đo latency ghi heartbeat: find + save cả document (trước user-012) so với upsert 1 round trip
+ *
+ * Không chạy trong build thường, bật bằng:
+ *   mvn test -Dtest=WatchUpsertBenchmark -Dbenchmark=true
+ */
+@Slf4j
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class WatchUpsertBenchmark extends MongoContainerTest {
+
+    private static final String USER = "bench-user";
+    private static final int ANIME_COUNT = 50;
+    private static final int WARMUP = 300;
+    private static final int ITERATIONS = 3000;
+    private static final int CONCURRENT_HEARTBEATS = 64;
+
+    private ContinueWatchingRepository continueRepo;
+    private ContinueWatchingService continueService;
+
+    @BeforeEach
+    void setUp() {
+        continueRepo = repository(ContinueWatchingRepository.class);
+        mongoTemplate.indexOps(ContinueWatching.class).ensureIndex(new Index()
+                .on("userId", Sort.Direction.ASC).on("aniId", Sort.Direction.ASC)
+                .unique().named("user_anime_unique")).block();
+        mongoTemplate.indexOps(ContinueWatching.class).ensureIndex(new Index()
+                .on("userId", Sort.Direction.ASC).on("lastWatchedAt", Sort.Direction.DESC)
+                .named("user_watched_idx")).block();
+        mongoTemplate.indexOps(WatchHistory.class).ensureIndex(new Index()
+                .on("userId", Sort.Direction.ASC).on("aniId", Sort.Direction.ASC).on("epId", Sort.Direction.ASC)
+                .unique().named("user_anime_episode_unique")).block();
+
+        // Giữ đủ ANIME_COUNT entry => trim không xóa gì, chỉ tốn 1 query tìm mốc
+        continueService = TestServices.create(ContinueWatchingService.class,
+                List.of(continueRepo, mock(ContinueWatchingMapper.class), mongoTemplate),
+                "features.continue-watching.max-items=" + ANIME_COUNT);
+    }
+
+    // Đo xong đường ghi cũ => làm sạch trước khi đo đường ghi mới
+    private void reset() {
+        dropDatabase();
+        setUp();
+    }
+
+    @Test
+    void continueWatchingFindAndSaveVersusUpsert() {
+        Stats legacy = measure("continue-watching find+save", i -> legacyContinueWatching(heartbeat(i)));
+        reset();
+        Stats upsert = measure("continue-watching findAndModify upsert", i -> continueService.updateFromHistory(heartbeat(i)));
+
+        log.info("📊 continue-watching p50 {}x, p99 {}x faster with upsert",
+                ratio(legacy.p50, upsert.p50), ratio(legacy.p99, upsert.p99));
+        assertThat(count(ContinueWatching.class)).isEqualTo(ANIME_COUNT);
+    }
+
+    @Test
+    void concurrentHeartbeatsOnANewEntry() {
+        // Cùng 1 (user, anime) chưa có document: find+save để lọt nhiều insert, bị index unique chặn thành lỗi
+        AtomicInteger legacyErrors = new AtomicInteger();
+        Flux.range(0, CONCURRENT_HEARTBEATS)
+                .flatMap(i -> legacyContinueWatching(heartbeat(0))
+                        .onErrorResume(e -> {
+                            legacyErrors.incrementAndGet();
+                            return Mono.empty();
+                        }), CONCURRENT_HEARTBEATS)
+                .blockLast();
+
+        reset();
+        AtomicInteger upsertErrors = new AtomicInteger();
+        Flux.range(0, CONCURRENT_HEARTBEATS)
+                .flatMap(i -> continueService.updateFromHistory(heartbeat(0))
+                        .onErrorResume(e -> {
+                            upsertErrors.incrementAndGet();
+                            return Mono.empty();
+                        }), CONCURRENT_HEARTBEATS)
+                .blockLast();
+
+        log.info("📊 {} concurrent heartbeats on a new entry: find+save failed {}, upsert failed {}",
+                CONCURRENT_HEARTBEATS, legacyErrors.get(), upsertErrors.get());
+        assertThat(upsertErrors.get()).isZero();
+        assertThat(count(ContinueWatching.class)).isEqualTo(1);
+    }
+
+    @Test
+    void watchHistoryFindAndSaveVersusUpsert() {
+        Stats legacy = measure("watch-history find+save", i -> legacyWatchHistory(heartbeat(i)));
+        reset();
+        Stats upsert = measure("watch-history upsert", i -> upsertWatchHistory(heartbeat(i)));
+
+        log.info("📊 watch-history p50 {}x, p99 {}x faster with upsert",
+                ratio(legacy.p50, upsert.p50), ratio(legacy.p99, upsert.p99));
+        assertThat(count(WatchHistory.class)).isEqualTo(ANIME_COUNT);
+    }
+
+    // ========== Đường ghi cũ (trước user-012) ==========
+
+    private Mono<ContinueWatching> legacyContinueWatching(WatchHistory history) {
+        return continueRepo.findByUserIdAndAniId(history.getUserId(), history.getAniId())
+                .map(existing -> {
+                    existing.setEpId(history.getEpId());
+                    existing.setEpNum(history.getEpNum());
+                    existing.setTimeWatched(history.getTimeWatched());
+                    existing.setDuration(history.getDuration());
+                    existing.setProgress(history.getProgress());
+                    existing.setLastWatchedAt(LocalDateTime.now());
+                    return existing;
+                })
+                .switchIfEmpty(Mono.fromSupplier(() -> ContinueWatching.builder()
+                        .userId(history.getUserId())
+                        .aniId(history.getAniId())
+                        .aniTitle(history.getAniTitle())
+                        .epId(history.getEpId())
+                        .epNum(history.getEpNum())
+                        .timeWatched(history.getTimeWatched())
+                        .duration(history.getDuration())
+                        .progress(history.getProgress())
+                        .lastWatchedAt(LocalDateTime.now())
+                        .createdAt(LocalDateTime.now())
+                        .build()))
+                .flatMap(continueRepo::save);
+    }
+
+    private Mono<WatchHistory> legacyWatchHistory(WatchHistory history) {
+        return mongoTemplate.findOne(episodeQuery(history), WatchHistory.class)
+                .map(existing -> {
+                    existing.setTimeWatched(history.getTimeWatched());
+                    existing.setDuration(history.getDuration());
+                    existing.setProgress(history.getProgress());
+                    existing.setUpdatedAt(LocalDateTime.now());
+                    return existing;
+                })
+                .defaultIfEmpty(history)
+                .flatMap(mongoTemplate::save);
+    }
+
+    // ========== Đường ghi mới ==========
+
+    private Mono<?> upsertWatchHistory(WatchHistory history) {
+        LocalDateTime now = LocalDateTime.now();
+        Update update = new Update()
+                .set("timeWatched", history.getTimeWatched())
+                .set("duration", history.getDuration())
+                .set("progress", history.getProgress())
+                .set("completed", history.getCompleted())
+                .set("updatedAt", now)
+                .setOnInsert("epNum", history.getEpNum())
+                .setOnInsert("createdAt", now);
+
+        return mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, WatchHistory.class)
+                .upsert(episodeQuery(history), update)
+                .execute();
+    }
+
+    private Query episodeQuery(WatchHistory history) {
+        return Query.query(Criteria.where("userId").is(history.getUserId())
+                .and("aniId").is(history.getAniId())
+                .and("epId").is(history.getEpId()));
+    }
+
+    // ========== Đo ==========
+
+    private Stats measure(String name, IntFunction<Mono<?>> operation) {
+        for (int i = 0; i < WARMUP; i++) {
+            operation.apply(i).block();
+        }
+
+        long[] nanos = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            long startedAt = System.nanoTime();
+            operation.apply(i).block();
+            nanos[i] = System.nanoTime() - startedAt;
+        }
+
+        Arrays.sort(nanos);
+        Stats stats = new Stats(percentile(nanos, 0.50), percentile(nanos, 0.95), percentile(nanos, 0.99),
+                Arrays.stream(nanos).average().orElse(0) / 1000);
+        log.info("📊 {}: {} ops, mean {} µs, p50 {} µs, p95 {} µs, p99 {} µs",
+                name, ITERATIONS, Math.round(stats.mean), stats.p50, stats.p95, stats.p99);
+        return stats;
+    }
+
+    private long percentile(long[] sortedNanos, double percentile) {
+        int index = (int) Math.ceil(percentile * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(0, index)] / 1000;
+    }
+
+    private String ratio(long before, long after) {
+        return String.format("%.2f", after == 0 ? 0 : (double) before / after);
+    }
+
+    private long count(Class<?> entityClass) {
+        return mongoTemplate.count(new Query(), entityClass).block();
+    }
+
+    // Xoay vòng ANIME_COUNT anime => lần đầu là insert, sau đó là update
+    private WatchHistory heartbeat(int i) {
+        String aniId = "anime-" + (i % ANIME_COUNT);
+        double timeWatched = 10.0 * (i / ANIME_COUNT + 1);
+        return WatchHistory.builder()
+                .userId(USER)
+                .aniId(aniId)
+                .aniTitle("Title " + aniId)
+                .epId(aniId + "-ep-1")
+                .epNum(1)
+                .timeWatched(timeWatched)
+                .duration(1440.0)
+                .progress(Math.min(timeWatched / 1440.0, 0.5))
+                .completed(false)
+                .build();
+    }
+
+    private record Stats(long p50, long p95, long p99, double mean) {
+    }
+}
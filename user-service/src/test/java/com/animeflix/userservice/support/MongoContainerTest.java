@@ -0,0 +1,48 @@
+package com.animeflix.userservice.support;
+
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.repository.support.ReactiveMongoRepositoryFactory;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import reactor.core.publisher.Mono;
+
+/**
+ * Base cho test cần Mongo thật: 1 container dùng chung cả JVM, mỗi test bắt đầu với database rỗng
+ */
+@Testcontainers(disabledWithoutDocker = true)
+public abstract class MongoContainerTest {
+
+    private static final MongoDBContainer MONGO = new MongoDBContainer("mongo:7");
+
+    protected static MongoClient mongoClient;
+    protected static ReactiveMongoTemplate mongoTemplate;
+
+    @BeforeAll
+    protected static void connectMongo() {
+        // start() không làm gì nếu container đã chạy (class test trước đã start)
+        MONGO.start();
+        mongoClient = MongoClients.create(MONGO.getReplicaSetUrl());
+        mongoTemplate = new ReactiveMongoTemplate(mongoClient, "test");
+    }
+
+    @AfterAll
+    protected static void disconnectMongo() {
+        mongoClient.close();
+    }
+
+    @BeforeEach
+    protected void dropDatabase() {
+        mongoTemplate.getMongoDatabase()
+                .flatMap(database -> Mono.from(database.drop()))
+                .block();
+    }
+
+    protected static <T> T repository(Class<T> repositoryInterface) {
+        return new ReactiveMongoRepositoryFactory(mongoTemplate).getRepository(repositoryInterface);
+    }
+}
@@ -0,0 +1,42 @@
+package com.animeflix.userservice.support;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+/**
+ * Base cho test cần Redis thật: 1 container dùng chung cả JVM, mỗi test bắt đầu với Redis rỗng
+ */
+@Testcontainers(disabledWithoutDocker = true)
+public abstract class RedisContainerTest {
+
+    private static final GenericContainer<?> REDIS = new GenericContainer<>("redis:7-alpine").withExposedPorts(6379);
+
+    protected static LettuceConnectionFactory connectionFactory;
+    protected static ReactiveRedisTemplate<String, String> redisTemplate;
+
+    @BeforeAll
+    protected static void connectRedis() {
+        // start() không làm gì nếu container đã chạy (class test trước đã start)
+        REDIS.start();
+        connectionFactory = new LettuceConnectionFactory(REDIS.getHost(), REDIS.getMappedPort(6379));
+        connectionFactory.afterPropertiesSet();
+        connectionFactory.start();
+        redisTemplate = new ReactiveRedisTemplate<>(connectionFactory, RedisSerializationContext.string());
+    }
+
+    @AfterAll
+    protected static void disconnectRedis() {
+        connectionFactory.destroy();
+    }
+
+    @BeforeEach
+    protected void flushRedis() {
+        connectionFactory.getReactiveConnection().serverCommands().flushAll().block();
+    }
+}
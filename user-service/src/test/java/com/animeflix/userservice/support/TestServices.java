@@ -0,0 +1,34 @@
+package com.animeflix.userservice.support;
+
+import org.springframework.context.annotation.AnnotationConfigUtils;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.test.context.support.TestPropertySourceUtils;
+
+import java.util.List;
+
+/**
+ * Dựng service qua Spring như lúc chạy thật: @Value đọc từ property (giống @TestPropertySource),
+ * property không khai báo thì lấy default trong annotation, @PostConstruct cũng được gọi
+ */
+public final class TestServices {
+
+    private TestServices() {
+    }
+
+    /**
+     * @param dependencies bean inject vào constructor (mock / template), khớp theo type
+     * @param properties   "key=value" như @TestPropertySource(properties = ...)
+     */
+    public static <T> T create(Class<T> serviceClass, List<?> dependencies, String... properties) {
+        GenericApplicationContext context = new GenericApplicationContext();
+        AnnotationConfigUtils.registerAnnotationConfigProcessors(context);
+        TestPropertySourceUtils.addInlinedPropertiesToEnvironment(context, properties);
+
+        for (int i = 0; i < dependencies.size(); i++) {
+            context.getBeanFactory().registerSingleton("dependency" + i, dependencies.get(i));
+        }
+        context.registerBean(serviceClass);
+        context.refresh();
+        return context.getBean(serviceClass);
+    }
+}
@@ -0,0 +1,99 @@
+package com.animeflix.userservice.util;
+
+import com.animeflix.userservice.dto.response.CursorPageResponse;
+import com.animeflix.userservice.exception.ValidationException;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CursorUtilTest {
+
+    private record Row(LocalDateTime createdAt, String id) {
+    }
+
+    @Test
+    void encodeThenDecodeRoundTrips() {
+        // Mongo lưu tới millisecond => cursor cũng vậy
+        LocalDateTime createdAt = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+        String id = new ObjectId().toHexString();
+
+        CursorUtil.Cursor cursor = CursorUtil.decode(CursorUtil.encode(createdAt, id));
+
+        assertThat(cursor.timestamp()).isEqualTo(createdAt);
+        assertThat(cursor.id().toHexString()).isEqualTo(id);
+    }
+
+    @Test
+    void encodedCursorIsUrlSafe() {
+        String cursor = CursorUtil.encode(LocalDateTime.now(), new ObjectId().toHexString());
+
+        assertThat(cursor).matches("[A-Za-z0-9_-]+");
+    }
+
+    @Test
+    void decodeRejectsGarbage() {
+        assertThatThrownBy(() -> CursorUtil.decode("not-a-cursor"))
+                .isInstanceOf(ValidationException.class);
+        assertThatThrownBy(() -> CursorUtil.decode(""))
+                .isInstanceOf(ValidationException.class);
+        // base64 hợp lệ nhưng objectId sai
+        assertThatThrownBy(() -> CursorUtil.decode("MTIzOmFiYw"))
+                .isInstanceOf(ValidationException.class);
+    }
+
+    @Test
+    void toPageWithExtraRowReturnsNextCursorOfLastItem() {
+        List<Row> rows = rows(4);
+
+        CursorPageResponse<String> page = CursorUtil.toPage(rows, 3, Row::createdAt, Row::id, Row::id);
+
+        assertThat(page.getItems()).containsExactly(rows.get(0).id(), rows.get(1).id(), rows.get(2).id());
+        CursorUtil.Cursor next = CursorUtil.decode(page.getNextCursor());
+        assertThat(next.id().toHexString()).isEqualTo(rows.get(2).id());
+        assertThat(next.timestamp()).isEqualTo(rows.get(2).createdAt());
+    }
+
+    @Test
+    void toPageWithoutExtraRowIsLastPage() {
+        List<Row> rows = rows(3);
+
+        CursorPageResponse<String> page = CursorUtil.toPage(rows, 3, Row::createdAt, Row::id, Row::id);
+
+        assertThat(page.getItems()).hasSize(3);
+        assertThat(page.getNextCursor()).isNull();
+    }
+
+    @Test
+    void toPageOfEmptyResult() {
+        CursorPageResponse<String> page = CursorUtil.toPage(List.<Row>of(), 20, Row::createdAt, Row::id, Row::id);
+
+        assertThat(page.getItems()).isEmpty();
+        assertThat(page.getNextCursor()).isNull();
+    }
+
+    @Test
+    void clampSizeKeepsSizeWithinBounds() {
+        assertThat(CursorUtil.clampSize(0)).isEqualTo(1);
+        assertThat(CursorUtil.clampSize(-5)).isEqualTo(1);
+        assertThat(CursorUtil.clampSize(20)).isEqualTo(20);
+        assertThat(CursorUtil.clampSize(CursorUtil.MAX_PAGE_SIZE)).isEqualTo(CursorUtil.MAX_PAGE_SIZE);
+        assertThat(CursorUtil.clampSize(Integer.MAX_VALUE)).isEqualTo(CursorUtil.MAX_PAGE_SIZE);
+    }
+
+    // createdAt giảm dần như kết quả query (createdAt desc, _id desc)
+    private List<Row> rows(int count) {
+        LocalDateTime start = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            rows.add(new Row(start.minusSeconds(i), new ObjectId().toHexString()));
+        }
+        return rows;
+    }
+}